@@ -0,0 +1,235 @@
+package decaf.backend.dataflow;
+
+import java.util.*;
+import java.util.function.IntFunction;
+
+/**
+ * Dominator tree and dominance frontiers of a control flow graph, whose entry is node 0.
+ * <p>
+ * Immediate dominators are computed by the iterative algorithm of Cooper, Harvey and Kennedy, which visits nodes in
+ * reverse postorder until nothing changes. Nodes unreachable from the entry are left out of the tree.
+ */
+public class DominatorTree {
+    private final int size;
+
+    /**
+     * Immediate dominator of every node, -1 for the entry and for unreachable nodes.
+     */
+    private final int[] idom;
+
+    /**
+     * Children of every node in the tree.
+     */
+    private final List<List<Integer>> children = new ArrayList<>();
+
+    /**
+     * Dominance frontier of every node, computed on demand.
+     */
+    private List<Set<Integer>> frontiers;
+
+    /**
+     * Reachable nodes, in reverse postorder.
+     */
+    private final List<Integer> order = new ArrayList<>();
+
+    /**
+     * Preorder and postorder numbers in the tree, to test dominance in constant time.
+     */
+    private final int[] pre;
+    private final int[] post;
+
+    private final IntFunction<? extends Collection<Integer>> prev;
+
+    public DominatorTree(CFG<?> graph) {
+        this(graph.nodes.size(), graph::getPrev, graph::getSucc);
+    }
+
+    /**
+     * Build the dominator tree of any graph.
+     *
+     * @param size number of nodes
+     * @param prev predecessors of every node
+     * @param succ successors of every node
+     */
+    public DominatorTree(int size, IntFunction<? extends Collection<Integer>> prev,
+                         IntFunction<? extends Collection<Integer>> succ) {
+        this.size = size;
+        this.prev = prev;
+        idom = new int[size];
+        pre = new int[size];
+        post = new int[size];
+        Arrays.fill(idom, -1);
+        for (var i = 0; i < size; i++) {
+            children.add(new ArrayList<>());
+        }
+        if (size == 0) {
+            return;
+        }
+
+        // Postorder by an iterative depth-first search
+        var number = new int[size];
+        Arrays.fill(number, -1);
+        var visited = new boolean[size];
+        var postorder = new ArrayList<Integer>();
+        var stack = new ArrayDeque<Iterator<Integer>>();
+        var nodes = new ArrayDeque<Integer>();
+        visited[0] = true;
+        stack.push(succ.apply(0).iterator());
+        nodes.push(0);
+        while (!stack.isEmpty()) {
+            var it = stack.peek();
+            if (it.hasNext()) {
+                var next = it.next();
+                if (!visited[next]) {
+                    visited[next] = true;
+                    stack.push(succ.apply(next).iterator());
+                    nodes.push(next);
+                }
+            } else {
+                stack.pop();
+                var node = nodes.pop();
+                number[node] = postorder.size();
+                postorder.add(node);
+            }
+        }
+        for (var i = postorder.size() - 1; i >= 0; i--) {
+            order.add(postorder.get(i));
+        }
+
+        // Cooper, Harvey and Kennedy
+        idom[0] = 0;
+        var changed = true;
+        while (changed) {
+            changed = false;
+            for (var node : order) {
+                if (node == 0) {
+                    continue;
+                }
+                var newIdom = -1;
+                for (var p : prev.apply(node)) {
+                    if (idom[p] < 0) {
+                        continue;
+                    }
+                    newIdom = newIdom < 0 ? p : intersect(p, newIdom, number);
+                }
+                if (idom[node] != newIdom) {
+                    idom[node] = newIdom;
+                    changed = true;
+                }
+            }
+        }
+        idom[0] = -1;
+
+        for (var node : order) {
+            if (node != 0) {
+                children.get(idom[node]).add(node);
+            }
+        }
+
+        // Number the tree
+        var counter = 0;
+        var it = new ArrayDeque<Iterator<Integer>>();
+        nodes.clear();
+        pre[0] = counter++;
+        it.push(children.get(0).iterator());
+        nodes.push(0);
+        while (!it.isEmpty()) {
+            if (it.peek().hasNext()) {
+                var child = it.peek().next();
+                pre[child] = counter++;
+                it.push(children.get(child).iterator());
+                nodes.push(child);
+            } else {
+                it.pop();
+                post[nodes.pop()] = counter++;
+            }
+        }
+    }
+
+    private int intersect(int a, int b, int[] number) {
+        while (a != b) {
+            while (number[a] < number[b]) {
+                a = idom[a];
+            }
+            while (number[b] < number[a]) {
+                b = idom[b];
+            }
+        }
+        return a;
+    }
+
+    /**
+     * Get the immediate dominator.
+     *
+     * @param id node
+     * @return its immediate dominator, -1 for the entry and for unreachable nodes
+     */
+    public int idom(int id) {
+        return idom[id];
+    }
+
+    /**
+     * Get the nodes immediately dominated by a node.
+     *
+     * @param id node
+     * @return its children in the tree
+     */
+    public List<Integer> children(int id) {
+        return children.get(id);
+    }
+
+    /**
+     * Get the nodes reachable from the entry, in reverse postorder: every node comes after its dominators.
+     *
+     * @return reachable nodes
+     */
+    public List<Integer> reversePostorder() {
+        return order;
+    }
+
+    public boolean isReachable(int id) {
+        return id == 0 || idom[id] >= 0;
+    }
+
+    /**
+     * Test dominance. Every node dominates itself.
+     *
+     * @param a node
+     * @param b node
+     * @return if {@code a} dominates {@code b}, both reachable
+     */
+    public boolean dominates(int a, int b) {
+        return isReachable(a) && isReachable(b) && pre[a] <= pre[b] && post[b] <= post[a];
+    }
+
+    /**
+     * Get the dominance frontier of a node: the nodes where its dominance ends, i.e. which it does not strictly
+     * dominate, but does one of their predecessors.
+     *
+     * @param id node
+     * @return its dominance frontier
+     */
+    public Set<Integer> frontier(int id) {
+        if (frontiers == null) {
+            frontiers = new ArrayList<>();
+            for (var i = 0; i < size; i++) {
+                frontiers.add(new TreeSet<>());
+            }
+            for (var node : order) {
+                var preds = prev.apply(node);
+                if (preds.size() < 2) {
+                    continue;
+                }
+                for (var p : preds) {
+                    if (!isReachable(p)) {
+                        continue;
+                    }
+                    for (var runner = p; runner != idom[node]; runner = idom[runner]) {
+                        frontiers.get(runner).add(node);
+                    }
+                }
+            }
+        }
+        return frontiers.get(id);
+    }
+}
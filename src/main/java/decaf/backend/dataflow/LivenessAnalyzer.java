@@ -60,13 +60,14 @@ public class LivenessAnalyzer<I extends PseudoInstr> implements Consumer<CFG<I>>
         bb.liveUse = new TreeSet<>();
 
         for (var loc : bb) {
-            bb.def.addAll(loc.instr.getWritten());
+            // Reads first, as an instruction reads its operands before it writes, e.g. in `_T1 = _T1 + _T2`
             for (var read : loc.instr.getRead()) {
                 if (!bb.def.contains(read)) {
                     // used before being assigned to a value
                     bb.liveUse.add(read);
                 }
             }
+            bb.def.addAll(loc.instr.getWritten());
         }
     }
 
@@ -78,8 +79,7 @@ public class LivenessAnalyzer<I extends PseudoInstr> implements Consumer<CFG<I>>
      * instruction solely, then the data flow equations also hold, and the situation becomes much simpler:
      * - loc.liveOut = loc.next.liveIn
      * - loc.def is simply the set of written temps
-     * - loc.liveUse is simply the set of read temps, since it is impossible to read and write a same temp
-     * simultaneously
+     * - loc.liveUse is simply the set of read temps, even those it also writes
      * So you see, to back propagate every location solves the problem.
      *
      * @param bb the basic block
@@ -0,0 +1,181 @@
+package decaf.backend.opt;
+
+import decaf.backend.dataflow.CFG;
+import decaf.backend.dataflow.CFGBuilder;
+import decaf.lowlevel.label.Label;
+import decaf.lowlevel.tac.TacFunc;
+import decaf.lowlevel.tac.TacInstr;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Profile-guided block layout.
+ * <p>
+ * Starting from the entry, every basic block is followed by the successor not yet placed along its hottest edge, so
+ * that hot paths fall through. Edge counts are estimated from block counts. Once a chain cannot grow, the next one starts at the first executed block left, and blocks never
+ * executed, like the handlers of runtime errors, go after all executed ones. The block of the last return stays last.
+ * Then jumps are fixed up: a jump to the next block is dropped, a conditional jump whose target comes next is
+ * inverted, and a block whose fall-through successor does not come next jumps to it.
+ */
+final class BlockLayout {
+    private final Supplier<Label> freshLabel;
+
+    /**
+     * Number of jumps dropped, and of blocks placed before one which preceded them.
+     */
+    int dropped = 0;
+    int moved = 0;
+
+    BlockLayout(Supplier<Label> freshLabel) {
+        this.freshLabel = freshLabel;
+    }
+
+    TacFunc apply(TacFunc func, ProfileData.FuncProfile profile) {
+        if (profile.invocations == 0) {
+            return func;
+        }
+
+        var cfg = new CFGBuilder<TacInstr>().buildFrom(func.getInstrSeq());
+        var n = cfg.nodes.size();
+
+        // An empty block falls through to the next one, and runs as often
+        var counts = new long[n + 1];
+        for (var i = n - 1; i >= 0; i--) {
+            var bb = cfg.getBlock(i);
+            counts[i] = bb.isEmpty() ? counts[i + 1] : profile.count(bb.locs.get(0).instr);
+        }
+
+        // The empty blocks which the CFG builder closes after a jump are unreachable, and left out
+        var order = new ArrayList<Integer>();
+        var placed = new boolean[n];
+        for (var i = 1; i < n; i++) {
+            if (cfg.getBlock(i).isEmpty() && cfg.getBlock(i).label.isEmpty() && cfg.getInDegree(i) == 0) {
+                placed[i] = true;
+            }
+        }
+        var last = n - 1;
+        placed[last] = true;
+        for (var pass = 0; pass < 2; pass++) {
+            for (var seed = 0; seed < last; seed++) {
+                if (placed[seed] || (pass == 0 && counts[seed] == 0 && seed != 0)) {
+                    continue;
+                }
+                var minCount = pass == 0 ? 1 : 0;
+                for (var b = seed; b >= 0; b = hottestSucc(cfg, b, counts, placed, minCount)) {
+                    placed[b] = true;
+                    order.add(b);
+                }
+            }
+        }
+        order.add(last);
+        for (var k = 1; k < order.size(); k++) {
+            if (order.get(k) < order.get(k - 1)) {
+                moved++;
+            }
+        }
+
+        // Fix up jumps
+        var labels = new Label[n];
+        var blockOf = new HashMap<String, Integer>();
+        for (var bb : cfg) {
+            labels[bb.id] = bb.label.orElse(null);
+            bb.label.ifPresent(label -> blockOf.put(label.name, bb.id));
+        }
+        var bodies = new ArrayList<List<TacInstr>>();
+        for (var k = 0; k < order.size(); k++) {
+            var bb = cfg.getBlock(order.get(k));
+            var next = k + 1 < order.size() ? order.get(k + 1) : -1;
+            var body = new ArrayList<TacInstr>();
+            bb.locs.forEach(loc -> body.add(loc.instr));
+            switch (bb.kind) {
+                case CONTINUOUS -> {
+                    if (bb.id + 1 != next) {
+                        body.add(new TacInstr.Branch(labelOf(bb.id + 1, labels)));
+                    }
+                }
+                case END_BY_JUMP -> {
+                    if (blockOf.get(bb.getLastInstr().label.name) == next) {
+                        body.remove(body.size() - 1);
+                        dropped++;
+                    }
+                }
+                case END_BY_COND_JUMP -> {
+                    var jump = (TacInstr.CondBranch) bb.getLastInstr();
+                    if (bb.id + 1 != next) {
+                        if (blockOf.get(jump.target.name) == next) {
+                            var op = jump.op == TacInstr.CondBranch.Op.BEQZ
+                                    ? TacInstr.CondBranch.Op.BNEZ : TacInstr.CondBranch.Op.BEQZ;
+                            body.set(body.size() - 1, new TacInstr.CondBranch(op, jump.cond,
+                                    labelOf(bb.id + 1, labels)));
+                        } else {
+                            body.add(new TacInstr.Branch(labelOf(bb.id + 1, labels)));
+                        }
+                    }
+                }
+                case END_BY_RETURN -> {
+                }
+            }
+            bodies.add(body);
+        }
+
+        var seq = new ArrayList<TacInstr>();
+        seq.add(func.getInstrSeq().get(0)); // entry label
+        for (var k = 0; k < order.size(); k++) {
+            var label = labels[order.get(k)];
+            if (label != null) {
+                seq.add(new TacInstr.Mark(label));
+            }
+            seq.addAll(bodies.get(k));
+        }
+        return func.withInstrSeq(seq, func.getUsedTempCount());
+    }
+
+    /**
+     * Pick the successor not yet placed along the hottest edge, taken at least {@code minCount} times, preferring the
+     * fall-through one on a tie.
+     *
+     * @return the successor, -1 if none
+     */
+    private static int hottestSucc(CFG<TacInstr> cfg, int block, long[] counts, boolean[] placed, long minCount) {
+        var best = -1;
+        var bestCount = 0L;
+        for (var succ : cfg.getSucc(block)) {
+            var count = edgeCount(cfg, block, succ, counts);
+            if (!placed[succ] && count >= minCount && (best < 0 || count > bestCount
+                    || count == bestCount && succ == block + 1)) {
+                best = succ;
+                bestCount = count;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Estimate how many times an edge was taken, from the counts of the blocks: all runs of the only successor of a
+     * block, or of the only predecessor of a block, go along the edge between them.
+     */
+    private static long edgeCount(CFG<TacInstr> cfg, int from, int to, long[] counts) {
+        if (cfg.getOutDegree(from) == 1) {
+            return counts[from];
+        }
+        if (cfg.getInDegree(to) == 1) {
+            return counts[to];
+        }
+        for (var other : cfg.getSucc(from)) {
+            if (other != to && cfg.getInDegree(other) == 1) {
+                return Math.max(counts[from] - counts[other], 0);
+            }
+        }
+        return Math.min(counts[from], counts[to]);
+    }
+
+    private Label labelOf(int block, Label[] labels) {
+        if (labels[block] == null) {
+            labels[block] = freshLabel.get();
+        }
+        return labels[block];
+    }
+}
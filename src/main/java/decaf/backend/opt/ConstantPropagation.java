@@ -0,0 +1,265 @@
+package decaf.backend.opt;
+
+import decaf.lowlevel.instr.Temp;
+import decaf.lowlevel.tac.TacInstr;
+
+import java.util.*;
+
+/**
+ * Sparse conditional constant propagation, by Wegman and Zadeck.
+ * <p>
+ * Every temp starts unknown, and goes down to a constant, and then to not a constant. Only edges found executable
+ * propagate values, starting from the entry: a conditional branch on a constant takes one edge, and a phi meets the
+ * arguments along executable edges only. Both are solved together, so that a constant may decide a branch, which
+ * in turn leaves a phi constant.
+ * <p>
+ * Then every {@code Binary}, {@code Unary} or {@code Assign} found constant becomes a {@code LoadImm4}, conditional
+ * branches on constants become jumps, and blocks which cannot be reached any more are removed. Division by zero is
+ * never folded, but left to fail where the program runs it.
+ */
+final class ConstantPropagation {
+    /**
+     * Number of instructions folded, conditional branches resolved, and blocks removed.
+     */
+    int folded = 0;
+    int resolved = 0;
+    int removed = 0;
+
+    private static final int UNKNOWN = 0;
+    private static final int CONST = 1;
+    private static final int VARYING = 2;
+
+    /**
+     * Lattice value of every temp, and the constant if {@code CONST}.
+     */
+    private int[] state;
+    private int[] value;
+
+    /**
+     * Blocks reading every temp.
+     */
+    private List<List<SsaFunc.Block>> users;
+
+    /**
+     * Whether a block is reached, and which of its successors are along executable edges.
+     */
+    private boolean[] reached;
+    private boolean[][] executable;
+
+    private final Deque<SsaFunc.Block> work = new ArrayDeque<>();
+
+    void apply(SsaFunc ssa) {
+        ssa.dominators(); // number the blocks
+        var n = ssa.getUsedTempCount();
+        state = new int[n];
+        value = new int[n];
+        users = new ArrayList<>();
+        for (var i = 0; i < n; i++) {
+            users.add(new ArrayList<>());
+        }
+        for (var i = 0; i < ssa.numParams; i++) {
+            state[i] = VARYING;
+        }
+        reached = new boolean[ssa.blocks.size()];
+        executable = new boolean[ssa.blocks.size()][];
+        for (var block : ssa.blocks) {
+            executable[block.id] = new boolean[block.succs.size()];
+            for (var phi : block.phis) {
+                phi.args.forEach(arg -> users.get(arg.index).add(block));
+            }
+            for (var instr : block.instrs) {
+                for (var src : instr.srcs) {
+                    users.get(src.index).add(block);
+                }
+            }
+        }
+
+        reached[0] = true;
+        work.add(ssa.blocks.get(0));
+        while (!work.isEmpty()) {
+            visit(work.poll());
+        }
+
+        rewrite(ssa);
+        var before = ssa.blocks.size();
+        ssa.removeUnreachable();
+        removed += before - ssa.blocks.size();
+    }
+
+    private void visit(SsaFunc.Block block) {
+        for (var phi : block.phis) {
+            var s = UNKNOWN;
+            var v = 0;
+            for (var j = 0; j < block.preds.size() && s != VARYING; j++) {
+                var arg = phi.args.get(j).index;
+                if (!isExecutable(block.preds.get(j), block) || state[arg] == UNKNOWN) {
+                    continue;
+                }
+                if (state[arg] == VARYING || s == CONST && value[arg] != v) {
+                    s = VARYING;
+                } else {
+                    s = CONST;
+                    v = value[arg];
+                }
+            }
+            lower(phi.dst, s, v);
+        }
+
+        var end = block.terminatorIndex();
+        for (var i = 0; i < end; i++) {
+            evaluate(block.instrs.get(i));
+        }
+        var jump = block.instrs.get(end);
+        if (jump instanceof TacInstr.CondBranch) {
+            var cond = ((TacInstr.CondBranch) jump).cond.index;
+            if (state[cond] == VARYING) {
+                markEdge(block, 0);
+                markEdge(block, 1);
+            } else if (state[cond] == CONST) {
+                markEdge(block, taken((TacInstr.CondBranch) jump, value[cond]) ? 0 : 1);
+            }
+        } else if (!jump.isReturn()) {
+            markEdge(block, 0);
+        }
+    }
+
+    private void evaluate(TacInstr instr) {
+        if (instr.dsts.length == 0) {
+            return;
+        }
+        var dst = instr.dsts[0];
+        if (instr instanceof TacInstr.LoadImm4) {
+            lower(dst, CONST, ((TacInstr.LoadImm4) instr).value);
+            return;
+        }
+        if (!(instr instanceof TacInstr.Assign || instr instanceof TacInstr.Unary
+                || instr instanceof TacInstr.Binary)) {
+            lower(dst, VARYING, 0);
+            return;
+        }
+
+        for (var src : instr.srcs) {
+            if (state[src.index] == VARYING) {
+                lower(dst, VARYING, 0);
+                return;
+            }
+        }
+        for (var src : instr.srcs) {
+            if (state[src.index] == UNKNOWN) {
+                return;
+            }
+        }
+        var result = fold(instr);
+        if (result.isPresent()) {
+            lower(dst, CONST, result.get());
+        } else {
+            lower(dst, VARYING, 0);
+        }
+    }
+
+    /**
+     * Compute an instruction on constant operands, as the simulator does.
+     */
+    private Optional<Integer> fold(TacInstr instr) {
+        if (instr instanceof TacInstr.Assign) {
+            return Optional.of(value[((TacInstr.Assign) instr).src.index]);
+        }
+        if (instr instanceof TacInstr.Unary) {
+            var unary = (TacInstr.Unary) instr;
+            var operand = value[unary.operand.index];
+            return Optional.of(switch (unary.op) {
+                case NEG -> -operand;
+                case LNOT -> (operand == 0) ? 1 : 0;
+            });
+        }
+        var binary = (TacInstr.Binary) instr;
+        var lhs = value[binary.lhs.index];
+        var rhs = value[binary.rhs.index];
+        if ((binary.op == TacInstr.Binary.Op.DIV || binary.op == TacInstr.Binary.Op.MOD) && rhs == 0) {
+            return Optional.empty();
+        }
+        return Optional.of(switch (binary.op) {
+            case ADD -> lhs + rhs;
+            case SUB -> lhs - rhs;
+            case MUL -> lhs * rhs;
+            case DIV -> lhs / rhs;
+            case MOD -> lhs % rhs;
+            case EQU -> (lhs == rhs) ? 1 : 0;
+            case NEQ -> (lhs != rhs) ? 1 : 0;
+            case LES -> (lhs < rhs) ? 1 : 0;
+            case LEQ -> (lhs <= rhs) ? 1 : 0;
+            case GTR -> (lhs > rhs) ? 1 : 0;
+            case GEQ -> (lhs >= rhs) ? 1 : 0;
+            case LAND -> (lhs == 0) ? 0 : (rhs == 0) ? 0 : 1;
+            case LOR -> (lhs != 0) ? 1 : (rhs == 0) ? 0 : 1;
+        });
+    }
+
+    private static boolean taken(TacInstr.CondBranch jump, int cond) {
+        return jump.op == TacInstr.CondBranch.Op.BEQZ ? cond == 0 : cond != 0;
+    }
+
+    private void lower(Temp temp, int s, int v) {
+        var t = temp.index;
+        if (s > state[t]) {
+            state[t] = s;
+            value[t] = v;
+            for (var user : users.get(t)) {
+                if (reached[user.id]) {
+                    work.add(user);
+                }
+            }
+        }
+    }
+
+    private void markEdge(SsaFunc.Block block, int index) {
+        if (executable[block.id][index]) {
+            return;
+        }
+        executable[block.id][index] = true;
+        var succ = block.succs.get(index);
+        if (!reached[succ.id]) {
+            reached[succ.id] = true;
+            work.add(succ);
+        } else if (!succ.phis.isEmpty()) {
+            work.add(succ);
+        }
+    }
+
+    private boolean isExecutable(SsaFunc.Block from, SsaFunc.Block to) {
+        for (var k = 0; k < from.succs.size(); k++) {
+            if (from.succs.get(k) == to && executable[from.id][k]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void rewrite(SsaFunc ssa) {
+        for (var block : ssa.blocks) {
+            if (!reached[block.id]) {
+                continue;
+            }
+            var end = block.terminatorIndex();
+            for (var i = 0; i < end; i++) {
+                var instr = block.instrs.get(i);
+                if ((instr instanceof TacInstr.Assign || instr instanceof TacInstr.Unary
+                        || instr instanceof TacInstr.Binary) && state[instr.dsts[0].index] == CONST) {
+                    block.instrs.set(i, new TacInstr.LoadImm4(instr.dsts[0], value[instr.dsts[0].index]));
+                    folded++;
+                }
+            }
+
+            var jump = block.instrs.get(end);
+            if (jump instanceof TacInstr.CondBranch && state[((TacInstr.CondBranch) jump).cond.index] == CONST) {
+                // Keep the edge taken, which is the first successor iff the branch is taken
+                var taken = taken((TacInstr.CondBranch) jump, value[((TacInstr.CondBranch) jump).cond.index]);
+                var kept = block.succs.get(taken ? 0 : 1);
+                SsaFunc.removeEdge(block, block.succs.get(taken ? 1 : 0));
+                block.instrs.subList(end, block.instrs.size()).clear();
+                block.instrs.add(new TacInstr.Branch(kept.label));
+                resolved++;
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package decaf.backend.opt;
+
+import decaf.lowlevel.instr.Temp;
+import decaf.lowlevel.tac.TacInstr;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Global copy propagation in SSA form.
+ * <p>
+ * As every temp is written once, a copy {@code x = y} can be removed, and every read of {@code x} read {@code y}
+ * instead, wherever it is. Likewise, a phi whose arguments are all the same temp, or itself, is that temp. Copies
+ * which remain necessary, where the temps are live at once, come back when leaving SSA form, and those which are not
+ * are coalesced there by {@link SsaDestructor}.
+ */
+final class CopyPropagation {
+    /**
+     * Number of copies and phis removed.
+     */
+    int copies = 0;
+    int phis = 0;
+
+    void apply(SsaFunc ssa) {
+        var replace = new HashMap<Temp, Temp>();
+        for (var block : ssa.blocks) {
+            block.instrs.removeIf(instr -> {
+                if (instr instanceof TacInstr.Assign) {
+                    replace.put(((TacInstr.Assign) instr).dst, ((TacInstr.Assign) instr).src);
+                    copies++;
+                    return true;
+                }
+                return false;
+            });
+        }
+
+        var changed = true;
+        while (changed) {
+            changed = false;
+            for (var block : ssa.blocks) {
+                for (var it = block.phis.iterator(); it.hasNext(); ) {
+                    var phi = it.next();
+                    var same = trivial(phi, replace);
+                    if (same != null) {
+                        replace.put(phi.dst, same);
+                        it.remove();
+                        phis++;
+                        changed = true;
+                    }
+                }
+            }
+        }
+
+        for (var block : ssa.blocks) {
+            for (var phi : block.phis) {
+                phi.args.replaceAll(arg -> find(arg, replace));
+            }
+            for (var i = 0; i < block.instrs.size(); i++) {
+                var instr = block.instrs.get(i);
+                if (instr.srcs.length == 0) {
+                    continue;
+                }
+                var map = new HashMap<Temp, Temp>();
+                for (var src : instr.srcs) {
+                    map.put(src, find(src, replace));
+                }
+                for (var dst : instr.dsts) {
+                    map.put(dst, dst);
+                }
+                block.instrs.set(i, instr.map(map));
+            }
+        }
+    }
+
+    /**
+     * Get the only temp a phi takes, besides itself, or null if it takes several.
+     */
+    private static Temp trivial(SsaFunc.Phi phi, Map<Temp, Temp> replace) {
+        Temp same = null;
+        for (var arg : phi.args) {
+            var temp = find(arg, replace);
+            if (temp.equals(phi.dst) || same != null && temp.equals(same)) {
+                continue;
+            }
+            if (same != null) {
+                return null;
+            }
+            same = temp;
+        }
+        return same;
+    }
+
+    private static Temp find(Temp temp, Map<Temp, Temp> replace) {
+        while (replace.containsKey(temp)) {
+            temp = replace.get(temp);
+        }
+        return temp;
+    }
+}
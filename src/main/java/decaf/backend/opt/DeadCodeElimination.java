@@ -0,0 +1,90 @@
+package decaf.backend.opt;
+
+import decaf.backend.dataflow.BasicBlock;
+import decaf.backend.dataflow.CFGBuilder;
+import decaf.backend.dataflow.LivenessAnalyzer;
+import decaf.lowlevel.instr.Temp;
+import decaf.lowlevel.tac.TacFunc;
+import decaf.lowlevel.tac.TacInstr;
+
+import java.util.*;
+
+/**
+ * Dead code elimination on TAC.
+ * <p>
+ * A pure instruction, i.e. an {@code Assign}, {@code LoadImm4}, {@code Binary}, {@code Unary}, {@code LoadVTbl},
+ * {@code LoadStrConst} or a memory load, is removed when the temp it writes is not live after it, by
+ * {@link LivenessAnalyzer}. Calls, channel and coroutine operations are always kept, even if their results are unused.
+ * As removing an instruction may leave the temps it read dead, this repeats until nothing changes.
+ * <p>
+ * Besides, a memory store is removed when a later store in the same block writes the same address, i.e. the same base
+ * temp, not written in between, at the same offset, and nothing in between may read memory.
+ */
+final class DeadCodeElimination {
+    /**
+     * Number of instructions and of stores removed.
+     */
+    int removed = 0;
+    int storesRemoved = 0;
+
+    TacFunc apply(TacFunc func) {
+        var seq = func.getInstrSeq();
+        var dead = Collections.newSetFromMap(new IdentityHashMap<TacInstr, Boolean>());
+        do {
+            dead.clear();
+            var cfg = new CFGBuilder<TacInstr>().buildFrom(seq);
+            new LivenessAnalyzer<TacInstr>().accept(cfg);
+            for (var bb : cfg) {
+                for (var loc : bb) {
+                    if (isPure(loc.instr) && !loc.liveOut.contains(loc.instr.dsts[0])) {
+                        dead.add(loc.instr);
+                        removed++;
+                    }
+                }
+                deadStores(bb, dead);
+            }
+
+            var result = new ArrayList<TacInstr>();
+            for (var instr : seq) {
+                if (!dead.contains(instr)) {
+                    result.add(instr);
+                }
+            }
+            seq = result;
+        } while (!dead.isEmpty());
+        return func.withInstrSeq(seq, func.getUsedTempCount());
+    }
+
+    private static boolean isPure(TacInstr instr) {
+        return instr instanceof TacInstr.Assign || instr instanceof TacInstr.LoadImm4
+                || instr instanceof TacInstr.Binary || instr instanceof TacInstr.Unary
+                || instr instanceof TacInstr.LoadVTbl || instr instanceof TacInstr.LoadStrConst
+                || instr instanceof TacInstr.Memory && ((TacInstr.Memory) instr).op == TacInstr.Memory.Op.LOAD;
+    }
+
+    /**
+     * Find the stores overwritten later in a block, going backwards and keeping the addresses written after.
+     */
+    private void deadStores(BasicBlock<TacInstr> bb, Set<TacInstr> dead) {
+        var written = new HashMap<Temp, Set<Integer>>();
+        var it = bb.backwardIterator();
+        while (it.hasNext()) {
+            var instr = it.next().instr;
+            if (dead.contains(instr)) {
+                continue;
+            }
+            if (instr instanceof TacInstr.Memory && ((TacInstr.Memory) instr).op == TacInstr.Memory.Op.STORE) {
+                var store = (TacInstr.Memory) instr;
+                if (!written.computeIfAbsent(store.base, t -> new HashSet<>()).add(store.offset)) {
+                    dead.add(store);
+                    storesRemoved++;
+                }
+            } else if (isPure(instr) && !(instr instanceof TacInstr.Memory)) {
+                // A later address on the temp written here means another address before it
+                written.remove(instr.dsts[0]);
+            } else {
+                written.clear();
+            }
+        }
+    }
+}
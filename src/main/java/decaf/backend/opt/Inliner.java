@@ -0,0 +1,319 @@
+package decaf.backend.opt;
+
+import decaf.backend.dataflow.CFGBuilder;
+import decaf.backend.dataflow.LivenessAnalyzer;
+import decaf.lowlevel.instr.Temp;
+import decaf.lowlevel.label.Label;
+import decaf.lowlevel.tac.TacFunc;
+import decaf.lowlevel.tac.TacInstr;
+import decaf.lowlevel.tac.TacProg;
+import decaf.lowlevel.tac.VTable;
+
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Profile-guided inlining of hot calls to small functions.
+ * <p>
+ * A method or lambda is called through a closure {@code f}, which is how the TAC emitter compiles every call:
+ * <pre>
+ *     vt = *(f + 0)
+ *     n = *(f + 4)
+ *     entry = *(vt + 8)
+ *     parm a1 ... parm ak
+ *     i = 0
+ *     ...                         push the n captured values, see {@code decaf.lowlevel.tac.Fusion}
+ *     [dst =] call entry
+ * </pre>
+ * If every time the call ran, the profile saw the same callee {@code g}, the pushes and the call become
+ * <pre>
+ *     gv = VTABLE&lt;C&gt;             any vtable with g at offset off
+ *     ge = *(gv + off)
+ *     gc = (entry == ge)
+ *     if (gc != 0) branch fast
+ *     parm a1 ... [dst =] call entry      the original, for other callees
+ *     branch done
+ * fast:
+ *     p1 = a1 ... pk = ak
+ *     p(k + j) = *(f + 4 + 4 * j)     for j = 1, ..., m, the m values captured by g
+ *     ...                             the body of g, its temps and labels renamed, every return assigning dst and
+ *                                     jumping to done
+ * done:
+ * </pre>
+ * A direct call, i.e. to a constructor, is inlined likewise, but without guard. Temps of {@code g} which may be read
+ * before written are zeroed first, as the simulator does for a new frame. Only original bodies are inlined, so
+ * recursion stops after one level.
+ * <p>
+ * Inlined instructions get execution counts scaled from the profile of {@code g}, and the original call none, so that
+ * {@link BlockLayout} moves it out of the way.
+ */
+final class Inliner {
+    /**
+     * A call site is hot if it ran at least this many times.
+     */
+    static final long HOT = 100;
+
+    /**
+     * Largest callee to inline, and most instructions to add to a caller, excluding labels.
+     */
+    static final int MAX_CALLEE_SIZE = 40;
+    static final int MAX_GROWTH = 400;
+
+    /**
+     * Number of instructions of the closure call sequence, from {@code i = 0} to the exit label.
+     */
+    private static final int PUSH_LOOP_LENGTH = 16;
+
+    private final Map<String, TacFunc> funcs = new HashMap<>();
+    private final ProfileData data;
+    private final Supplier<Label> freshLabel;
+
+    /**
+     * Profiles of the functions inlined, as originally emitted.
+     */
+    private final Map<String, Optional<ProfileData.FuncProfile>> profiles = new HashMap<>();
+
+    /**
+     * For every function, a vtable having it, and its offset there.
+     */
+    private final Map<String, VTable> vtableOf = new HashMap<>();
+    private final Map<String, Integer> offsetOf = new HashMap<>();
+
+    /**
+     * Temps which every function may read before writing, parameters included.
+     */
+    private final Map<String, NavigableSet<Temp>> upwardExposed = new HashMap<>();
+
+    /**
+     * Number of calls inlined, with and without guard.
+     */
+    int guarded = 0;
+    int direct = 0;
+
+    Inliner(TacProg program, ProfileData data, Supplier<Label> freshLabel) {
+        this.data = data;
+        this.freshLabel = freshLabel;
+        program.funcs.forEach(func -> funcs.put(func.entry.name, func));
+        for (var vtbl : program.vtables) {
+            var items = vtbl.getItems();
+            for (var i = 0; i < items.size(); i++) {
+                if (!vtableOf.containsKey(items.get(i).name)) {
+                    vtableOf.put(items.get(i).name, vtbl);
+                    offsetOf.put(items.get(i).name, 8 + 4 * i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Inline the hot calls of a function.
+     *
+     * @param func    function, as emitted
+     * @param profile its profile, to which the counts of the inlined instructions are added
+     * @return the function with calls inlined
+     */
+    TacFunc apply(TacFunc func, ProfileData.FuncProfile profile) {
+        var seq = new ArrayList<TacInstr>();
+        var temps = func.getUsedTempCount();
+        var growth = 0;
+
+        for (var instr : func.getInstrSeq()) {
+            var count = profile.count(instr);
+            Optional<TacFunc> callee = Optional.empty();
+            if (count >= HOT && instr instanceof TacInstr.IndirectCall) {
+                callee = profile.callee(instr).map(funcs::get);
+            } else if (count >= HOT && instr instanceof TacInstr.DirectCall
+                    && !((TacInstr.DirectCall) instr).entry.isIntrinsic()) {
+                callee = Optional.ofNullable(funcs.get(((TacInstr.DirectCall) instr).entry.name));
+            }
+            var size = callee.map(Inliner::sizeOf).orElse(Integer.MAX_VALUE);
+            if (callee.isEmpty() || callee.get() == func || size > MAX_CALLEE_SIZE || growth + size > MAX_GROWTH) {
+                seq.add(instr);
+                continue;
+            }
+            var g = callee.get();
+
+            // Match the pushes of the arguments, at the end of what is emitted so far
+            var end = seq.size();
+            var begin = end;
+            TacInstr.Binary captured = null;
+            if (instr instanceof TacInstr.IndirectCall) {
+                var entry = ((TacInstr.IndirectCall) instr).entry;
+                begin = end - PUSH_LOOP_LENGTH;
+                if (begin < 0 || !isPushLoop(seq.subList(begin, end)) || !vtableOf.containsKey(g.entry.name)) {
+                    seq.add(instr);
+                    continue;
+                }
+                captured = (TacInstr.Binary) seq.get(begin + 2);
+                while (begin > 0 && seq.get(begin - 1) instanceof TacInstr.Parm) {
+                    begin--;
+                }
+                var loadEntry = begin > 0 ? seq.get(begin - 1) : null;
+                if (!(loadEntry instanceof TacInstr.Memory && ((TacInstr.Memory) loadEntry).dst.equals(entry))) {
+                    seq.add(instr); // after a go, or not emitted as expected
+                    continue;
+                }
+            } else {
+                while (begin > 0 && seq.get(begin - 1) instanceof TacInstr.Parm) {
+                    begin--;
+                }
+                if (begin > 0 && seq.get(begin - 1) instanceof TacInstr.GoLabel) {
+                    seq.add(instr);
+                    continue;
+                }
+            }
+            var args = new ArrayList<Temp>();
+            for (var i = begin; i < end && seq.get(i) instanceof TacInstr.Parm; i++) {
+                args.add(((TacInstr.Parm) seq.get(i)).value);
+            }
+            var capturedCount = captured == null ? g.numArgs - args.size() : profile.args(instr) - args.size();
+            if (capturedCount < 0 || (captured == null && capturedCount != 0)) {
+                seq.add(instr);
+                continue;
+            }
+
+            var original = new ArrayList<>(seq.subList(begin, end));
+            original.add(instr);
+            seq.subList(begin, end).clear();
+            var base = temps;
+            temps += g.getUsedTempCount();
+            var fast = freshLabel.get();
+            var done = freshLabel.get();
+            var added = new ArrayList<TacInstr>();
+
+            if (captured != null) {
+                var entry = ((TacInstr.IndirectCall) instr).entry;
+                var gv = new Temp(temps++);
+                var ge = new Temp(temps++);
+                var gc = new Temp(temps++);
+                added.add(new TacInstr.LoadVTbl(gv, vtableOf.get(g.entry.name)));
+                added.add(new TacInstr.Memory(TacInstr.Memory.Op.LOAD, ge, gv, offsetOf.get(g.entry.name)));
+                added.add(new TacInstr.Binary(TacInstr.Binary.Op.EQU, gc, entry, ge));
+                added.add(new TacInstr.CondBranch(TacInstr.CondBranch.Op.BNEZ, gc, fast));
+                added.forEach(i -> profile.setCount(i, count));
+                original.forEach(i -> profile.setCount(i, 0));
+                added.addAll(original);
+                added.add(new TacInstr.Branch(done));
+                added.add(new TacInstr.Mark(fast));
+                guarded++;
+            } else {
+                direct++;
+            }
+
+            var params = new ArrayList<TacInstr>();
+            for (var i = 0; i < args.size(); i++) {
+                params.add(new TacInstr.Assign(new Temp(base + i), args.get(i)));
+            }
+            for (var j = 0; j < capturedCount; j++) {
+                params.add(new TacInstr.Memory(TacInstr.Memory.Op.LOAD, new Temp(base + args.size() + j),
+                        captured.lhs, 8 + 4 * j));
+            }
+            for (var temp : upwardExposed(g).tailSet(new Temp(args.size() + capturedCount))) {
+                params.add(new TacInstr.LoadImm4(new Temp(base + temp.index), 0));
+            }
+            params.forEach(i -> profile.setCount(i, count));
+            added.addAll(params);
+            added.addAll(body(g, base, dst(instr), done, count, profile));
+            added.add(new TacInstr.Mark(done));
+
+            seq.addAll(added);
+            growth += size;
+        }
+
+        return func.withInstrSeq(seq, temps);
+    }
+
+    /**
+     * Rename the body of a function to be inlined.
+     */
+    private List<TacInstr> body(TacFunc g, int base, Optional<Temp> dst, Label done, long count,
+                                ProfileData.FuncProfile caller) {
+        var temps = new HashMap<Temp, Temp>();
+        for (var i = 0; i < g.getUsedTempCount(); i++) {
+            temps.put(new Temp(i), new Temp(base + i));
+        }
+        var labels = new HashMap<String, Label>();
+        for (var instr : g.getInstrSeq()) {
+            if (instr.isLabel() && !instr.label.isFunc()) {
+                labels.put(instr.label.name, freshLabel.get());
+            }
+        }
+
+        var calleeProfile = profiles.computeIfAbsent(g.entry.name, name -> data.of(g));
+        var body = new ArrayList<TacInstr>();
+        for (var instr : g.getInstrSeq()) {
+            List<TacInstr> renamed;
+            if (instr.isLabel()) {
+                renamed = instr.label.isFunc() ? List.of() : List.of(new TacInstr.Mark(labels.get(instr.label.name)));
+            } else if (instr instanceof TacInstr.Memo) {
+                renamed = List.of();
+            } else if (instr instanceof TacInstr.Branch) {
+                renamed = List.of(new TacInstr.Branch(labels.get(instr.label.name)));
+            } else if (instr instanceof TacInstr.CondBranch) {
+                var jump = (TacInstr.CondBranch) instr;
+                renamed = List.of(new TacInstr.CondBranch(jump.op, temps.get(jump.cond),
+                        labels.get(jump.target.name)));
+            } else if (instr instanceof TacInstr.Return) {
+                var value = ((TacInstr.Return) instr).value;
+                renamed = new ArrayList<>();
+                if (dst.isPresent() && value.isPresent()) {
+                    renamed.add(new TacInstr.Assign(dst.get(), temps.get(value.get())));
+                }
+                renamed.add(new TacInstr.Branch(done));
+            } else {
+                renamed = List.of(instr.map(temps));
+            }
+
+            // Scale the counts of the callee to this site
+            var scaled = calleeProfile.filter(p -> p.invocations > 0)
+                    .map(p -> (long) ((double) p.count(instr) * count / p.invocations))
+                    .orElse(count);
+            renamed.forEach(i -> caller.setCount(i, scaled));
+            body.addAll(renamed);
+        }
+        return body;
+    }
+
+    private NavigableSet<Temp> upwardExposed(TacFunc g) {
+        return upwardExposed.computeIfAbsent(g.entry.name, name -> {
+            var cfg = new CFGBuilder<TacInstr>().buildFrom(g.getInstrSeq());
+            new LivenessAnalyzer<TacInstr>().accept(cfg);
+            return new TreeSet<>(cfg.getBlock(0).liveIn);
+        });
+    }
+
+    /**
+     * Check the instructions which push the captured values of a closure, as emitted for a call.
+     */
+    private static boolean isPushLoop(List<TacInstr> seq) {
+        if (!(seq.get(0) instanceof TacInstr.LoadImm4 && ((TacInstr.LoadImm4) seq.get(0)).value == 0
+                && seq.get(1) instanceof TacInstr.LoadImm4 && ((TacInstr.LoadImm4) seq.get(1)).value == 8
+                && seq.get(2) instanceof TacInstr.Binary
+                && ((TacInstr.Binary) seq.get(2)).op == TacInstr.Binary.Op.ADD
+                && ((TacInstr.Binary) seq.get(2)).rhs.equals(((TacInstr.LoadImm4) seq.get(1)).dst)
+                && seq.get(3) instanceof TacInstr.LoadImm4
+                && seq.get(4) instanceof TacInstr.Mark
+                && seq.get(5) instanceof TacInstr.Binary
+                && seq.get(6) instanceof TacInstr.CondBranch
+                && seq.get(7) instanceof TacInstr.Memory
+                && seq.get(8) instanceof TacInstr.Parm
+                && seq.get(14) instanceof TacInstr.Branch
+                && seq.get(15) instanceof TacInstr.Mark)) {
+            return false;
+        }
+        var loop = seq.get(4).label;
+        var exit = seq.get(15).label;
+        return seq.get(14).label.equals(loop) && ((TacInstr.CondBranch) seq.get(6)).target.equals(exit);
+    }
+
+    private static Optional<Temp> dst(TacInstr call) {
+        return call instanceof TacInstr.IndirectCall
+                ? ((TacInstr.IndirectCall) call).dst : ((TacInstr.DirectCall) call).dst;
+    }
+
+    private static int sizeOf(TacFunc func) {
+        return (int) func.getInstrSeq().stream()
+                .filter(instr -> !instr.isLabel() && !(instr instanceof TacInstr.Memo))
+                .count();
+    }
+}
@@ -2,16 +2,29 @@ package decaf.backend.opt;
 
 import decaf.driver.Config;
 import decaf.driver.Phase;
+import decaf.lowlevel.label.Label;
+import decaf.lowlevel.log.Log;
 import decaf.lowlevel.tac.Simulator;
+import decaf.lowlevel.tac.TacFunc;
 import decaf.lowlevel.tac.TacProg;
 
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.function.Supplier;
 
 /**
- * TAC optimization phase: optimize a TAC program.
- * <p>
- * The original decaf compiler has NO optimization, thus, we implement the transformation as identity function.
+ * TAC optimization phase: optimize a TAC program, function by function, in this order.
+ * <ol>
+ *     <li>Only given a profile ({@code --pgo}): hot calls to small functions are inlined ({@link Inliner}), and basic
+ *     blocks are reordered so that hot paths fall through ({@link BlockLayout}).</li>
+ *     <li>Unless {@code --no-opt}: the function is put in SSA form ({@link SsaBuilder}), constants are propagated
+ *     ({@link ConstantPropagation}), then copies ({@link CopyPropagation}), and redundant computations are removed
+ *     ({@link ValueNumbering}). Back in TAC ({@link SsaDestructor}), dead code is removed
+ *     ({@link DeadCodeElimination}).</li>
+ * </ol>
+ * With neither, the program is left as it is.
  */
 public class Optimizer extends Phase<TacProg, TacProg> {
     public Optimizer(Config config) {
@@ -20,7 +33,88 @@ public class Optimizer extends Phase<TacProg, TacProg> {
 
     @Override
     public TacProg transform(TacProg input) {
-        return input;
+        var freshLabel = freshLabels(input);
+        var program = input;
+        if (config.pgo.isPresent()) {
+            program = profileGuided(program, freshLabel);
+        }
+        if (config.optimize) {
+            program = optimize(program, freshLabel);
+        }
+        return program;
+    }
+
+    /**
+     * Inline and lay out functions by a profile.
+     */
+    private TacProg profileGuided(TacProg program, Supplier<Label> freshLabel) {
+        ProfileData data;
+        try {
+            data = ProfileData.read(config.pgo.get());
+        } catch (IOException e) {
+            Log.warn("cannot read profile, optimize without it: %s", e);
+            return program;
+        }
+
+        var inliner = new Inliner(program, data, freshLabel);
+        var layout = new BlockLayout(freshLabel);
+        var funcs = new ArrayList<TacFunc>();
+        var profiled = 0;
+        for (var func : program.funcs) {
+            var profile = data.of(func);
+            if (profile.isPresent()) {
+                profiled++;
+                func = layout.apply(inliner.apply(func, profile.get()), profile.get());
+            }
+            funcs.add(func);
+        }
+        Log.info("pgo: %d of %d functions profiled, %d calls inlined (%d guarded), %d blocks moved, %d jumps dropped",
+                profiled, program.funcs.size(), inliner.guarded + inliner.direct, inliner.guarded, layout.moved,
+                layout.dropped);
+        return new TacProg(program.vtables, funcs);
+    }
+
+    /**
+     * Optimize every function in SSA form. Blocks keep their order.
+     */
+    private TacProg optimize(TacProg program, Supplier<Label> freshLabel) {
+        var builder = new SsaBuilder(freshLabel);
+        var constants = new ConstantPropagation();
+        var copies = new CopyPropagation();
+        var values = new ValueNumbering();
+        var destructor = new SsaDestructor(freshLabel);
+        var dce = new DeadCodeElimination();
+        var funcs = new ArrayList<TacFunc>();
+        for (var func : program.funcs) {
+            var ssa = builder.build(func);
+            constants.apply(ssa);
+            copies.apply(ssa);
+            values.apply(ssa);
+            funcs.add(dce.apply(destructor.destruct(ssa)));
+        }
+        Log.info("sccp: %d instructions folded, %d branches resolved, %d blocks removed", constants.folded,
+                constants.resolved, constants.removed);
+        Log.info("copies: %d copies and %d phis propagated", copies.copies, copies.phis);
+        Log.info("gvn: %d computations and %d loads removed", values.removed, values.loads);
+        Log.info("ssa: %d phi arguments coalesced, %d copies left", destructor.coalesced, destructor.copies);
+        Log.info("dce: %d instructions and %d stores removed", dce.removed, dce.storesRemoved);
+        return new TacProg(program.vtables, funcs);
+    }
+
+    /**
+     * Make fresh labels, numbered after those emitted by the TAC generator.
+     */
+    private static Supplier<Label> freshLabels(TacProg program) {
+        var next = 0;
+        for (var func : program.funcs) {
+            for (var instr : func.getInstrSeq()) {
+                if (instr.isLabel() && instr.label.name.matches("_L\\d+")) {
+                    next = Math.max(next, Integer.parseInt(instr.label.name.substring(2)) + 1);
+                }
+            }
+        }
+        var counter = new int[]{next};
+        return () -> new Label("_L" + counter[0]++);
     }
 
     @Override
@@ -37,7 +131,7 @@ public class Optimizer extends Phase<TacProg, TacProg> {
             }
 
             // and then execute it using our simulator.
-            var simulator = new Simulator(System.in, config.output);
+            var simulator = new Simulator(System.in, config.output, config.simulator);
             simulator.execute(program);
         }
     }
@@ -0,0 +1,274 @@
+package decaf.backend.opt;
+
+import decaf.lowlevel.tac.TacFunc;
+import decaf.lowlevel.tac.TacInstr;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * A profile written by the simulator with {@code --profile}, read back to guide optimization.
+ * <p>
+ * Counts are keyed by function label, and by the offset of an instruction in its function, where labels and memos take
+ * no space. The profile thus fits only the TAC which it was taken on, i.e. that of {@code -t PA3}: a function of a
+ * different size is taken as not profiled.
+ */
+final class ProfileData {
+    /**
+     * The profile of a function, attached to its instructions.
+     */
+    static final class FuncProfile {
+        /**
+         * Number of calls.
+         */
+        final long invocations;
+
+        /**
+         * Execution count of every instruction, i.e. that of its basic block.
+         */
+        private final Map<TacInstr, Long> counts = new IdentityHashMap<>();
+
+        /**
+         * Label of the only function called by every indirect call which always called the same one.
+         */
+        private final Map<TacInstr, String> callees = new IdentityHashMap<>();
+
+        /**
+         * Number of arguments passed by every such call, captured values included.
+         */
+        private final Map<TacInstr, Integer> args = new IdentityHashMap<>();
+
+        private FuncProfile(long invocations) {
+            this.invocations = invocations;
+        }
+
+        long count(TacInstr instr) {
+            return counts.getOrDefault(instr, 0L);
+        }
+
+        /**
+         * Set the execution count of an instruction added by an optimization.
+         */
+        void setCount(TacInstr instr, long count) {
+            counts.put(instr, count);
+        }
+
+        Optional<String> callee(TacInstr instr) {
+            return Optional.ofNullable(callees.get(instr));
+        }
+
+        int args(TacInstr instr) {
+            return args.getOrDefault(instr, 0);
+        }
+    }
+
+    private final Map<String, Map<?, ?>> functions = new HashMap<>();
+
+    private ProfileData() {
+    }
+
+    /**
+     * Read a profile.
+     *
+     * @param path path of {@code <name>.profile.json}
+     * @return profile
+     * @throws IOException if the file cannot be read, or is not a profile
+     */
+    static ProfileData read(Path path) throws IOException {
+        var data = new ProfileData();
+        try {
+            var root = (Map<?, ?>) new Json(Files.readString(path)).parse();
+            for (var func : (List<?>) root.get("functions")) {
+                var map = (Map<?, ?>) func;
+                data.functions.put((String) map.get("label"), map);
+            }
+        } catch (ClassCastException | NullPointerException | IllegalArgumentException e) {
+            throw new IOException("not a profile: " + path, e);
+        }
+        return data;
+    }
+
+    /**
+     * Attach the profile of a function to its instructions.
+     *
+     * @param func function
+     * @return its profile, if present and of the same size
+     */
+    Optional<FuncProfile> of(TacFunc func) {
+        var map = functions.get(func.entry.name);
+        if (map == null) {
+            return Optional.empty();
+        }
+
+        var instrs = new ArrayList<TacInstr>();
+        for (var instr : func.getInstrSeq()) {
+            if (!instr.isLabel() && !(instr instanceof TacInstr.Memo)) {
+                instrs.add(instr);
+            }
+        }
+        if (((Long) map.get("size")).intValue() != instrs.size()) {
+            return Optional.empty();
+        }
+
+        var profile = new FuncProfile((Long) map.get("invocations"));
+        var blocks = new HashMap<Integer, Long>();
+        for (var block : (List<?>) map.get("blocks")) {
+            var b = (Map<?, ?>) block;
+            blocks.put(((Long) b.get("offset")).intValue(), (Long) b.get("count"));
+        }
+        var count = 0L;
+        for (var offset = 0; offset < instrs.size(); offset++) {
+            count = blocks.getOrDefault(offset, count);
+            profile.counts.put(instrs.get(offset), count);
+        }
+        for (var call : (List<?>) map.get("calls")) {
+            var c = (Map<?, ?>) call;
+            var callee = (String) c.get("callee");
+            var offset = ((Long) c.get("offset")).intValue();
+            if (callee != null && offset < instrs.size()) {
+                profile.callees.put(instrs.get(offset), callee);
+                profile.args.put(instrs.get(offset), ((Long) c.get("args")).intValue());
+            }
+        }
+        return Optional.of(profile);
+    }
+
+    /**
+     * Just enough of a JSON parser for profiles: numbers are integers, as {@link Long}s.
+     */
+    private static final class Json {
+        private final String text;
+        private int pos = 0;
+
+        Json(String text) {
+            this.text = text;
+        }
+
+        Object parse() {
+            var value = value();
+            skipSpaces();
+            if (pos != text.length()) {
+                throw error();
+            }
+            return value;
+        }
+
+        private Object value() {
+            skipSpaces();
+            if (pos == text.length()) {
+                throw error();
+            }
+            var c = text.charAt(pos);
+            switch (c) {
+                case '{' -> {
+                    pos++;
+                    var map = new HashMap<String, Object>();
+                    if (!consume('}')) {
+                        do {
+                            skipSpaces();
+                            var key = string();
+                            expect(':');
+                            map.put(key, value());
+                        } while (consume(','));
+                        expect('}');
+                    }
+                    return map;
+                }
+                case '[' -> {
+                    pos++;
+                    var list = new ArrayList<>();
+                    if (!consume(']')) {
+                        do {
+                            list.add(value());
+                        } while (consume(','));
+                        expect(']');
+                    }
+                    return list;
+                }
+                case '"' -> {
+                    return string();
+                }
+                default -> {
+                    if (text.startsWith("null", pos)) {
+                        pos += 4;
+                        return null;
+                    }
+                    if (text.startsWith("true", pos) || text.startsWith("false", pos)) {
+                        var value = c == 't';
+                        pos += value ? 4 : 5;
+                        return value;
+                    }
+                    var start = pos;
+                    if (c == '-') {
+                        pos++;
+                    }
+                    while (pos < text.length() && Character.isDigit(text.charAt(pos))) {
+                        pos++;
+                    }
+                    try {
+                        return Long.parseLong(text.substring(start, pos));
+                    } catch (NumberFormatException e) {
+                        throw error();
+                    }
+                }
+            }
+        }
+
+        private String string() {
+            expect('"');
+            var sb = new StringBuilder();
+            while (pos < text.length() && text.charAt(pos) != '"') {
+                var c = text.charAt(pos++);
+                if (c == '\\' && pos < text.length()) {
+                    c = text.charAt(pos++);
+                    switch (c) {
+                        case 'n' -> sb.append('\n');
+                        case 't' -> sb.append('\t');
+                        case 'r' -> sb.append('\r');
+                        case 'b' -> sb.append('\b');
+                        case 'f' -> sb.append('\f');
+                        case 'u' -> {
+                            if (pos + 4 > text.length()) {
+                                throw error();
+                            }
+                            sb.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                            pos += 4;
+                        }
+                        default -> sb.append(c);
+                    }
+                } else {
+                    sb.append(c);
+                }
+            }
+            expect('"');
+            return sb.toString();
+        }
+
+        private void skipSpaces() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private boolean consume(char c) {
+            skipSpaces();
+            if (pos < text.length() && text.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char c) {
+            if (!consume(c)) {
+                throw error();
+            }
+        }
+
+        private IllegalArgumentException error() {
+            return new IllegalArgumentException("malformed JSON at offset " + pos);
+        }
+    }
+}
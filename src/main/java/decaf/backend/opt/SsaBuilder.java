@@ -0,0 +1,242 @@
+package decaf.backend.opt;
+
+import decaf.backend.dataflow.BasicBlock;
+import decaf.backend.dataflow.CFGBuilder;
+import decaf.backend.dataflow.DominatorTree;
+import decaf.backend.dataflow.LivenessAnalyzer;
+import decaf.lowlevel.instr.Temp;
+import decaf.lowlevel.label.Label;
+import decaf.lowlevel.tac.TacFunc;
+import decaf.lowlevel.tac.TacInstr;
+
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Translate a TAC function into SSA form.
+ * <p>
+ * Phis are placed at the iterated dominance frontiers of the blocks writing a temp, where the temp is live (pruned
+ * SSA), and temps are renamed along the dominator tree. Blocks unreachable from the entry are dropped.
+ * <p>
+ * A frame starts with the arguments, and all other temps zero, which programs rely on for variables declared without
+ * initializer. Besides the declared parameters, a lambda receives its captured variables in the temps right after
+ * them, which {@link TacFunc#numArgs} does not count. Every temp which may be read before written thus counts as a
+ * parameter, whose value on entry stays in its temp.
+ */
+final class SsaBuilder {
+    private final Supplier<Label> freshLabel;
+
+    SsaBuilder(Supplier<Label> freshLabel) {
+        this.freshLabel = freshLabel;
+    }
+
+    SsaFunc build(TacFunc func) {
+        // Temps remapped for captured variables may lie beyond the count a function records
+        var tempUsed = Math.max(func.getUsedTempCount(), func.numArgs);
+        for (var instr : func.getInstrSeq()) {
+            for (var temp : instr.getRead()) {
+                tempUsed = Math.max(tempUsed, temp.index + 1);
+            }
+            for (var temp : instr.getWritten()) {
+                tempUsed = Math.max(tempUsed, temp.index + 1);
+            }
+        }
+
+        var cfg = new CFGBuilder<TacInstr>().buildFrom(func.getInstrSeq());
+        new LivenessAnalyzer<TacInstr>().accept(cfg);
+        var cfgDom = new DominatorTree(cfg);
+
+        var numParams = func.numArgs;
+        for (var temp : cfg.getBlock(0).liveIn) {
+            numParams = Math.max(numParams, temp.index + 1);
+        }
+        var ssa = new SsaFunc(func, numParams, tempUsed);
+        var entry = new SsaFunc.Block(freshLabel.get());
+        ssa.blocks.add(entry);
+
+        // One block per reachable block of the CFG, in order
+        var blockOf = new HashMap<String, SsaFunc.Block>();
+        var cfgBlocks = new ArrayList<BasicBlock<TacInstr>>();
+        for (var bb : cfg) {
+            if (cfgDom.isReachable(bb.id)) {
+                var block = new SsaFunc.Block(bb.label.orElseGet(freshLabel));
+                blockOf.put(block.label.name, block);
+                ssa.blocks.add(block);
+                cfgBlocks.add(bb);
+            }
+        }
+        entry.instrs.add(new TacInstr.Branch(ssa.blocks.get(1).label));
+        for (var i = 0; i < cfgBlocks.size(); i++) {
+            var bb = cfgBlocks.get(i);
+            var block = ssa.blocks.get(i + 1);
+            bb.locs.forEach(loc -> block.instrs.add(loc.instr));
+            switch (bb.kind) {
+                case CONTINUOUS -> block.instrs.add(new TacInstr.Branch(ssa.blocks.get(i + 2).label));
+                case END_BY_COND_JUMP -> {
+                    var next = ssa.blocks.get(i + 2).label;
+                    if (bb.getLastInstr().label.name.equals(next.name)) {
+                        block.instrs.set(block.instrs.size() - 1, new TacInstr.Branch(next));
+                    } else {
+                        block.instrs.add(new TacInstr.Branch(next));
+                    }
+                }
+                default -> {
+                }
+            }
+        }
+        for (var block : ssa.blocks) {
+            for (var i = block.terminatorIndex(); i < block.instrs.size(); i++) {
+                var instr = block.instrs.get(i);
+                if (!instr.isReturn()) {
+                    SsaFunc.addEdge(block, blockOf.get(instr.label.name));
+                }
+            }
+        }
+
+        var dom = ssa.dominators();
+        insertPhis(ssa, dom, cfgBlocks);
+        rename(ssa, dom);
+        return ssa;
+    }
+
+    /**
+     * Copy an instruction writing another temp.
+     */
+    private static TacInstr withDst(TacInstr instr, Temp dst) {
+        if (instr instanceof TacInstr.Assign) {
+            return new TacInstr.Assign(dst, ((TacInstr.Assign) instr).src);
+        } else if (instr instanceof TacInstr.Unary) {
+            var unary = (TacInstr.Unary) instr;
+            return new TacInstr.Unary(unary.op, dst, unary.operand);
+        } else if (instr instanceof TacInstr.Binary) {
+            var binary = (TacInstr.Binary) instr;
+            return new TacInstr.Binary(binary.op, dst, binary.lhs, binary.rhs);
+        } else if (instr instanceof TacInstr.Memory) {
+            var memory = (TacInstr.Memory) instr;
+            return new TacInstr.Memory(memory.op, dst, memory.base, memory.offset);
+        } else if (instr instanceof TacInstr.IndirectCall) {
+            return new TacInstr.IndirectCall(dst, ((TacInstr.IndirectCall) instr).entry);
+        } else if (instr instanceof TacInstr.Join) {
+            return new TacInstr.Join(dst, ((TacInstr.Join) instr).task);
+        } else if (instr instanceof TacInstr.NewChan) {
+            return new TacInstr.NewChan(dst, ((TacInstr.NewChan) instr).capacity);
+        } else if (instr instanceof TacInstr.Recv) {
+            return new TacInstr.Recv(dst, ((TacInstr.Recv) instr).chan);
+        }
+        throw new IllegalArgumentException("no source to read: " + instr);
+    }
+
+    private void insertPhis(SsaFunc ssa, DominatorTree dom, List<BasicBlock<TacInstr>> cfgBlocks) {
+        var defSites = new HashMap<Temp, Set<Integer>>();
+        for (var i = 0; i < ssa.numParams; i++) {
+            defSites.computeIfAbsent(new Temp(i), t -> new TreeSet<>()).add(0);
+        }
+        for (var block : ssa.blocks) {
+            for (var instr : block.instrs) {
+                for (var dst : instr.dsts) {
+                    defSites.computeIfAbsent(dst, t -> new TreeSet<>()).add(block.id);
+                }
+            }
+        }
+
+        for (var entry : defSites.entrySet()) {
+            var temp = entry.getKey();
+            var hasPhi = new HashSet<Integer>();
+            var work = new ArrayDeque<>(entry.getValue());
+            while (!work.isEmpty()) {
+                var x = work.pop();
+                for (var y : dom.frontier(x)) {
+                    // The entry has no predecessors, so block y > 0 comes from the CFG
+                    if (!hasPhi.contains(y) && cfgBlocks.get(y - 1).liveIn.contains(temp)) {
+                        var block = ssa.blocks.get(y);
+                        var phi = new SsaFunc.Phi(temp);
+                        block.preds.forEach(p -> phi.args.add(temp));
+                        block.phis.add(phi);
+                        hasPhi.add(y);
+                        work.push(y);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Rename temps in preorder of the dominator tree, every write to a fresh temp, and every read to the temp of the
+     * write which reaches it. Parameters keep their temps.
+     */
+    private void rename(SsaFunc ssa, DominatorTree dom) {
+        var stacks = new HashMap<Temp, Deque<Temp>>();
+        for (var i = 0; i < ssa.numParams; i++) {
+            stacks.computeIfAbsent(new Temp(i), t -> new ArrayDeque<>()).push(new Temp(i));
+        }
+
+        // Blocks to visit, and null marking where to undo the writes of the block under it
+        var work = new LinkedList<SsaFunc.Block>();
+        var written = new ArrayDeque<List<Temp>>();
+        work.push(ssa.blocks.get(0));
+        while (!work.isEmpty()) {
+            var block = work.pop();
+            if (block == null) {
+                for (var temp : written.pop()) {
+                    stacks.get(temp).pop();
+                }
+                continue;
+            }
+
+            var writes = new ArrayList<Temp>();
+            for (var phi : block.phis) {
+                var name = ssa.freshTemp();
+                stacks.computeIfAbsent(phi.dst, t -> new ArrayDeque<>()).push(name);
+                writes.add(phi.dst);
+                phi.dst = name;
+            }
+            for (var i = 0; i < block.instrs.size(); i++) {
+                var instr = block.instrs.get(i);
+                if (instr.srcs.length == 0 && instr.dsts.length == 0) {
+                    continue;
+                }
+                var map = new HashMap<Temp, Temp>();
+                for (var src : instr.srcs) {
+                    map.put(src, current(stacks, src));
+                }
+                if (instr.dsts.length == 1 && map.containsKey(instr.dsts[0])) {
+                    // Reads the temp it writes, which a map cannot rename apart
+                    var dst = instr.dsts[0];
+                    var name = ssa.freshTemp();
+                    stacks.get(dst).push(name);
+                    writes.add(dst);
+                    block.instrs.set(i, withDst(instr.map(map), name));
+                    continue;
+                }
+                for (var dst : instr.dsts) {
+                    var name = ssa.freshTemp();
+                    stacks.computeIfAbsent(dst, t -> new ArrayDeque<>()).push(name);
+                    writes.add(dst);
+                    map.put(dst, name);
+                }
+                block.instrs.set(i, instr.map(map));
+            }
+            for (var succ : block.succs) {
+                var index = succ.preds.indexOf(block);
+                for (var phi : succ.phis) {
+                    // Not yet renamed: the phi still holds the original temp in its arguments
+                    phi.args.set(index, current(stacks, phi.args.get(index)));
+                }
+            }
+
+            work.push(null);
+            written.push(writes);
+            for (var child : dom.children(block.id)) {
+                work.push(ssa.blocks.get(child));
+            }
+        }
+    }
+
+    private static Temp current(Map<Temp, Deque<Temp>> stacks, Temp temp) {
+        var stack = stacks.get(temp);
+        if (stack == null || stack.isEmpty()) {
+            throw new IllegalStateException("read of " + temp + " before any write");
+        }
+        return stack.peek();
+    }
+}
@@ -0,0 +1,402 @@
+package decaf.backend.opt;
+
+import decaf.backend.dataflow.DominatorTree;
+import decaf.lowlevel.instr.Temp;
+import decaf.lowlevel.label.Label;
+import decaf.lowlevel.tac.TacFunc;
+import decaf.lowlevel.tac.TacInstr;
+
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Translate a function in SSA form back to TAC.
+ * <p>
+ * A phi becomes copies at the end of the predecessors, all copies along an edge taking place at once, i.e. as a
+ * parallel copy, which is sequentialized with a fresh temp for every cycle. Copies along an edge from a block with
+ * more than one successor go into a new block on that edge.
+ * <p>
+ * Most of these copies are coalesced away first: the destination and an argument of a phi are given the same temp
+ * when their live ranges do not interfere. In SSA form, two temps interfere iff one is live where the other is written,
+ * and the first is then written where it dominates the second. Parameters are never coalesced with each other.
+ * <p>
+ * Finally, blocks are emitted in order, dropping jumps to the next block, and temps are renumbered densely.
+ */
+final class SsaDestructor {
+    private final Supplier<Label> freshLabel;
+
+    /**
+     * Number of phi arguments coalesced with their phi, and of copies left.
+     */
+    int coalesced = 0;
+    int copies = 0;
+
+    private SsaFunc ssa;
+    private DominatorTree dom;
+
+    /**
+     * Block and index of the instruction writing every temp; -1 for a phi or parameter.
+     */
+    private int[] defBlock;
+    private int[] defIndex;
+
+    /**
+     * Temps live at the start of the body of every block, i.e. after its phis, and at its end.
+     */
+    private BitSet[] liveIn;
+    private BitSet[] liveOut;
+
+    /**
+     * Union-find of the temps, and the members of every class.
+     */
+    private int[] parent;
+    private final Map<Integer, List<Integer>> members = new HashMap<>();
+
+    SsaDestructor(Supplier<Label> freshLabel) {
+        this.freshLabel = freshLabel;
+    }
+
+    TacFunc destruct(SsaFunc ssa) {
+        this.ssa = ssa;
+        members.clear();
+        dom = ssa.dominators();
+        analyze();
+        coalesce();
+
+        // Rename, and place the copies of the phis
+        var code = new ArrayList<List<TacInstr>>();
+        for (var block : ssa.blocks) {
+            var instrs = new ArrayList<TacInstr>();
+            block.instrs.forEach(instr -> instrs.add(rename(instr)));
+            code.add(instrs);
+        }
+        var extra = new ArrayList<SsaFunc.Block>();
+        var extraCode = new ArrayList<List<TacInstr>>();
+        for (var block : ssa.blocks) {
+            for (var j = 0; j < block.preds.size(); j++) {
+                var dsts = new ArrayList<Temp>();
+                var srcs = new ArrayList<Temp>();
+                for (var phi : block.phis) {
+                    var dst = rep(phi.dst);
+                    var src = rep(phi.args.get(j));
+                    if (!dst.equals(src)) {
+                        dsts.add(dst);
+                        srcs.add(src);
+                    }
+                }
+                if (dsts.isEmpty()) {
+                    continue;
+                }
+
+                var pred = block.preds.get(j);
+                var moves = sequentialize(dsts, srcs);
+                copies += moves.size();
+                var predCode = code.get(pred.id);
+                if (pred.succs.size() == 1) {
+                    predCode.addAll(pred.terminatorIndex(), moves);
+                } else {
+                    var split = new SsaFunc.Block(freshLabel.get());
+                    moves.add(new TacInstr.Branch(block.label));
+                    for (var i = pred.terminatorIndex(); i < predCode.size(); i++) {
+                        predCode.set(i, retarget(predCode.get(i), block.label, split.label));
+                    }
+                    extra.add(split);
+                    extraCode.add(moves);
+                }
+            }
+        }
+
+        // Lay out, with the new blocks before the last one if it returns
+        var order = new ArrayList<>(ssa.blocks);
+        var orderCode = new ArrayList<>(code);
+        var last = order.size() - 1;
+        var lastCode = orderCode.get(last);
+        var at = lastCode.get(lastCode.size() - 1).isReturn() ? last : last + 1;
+        order.addAll(at, extra);
+        orderCode.addAll(at, extraCode);
+
+        var seq = new ArrayList<TacInstr>();
+        for (var k = 0; k < order.size(); k++) {
+            var next = k + 1 < order.size() ? order.get(k + 1).label.name : null;
+            var instrs = orderCode.get(k);
+            var n = instrs.size();
+            if (!instrs.get(n - 1).isReturn() && instrs.get(n - 1).label.name.equals(next)) {
+                instrs.remove(n - 1);
+            } else if (n >= 2 && instrs.get(n - 2) instanceof TacInstr.CondBranch
+                    && instrs.get(n - 2).label.name.equals(next)) {
+                var jump = (TacInstr.CondBranch) instrs.get(n - 2);
+                var op = jump.op == TacInstr.CondBranch.Op.BEQZ
+                        ? TacInstr.CondBranch.Op.BNEZ : TacInstr.CondBranch.Op.BEQZ;
+                instrs.set(n - 2, new TacInstr.CondBranch(op, jump.cond, instrs.get(n - 1).label));
+                instrs.remove(n - 1);
+            }
+            seq.add(new TacInstr.Mark(order.get(k).label));
+            seq.addAll(instrs);
+        }
+        if (!seq.get(seq.size() - 1).isReturn()) {
+            seq.add(new TacInstr.Return()); // not reached: the function ends in a loop
+        }
+
+        // Keep the labels jumped to
+        var targets = new HashSet<String>();
+        for (var instr : seq) {
+            if (!instr.isLabel() && instr.label != null) {
+                targets.add(instr.label.name);
+            }
+        }
+        var result = new ArrayList<TacInstr>();
+        result.add(ssa.func.getInstrSeq().get(0));
+        for (var instr : seq) {
+            if (!instr.isLabel() || targets.contains(instr.label.name)) {
+                result.add(instr);
+            }
+        }
+        return renumber(result);
+    }
+
+    /**
+     * Find where every temp is written, and the live temps of every block.
+     */
+    private void analyze() {
+        var n = ssa.getUsedTempCount();
+        defBlock = new int[n];
+        defIndex = new int[n];
+        Arrays.fill(defBlock, -1);
+        for (var i = 0; i < ssa.numParams; i++) {
+            defBlock[i] = 0;
+            defIndex[i] = -1;
+        }
+        for (var block : ssa.blocks) {
+            for (var phi : block.phis) {
+                defBlock[phi.dst.index] = block.id;
+                defIndex[phi.dst.index] = -1;
+            }
+            for (var i = 0; i < block.instrs.size(); i++) {
+                for (var dst : block.instrs.get(i).dsts) {
+                    defBlock[dst.index] = block.id;
+                    defIndex[dst.index] = i;
+                }
+            }
+        }
+
+        var size = ssa.blocks.size();
+        var use = new BitSet[size];
+        var def = new BitSet[size];
+        liveIn = new BitSet[size];
+        liveOut = new BitSet[size];
+        for (var block : ssa.blocks) {
+            var u = new BitSet();
+            var d = new BitSet();
+            for (var instr : block.instrs) {
+                for (var src : instr.srcs) {
+                    if (!d.get(src.index)) {
+                        u.set(src.index);
+                    }
+                }
+                for (var dst : instr.dsts) {
+                    d.set(dst.index);
+                }
+            }
+            use[block.id] = u;
+            def[block.id] = d;
+            liveIn[block.id] = (BitSet) u.clone();
+            liveOut[block.id] = new BitSet();
+        }
+
+        var order = dom.reversePostorder();
+        var changed = true;
+        while (changed) {
+            changed = false;
+            for (var k = order.size() - 1; k >= 0; k--) {
+                var block = ssa.blocks.get(order.get(k));
+                var out = new BitSet();
+                for (var succ : block.succs) {
+                    var in = (BitSet) liveIn[succ.id].clone();
+                    var index = succ.preds.indexOf(block);
+                    for (var phi : succ.phis) {
+                        in.clear(phi.dst.index);
+                    }
+                    for (var phi : succ.phis) {
+                        in.set(phi.args.get(index).index);
+                    }
+                    out.or(in);
+                }
+                if (!out.equals(liveOut[block.id])) {
+                    liveOut[block.id] = out;
+                    var in = (BitSet) out.clone();
+                    in.andNot(def[block.id]);
+                    in.or(use[block.id]);
+                    liveIn[block.id] = in;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    private void coalesce() {
+        var n = ssa.getUsedTempCount();
+        parent = new int[n];
+        for (var i = 0; i < n; i++) {
+            parent[i] = i;
+        }
+        for (var block : ssa.blocks) {
+            for (var phi : block.phis) {
+                for (var arg : phi.args) {
+                    var a = find(phi.dst.index);
+                    var b = find(arg.index);
+                    if (a != b && !(isParam(a) && isParam(b)) && !interfere(a, b)) {
+                        union(a, b);
+                        coalesced++;
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean isParam(int rep) {
+        return rep < ssa.numParams;
+    }
+
+    private int find(int temp) {
+        while (parent[temp] != temp) {
+            parent[temp] = parent[parent[temp]];
+            temp = parent[temp];
+        }
+        return temp;
+    }
+
+    /**
+     * Merge two classes, of which a parameter, if any, stays the representative.
+     */
+    private void union(int a, int b) {
+        if (isParam(b)) {
+            var t = a;
+            a = b;
+            b = t;
+        }
+        parent[b] = a;
+        var merged = members.computeIfAbsent(a, k -> new ArrayList<>(List.of(k)));
+        merged.addAll(Optional.ofNullable(members.remove(b)).orElse(List.of(b)));
+    }
+
+    private List<Integer> membersOf(int rep) {
+        return members.getOrDefault(rep, List.of(rep));
+    }
+
+    private boolean interfere(int a, int b) {
+        for (var u : membersOf(a)) {
+            for (var v : membersOf(b)) {
+                if (dominatesDef(u, v) && liveAt(u, v) || dominatesDef(v, u) && liveAt(v, u)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean dominatesDef(int u, int v) {
+        if (defBlock[u] == defBlock[v]) {
+            return defIndex[u] <= defIndex[v];
+        }
+        return dom.dominates(defBlock[u], defBlock[v]);
+    }
+
+    /**
+     * Is temp {@code u} live right after {@code v} is written?
+     */
+    private boolean liveAt(int u, int v) {
+        var block = ssa.blocks.get(defBlock[v]);
+        if (liveOut[block.id].get(u)) {
+            return true;
+        }
+        for (var i = defIndex[v] + 1; i < block.instrs.size(); i++) {
+            for (var src : block.instrs.get(i).srcs) {
+                if (src.index == u) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private Temp rep(Temp temp) {
+        var rep = find(temp.index);
+        return rep == temp.index ? temp : new Temp(rep);
+    }
+
+    private TacInstr rename(TacInstr instr) {
+        if (instr.srcs.length == 0 && instr.dsts.length == 0) {
+            return instr;
+        }
+        var map = new HashMap<Temp, Temp>();
+        for (var src : instr.srcs) {
+            map.put(src, rep(src));
+        }
+        for (var dst : instr.dsts) {
+            map.put(dst, rep(dst));
+        }
+        return instr.map(map);
+    }
+
+    /**
+     * Sequentialize a parallel copy: write a temp once no pending copy reads it, and break cycles with a fresh temp.
+     */
+    private List<TacInstr> sequentialize(List<Temp> dsts, List<Temp> srcs) {
+        var moves = new ArrayList<TacInstr>();
+        while (!dsts.isEmpty()) {
+            var ready = -1;
+            for (var i = 0; i < dsts.size() && ready < 0; i++) {
+                if (!srcs.contains(dsts.get(i))) {
+                    ready = i;
+                }
+            }
+            if (ready >= 0) {
+                moves.add(new TacInstr.Assign(dsts.remove(ready), srcs.remove(ready)));
+            } else {
+                // Every destination is read by another copy: save one, and read the copy instead
+                var saved = dsts.get(0);
+                var temp = ssa.freshTemp();
+                moves.add(new TacInstr.Assign(temp, saved));
+                srcs.replaceAll(src -> src.equals(saved) ? temp : src);
+            }
+        }
+        return moves;
+    }
+
+    private static TacInstr retarget(TacInstr instr, Label from, Label to) {
+        if (instr instanceof TacInstr.Branch && instr.label.name.equals(from.name)) {
+            return new TacInstr.Branch(to);
+        }
+        if (instr instanceof TacInstr.CondBranch && instr.label.name.equals(from.name)) {
+            var jump = (TacInstr.CondBranch) instr;
+            return new TacInstr.CondBranch(jump.op, jump.cond, to);
+        }
+        return instr;
+    }
+
+    /**
+     * Number temps in order of appearance, after the parameters.
+     */
+    private TacFunc renumber(List<TacInstr> seq) {
+        var numbers = new HashMap<Temp, Temp>();
+        for (var i = 0; i < ssa.numParams; i++) {
+            numbers.put(new Temp(i), new Temp(i));
+        }
+        var result = new ArrayList<TacInstr>();
+        for (var instr : seq) {
+            if (instr.srcs.length == 0 && instr.dsts.length == 0) {
+                result.add(instr);
+                continue;
+            }
+            var map = new HashMap<Temp, Temp>();
+            for (var src : instr.srcs) {
+                map.put(src, numbers.computeIfAbsent(src, t -> new Temp(numbers.size())));
+            }
+            for (var dst : instr.dsts) {
+                map.put(dst, numbers.computeIfAbsent(dst, t -> new Temp(numbers.size())));
+            }
+            result.add(instr.map(map));
+        }
+        return ssa.func.withInstrSeq(result, numbers.size());
+    }
+}
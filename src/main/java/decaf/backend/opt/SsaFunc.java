@@ -0,0 +1,164 @@
+package decaf.backend.opt;
+
+import decaf.backend.dataflow.DominatorTree;
+import decaf.lowlevel.instr.Temp;
+import decaf.lowlevel.label.Label;
+import decaf.lowlevel.tac.TacFunc;
+import decaf.lowlevel.tac.TacInstr;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * A function in static single assignment (SSA) form: every temp is written by exactly one instruction or phi, which
+ * dominates all its reads. Built by {@link SsaBuilder}, and translated back to TAC by {@link SsaDestructor}.
+ * <p>
+ * Control flow is explicit: every block ends with a {@code return}, a {@code branch}, or a conditional branch followed
+ * by a {@code branch} to where it would fall through, and blocks may be in any order. The entry block has no
+ * predecessors; it defines the parameters, which keep their temps {@code 0 .. numParams - 1}.
+ */
+final class SsaFunc {
+    /**
+     * A phi function at the start of a block: {@code dst = phi(args)}, taking the argument of the predecessor the
+     * control came from.
+     */
+    static final class Phi {
+        Temp dst;
+
+        /**
+         * One argument per predecessor, in the order of {@link Block#preds}.
+         */
+        final List<Temp> args = new ArrayList<>();
+
+        Phi(Temp dst) {
+            this.dst = dst;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s = phi(%s)", dst,
+                    args.stream().map(Temp::toString).collect(Collectors.joining(", ")));
+        }
+    }
+
+    static final class Block {
+        /**
+         * Index in {@link #blocks}, as of the last {@link #dominators()}.
+         */
+        int id;
+
+        final Label label;
+
+        final List<Phi> phis = new ArrayList<>();
+
+        final List<TacInstr> instrs = new ArrayList<>();
+
+        final List<Block> preds = new ArrayList<>();
+
+        /**
+         * Successors, those of a conditional branch first.
+         */
+        final List<Block> succs = new ArrayList<>();
+
+        Block(Label label) {
+            this.label = label;
+        }
+
+        /**
+         * Index of the first instruction of the block end: the conditional branch, if any, and the branch or return.
+         */
+        int terminatorIndex() {
+            var n = instrs.size();
+            return n >= 2 && instrs.get(n - 2) instanceof TacInstr.CondBranch ? n - 2 : n - 1;
+        }
+    }
+
+    final TacFunc func;
+
+    /**
+     * Blocks, the entry first.
+     */
+    final List<Block> blocks = new ArrayList<>();
+
+    /**
+     * Temps holding a value on entry: the arguments, and those read before written, see {@link SsaBuilder}.
+     */
+    final int numParams;
+
+    private int tempUsed;
+
+    SsaFunc(TacFunc func, int numParams, int tempUsed) {
+        this.func = func;
+        this.numParams = numParams;
+        this.tempUsed = tempUsed;
+    }
+
+    Temp freshTemp() {
+        return new Temp(tempUsed++);
+    }
+
+    /**
+     * Temps are numbered below this.
+     */
+    int getUsedTempCount() {
+        return tempUsed;
+    }
+
+    static void addEdge(Block from, Block to) {
+        from.succs.add(to);
+        to.preds.add(from);
+        for (var phi : to.phis) {
+            phi.args.add(null);
+        }
+    }
+
+    /**
+     * Remove an edge, and the arguments of the phis taken along it.
+     */
+    static void removeEdge(Block from, Block to) {
+        from.succs.remove(to);
+        var index = to.preds.indexOf(from);
+        to.preds.remove(index);
+        for (var phi : to.phis) {
+            phi.args.remove(index);
+        }
+    }
+
+    /**
+     * Number the blocks by their order, and build the dominator tree.
+     *
+     * @return dominator tree, on block ids
+     */
+    DominatorTree dominators() {
+        for (var i = 0; i < blocks.size(); i++) {
+            blocks.get(i).id = i;
+        }
+        return new DominatorTree(blocks.size(),
+                id -> blocks.get(id).preds.stream().map(b -> b.id).collect(Collectors.toList()),
+                id -> blocks.get(id).succs.stream().map(b -> b.id).collect(Collectors.toList()));
+    }
+
+    /**
+     * Remove the blocks which cannot be reached from the entry.
+     *
+     * @return if any was removed
+     */
+    boolean removeUnreachable() {
+        var dom = dominators();
+        var removed = blocks.removeIf(block -> !dom.isReachable(block.id));
+        if (removed) {
+            for (var block : blocks) {
+                for (var i = block.preds.size() - 1; i >= 0; i--) {
+                    if (!dom.isReachable(block.preds.get(i).id)) {
+                        block.preds.remove(i);
+                        for (var phi : block.phis) {
+                            phi.args.remove(i);
+                        }
+                    }
+                }
+            }
+        }
+        return removed;
+    }
+}
@@ -0,0 +1,191 @@
+package decaf.backend.opt;
+
+import decaf.lowlevel.instr.Temp;
+import decaf.lowlevel.tac.TacInstr;
+
+import java.util.*;
+
+/**
+ * Global value numbering in SSA form, along the dominator tree.
+ * <p>
+ * Blocks are visited in preorder of the dominator tree, and a pure computation, i.e. a {@code LoadImm4},
+ * {@code LoadVTbl}, {@code LoadStrConst}, {@code Unary} or {@code Binary}, is keyed by its operator and operands (in
+ * order, but for commutative operators). The computations of the blocks dominating the current one are available: a
+ * computation found there is removed, and its temp replaced by the one found, which is written where it dominates all
+ * reads.
+ * <p>
+ * Memory loads are keyed by base and offset, but only remain available until a store or any instruction which may
+ * write memory, e.g. a call, or which lets another coroutine run. They flow from a block into a successor only if the
+ * block is its only predecessor, as other paths may store. A store makes its value available to later loads of its
+ * address.
+ */
+final class ValueNumbering {
+    /**
+     * Number of computations and of loads removed.
+     */
+    int removed = 0;
+    int loads = 0;
+
+    private final Map<Temp, Temp> replace = new HashMap<>();
+
+    /**
+     * Computations available in the current block, and those added by every block on the way down the tree.
+     */
+    private final Map<List<Object>, Temp> available = new HashMap<>();
+    private final Deque<List<List<Object>>> added = new ArrayDeque<>();
+
+    /**
+     * Loads available at the end of every block visited.
+     */
+    private final Map<SsaFunc.Block, Map<List<Object>, Temp>> memoryOut = new HashMap<>();
+
+    void apply(SsaFunc ssa) {
+        replace.clear();
+        available.clear();
+        memoryOut.clear();
+        var dom = ssa.dominators();
+
+        // Blocks to visit, and null marking where to drop the computations of the block under it
+        var work = new LinkedList<SsaFunc.Block>();
+        work.push(ssa.blocks.get(0));
+        while (!work.isEmpty()) {
+            var block = work.pop();
+            if (block == null) {
+                added.pop().forEach(available::remove);
+                continue;
+            }
+
+            var memory = new HashMap<List<Object>, Temp>();
+            if (block.preds.size() == 1 && memoryOut.containsKey(block.preds.get(0))) {
+                memory.putAll(memoryOut.get(block.preds.get(0)));
+            }
+            added.push(visit(block, memory));
+            memoryOut.put(block, memory);
+
+            work.push(null);
+            for (var child : dom.children(block.id)) {
+                work.push(ssa.blocks.get(child));
+            }
+        }
+
+        for (var block : ssa.blocks) {
+            for (var phi : block.phis) {
+                phi.args.replaceAll(this::find);
+            }
+            for (var i = 0; i < block.instrs.size(); i++) {
+                var instr = block.instrs.get(i);
+                if (instr.srcs.length == 0) {
+                    continue;
+                }
+                var map = new HashMap<Temp, Temp>();
+                for (var src : instr.srcs) {
+                    map.put(src, find(src));
+                }
+                for (var dst : instr.dsts) {
+                    map.put(dst, dst);
+                }
+                block.instrs.set(i, instr.map(map));
+            }
+        }
+    }
+
+    /**
+     * Number the computations of a block.
+     *
+     * @return keys added to the available computations
+     */
+    private List<List<Object>> visit(SsaFunc.Block block, Map<List<Object>, Temp> memory) {
+        var keys = new ArrayList<List<Object>>();
+        for (var it = block.instrs.iterator(); it.hasNext(); ) {
+            var instr = it.next();
+            if (instr instanceof TacInstr.Memory) {
+                var access = (TacInstr.Memory) instr;
+                var address = List.<Object>of(find(access.base).index, access.offset);
+                if (access.op == TacInstr.Memory.Op.LOAD) {
+                    var found = memory.get(address);
+                    if (found != null) {
+                        replace.put(access.dst, found);
+                        it.remove();
+                        loads++;
+                    } else {
+                        memory.put(address, access.dst);
+                    }
+                } else {
+                    // Any other address may be the same
+                    memory.clear();
+                    memory.put(address, find(access.dst));
+                }
+                continue;
+            }
+
+            var key = key(instr);
+            if (key.isEmpty()) {
+                if (mayWriteMemory(instr)) {
+                    memory.clear();
+                }
+                continue;
+            }
+            var found = available.get(key.get());
+            if (found != null) {
+                replace.put(instr.dsts[0], found);
+                it.remove();
+                removed++;
+            } else {
+                available.put(key.get(), instr.dsts[0]);
+                keys.add(key.get());
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Key a pure computation by what it computes.
+     */
+    private Optional<List<Object>> key(TacInstr instr) {
+        if (instr instanceof TacInstr.LoadImm4) {
+            return Optional.of(List.of("imm", ((TacInstr.LoadImm4) instr).value));
+        }
+        if (instr instanceof TacInstr.LoadVTbl) {
+            return Optional.of(List.of("vtbl", ((TacInstr.LoadVTbl) instr).vtbl.label.name));
+        }
+        if (instr instanceof TacInstr.LoadStrConst) {
+            return Optional.of(List.of("str", ((TacInstr.LoadStrConst) instr).value));
+        }
+        if (instr instanceof TacInstr.Unary) {
+            var unary = (TacInstr.Unary) instr;
+            return Optional.of(List.of(unary.op, find(unary.operand).index));
+        }
+        if (instr instanceof TacInstr.Binary) {
+            var binary = (TacInstr.Binary) instr;
+            var lhs = find(binary.lhs).index;
+            var rhs = find(binary.rhs).index;
+            if (isCommutative(binary.op) && lhs > rhs) {
+                var t = lhs;
+                lhs = rhs;
+                rhs = t;
+            }
+            return Optional.of(List.of(binary.op, lhs, rhs));
+        }
+        return Optional.empty();
+    }
+
+    private static boolean isCommutative(TacInstr.Binary.Op op) {
+        return switch (op) {
+            case ADD, MUL, EQU, NEQ, LAND, LOR -> true;
+            default -> false;
+        };
+    }
+
+    private static boolean mayWriteMemory(TacInstr instr) {
+        return !(instr instanceof TacInstr.Assign || instr instanceof TacInstr.Parm
+                || instr instanceof TacInstr.Branch || instr instanceof TacInstr.CondBranch
+                || instr instanceof TacInstr.Return || instr instanceof TacInstr.Memo);
+    }
+
+    private Temp find(Temp temp) {
+        while (replace.containsKey(temp)) {
+            temp = replace.get(temp);
+        }
+        return temp;
+    }
+}
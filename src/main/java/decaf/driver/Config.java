@@ -1,12 +1,14 @@
 package decaf.driver;
 
 import decaf.lowlevel.log.Log;
+import decaf.lowlevel.tac.Simulator;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.io.FilenameUtils;
 
 import java.io.*;
 import java.nio.file.Path;
+import java.util.Optional;
 import java.util.logging.Level;
 
 /**
@@ -48,12 +50,31 @@ public class Config {
      */
     public final Target target;
 
-    private Config(FileInputStream source, Path sourcePath, OutputStream output, Path dstPath, Target target) {
+    /**
+     * Options of the TAC simulator (PA3, PA4).
+     */
+    public final Simulator.Options simulator;
+
+    /**
+     * Profile to guide optimization, if any (PA4, PA5).
+     */
+    public final Optional<Path> pgo;
+
+    /**
+     * Whether to optimize TAC (PA4, PA5).
+     */
+    public final boolean optimize;
+
+    private Config(FileInputStream source, Path sourcePath, OutputStream output, Path dstPath, Target target,
+                   Simulator.Options simulator, Optional<Path> pgo, boolean optimize) {
         this.source = source;
         this.sourcePath = sourcePath;
         this.output = output;
         this.dstPath = dstPath;
         this.target = target;
+        this.simulator = simulator;
+        this.pgo = pgo;
+        this.optimize = optimize;
     }
 
     /**
@@ -102,6 +123,57 @@ public class Config {
             dstPath = dir.toPath();
         }
 
+        var simulator = new Simulator.Options();
+        if (cli.hasOption(OptParser.SIM_ENGINE)) {
+            simulator.engine = parseEngine(cli.getOptionValue(OptParser.SIM_ENGINE));
+        }
+        if (cli.hasOption(OptParser.JIT_THRESHOLD)) {
+            simulator.jitThreshold = parseCount(cli.getOptionValue(OptParser.JIT_THRESHOLD), "JIT threshold");
+        }
+        simulator.fuse = !cli.hasOption(OptParser.NO_FUSION);
+        simulator.gc = !cli.hasOption(OptParser.NO_GC);
+        if (cli.hasOption(OptParser.SIM_THREADS)) {
+            simulator.threads = parseCount(cli.getOptionValue(OptParser.SIM_THREADS), "number of simulator threads");
+            if (simulator.threads != 1 && simulator.engine == Simulator.Engine.JIT) {
+                throw new ParseException("Simulator engine jit runs on one thread only");
+            }
+        }
+        if (cli.hasOption(OptParser.SIM_QUANTUM)) {
+            simulator.quantum = parseCount(cli.getOptionValue(OptParser.SIM_QUANTUM), "quantum");
+            if (simulator.quantum == 0) {
+                throw new ParseException("Invalid quantum: '0'");
+            }
+        }
+        if (cli.hasOption(OptParser.SIM_SEED)) {
+            simulator.seed = Optional.of(parseCount(cli.getOptionValue(OptParser.SIM_SEED), "seed"));
+            if (simulator.threads != 1) {
+                throw new ParseException("A schedule on more than one thread cannot be replayed");
+            }
+        }
+        simulator.bufferOutput = !cli.hasOption(OptParser.SIM_UNBUFFERED);
+        if (cli.hasOption(OptParser.PROFILE)) {
+            if (simulator.engine == Simulator.Engine.JIT) {
+                throw new ParseException("Simulator engine jit cannot profile");
+            }
+            if (simulator.threads != 1) {
+                throw new ParseException("A profile is taken on one thread only");
+            }
+            simulator.profile = Optional.of(dstPath.resolve(FilenameUtils.getBaseName(sourceFile.getName())));
+        }
+
+        Optional<Path> pgo = Optional.empty();
+        if (cli.hasOption(OptParser.PGO)) {
+            var file = new File(cli.getOptionValue(OptParser.PGO));
+            if (!file.isFile()) {
+                throw new FileNotFoundException(file.getPath() + " (Not an existed file)");
+            }
+            pgo = Optional.of(file.toPath());
+        }
+        var optimize = !cli.hasOption(OptParser.NO_OPT);
+        if (pgo.isPresent() && !optimize) {
+            throw new ParseException("A profile guides optimization, which --no-opt turns off");
+        }
+
         if (cli.hasOption(OptParser.LOG_LEVEL)) {
             var showColor = cli.hasOption(OptParser.LOG_COLORFUL);
             var l = cli.getOptionValue(OptParser.LOG_LEVEL);
@@ -119,7 +191,7 @@ public class Config {
             }
         }
 
-        return new Config(source, sourcePath, output, dstPath, target);
+        return new Config(source, sourcePath, output, dstPath, target, simulator, pgo, optimize);
     }
 
     /**
@@ -151,4 +223,39 @@ public class Config {
             default -> throw new ParseException(String.format("Invalid target: '%s'", target));
         };
     }
+
+    /**
+     * Parse simulator engine from string.
+     *
+     * @param engine string representation of the engine
+     * @return engine
+     * @throws ParseException if input is invalid
+     */
+    private static Simulator.Engine parseEngine(String engine) throws ParseException {
+        return switch (engine) {
+            case "visitor" -> Simulator.Engine.VISITOR;
+            case "switch" -> Simulator.Engine.SWITCH;
+            case "jit" -> Simulator.Engine.JIT;
+            default -> throw new ParseException(String.format("Invalid simulator engine: '%s'", engine));
+        };
+    }
+
+    /**
+     * Parse a non-negative integer.
+     *
+     * @param value string representation
+     * @param what  what the value means, for error messages
+     * @return the integer
+     * @throws ParseException if input is invalid
+     */
+    private static int parseCount(String value, String what) throws ParseException {
+        try {
+            var count = Integer.parseInt(value);
+            if (count >= 0) {
+                return count;
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        throw new ParseException(String.format("Invalid %s: '%s'", what, value));
+    }
 }
@@ -62,6 +62,105 @@ public class OptParser {
             .desc("also dump log to a file")
             .build();
 
+    static final String SIM_ENGINE = "sim-engine";
+    final Option simEngine = Option
+            .builder(null)
+            .longOpt(SIM_ENGINE)
+            .hasArg()
+            .argName("engine")
+            .desc("TAC simulator engine: visitor, switch (default), or jit")
+            .build();
+
+    static final String JIT_THRESHOLD = "jit-threshold";
+    final Option jitThreshold = Option
+            .builder(null)
+            .longOpt(JIT_THRESHOLD)
+            .hasArg()
+            .argName("count")
+            .desc("invocations or back edges to compile a function, for simulator engine jit; 0 to compile all " +
+                    "before execution (default 1000)")
+            .build();
+
+    static final String NO_FUSION = "no-fusion";
+    final Option noFusion = Option
+            .builder(null)
+            .longOpt(NO_FUSION)
+            .hasArg(false)
+            .desc("do not fuse common instruction sequences into superinstructions, for simulator engines switch " +
+                    "and jit")
+            .build();
+
+    static final String NO_GC = "no-gc";
+    final Option noGC = Option
+            .builder(null)
+            .longOpt(NO_GC)
+            .hasArg(false)
+            .desc("do not collect garbage in the simulated heap")
+            .build();
+
+    static final String SIM_THREADS = "sim-threads";
+    final Option simThreads = Option
+            .builder(null)
+            .longOpt(SIM_THREADS)
+            .hasArg()
+            .argName("count")
+            .desc("threads to run coroutines in parallel, for simulator engines visitor and switch; 0 for one per " +
+                    "processor (default 1)")
+            .build();
+
+    static final String SIM_QUANTUM = "sim-quantum";
+    final Option simQuantum = Option
+            .builder(null)
+            .longOpt(SIM_QUANTUM)
+            .hasArg()
+            .argName("count")
+            .desc("instructions a coroutine runs before it is preempted (default 10000)")
+            .build();
+
+    static final String SIM_SEED = "sim-seed";
+    final Option simSeed = Option
+            .builder(null)
+            .longOpt(SIM_SEED)
+            .hasArg()
+            .argName("seed")
+            .desc("preempt coroutines after a random number of instructions, up to the quantum; the same seed " +
+                    "replays the same interleaving")
+            .build();
+
+    static final String SIM_UNBUFFERED = "sim-unbuffered";
+    final Option simUnbuffered = Option
+            .builder(null)
+            .longOpt(SIM_UNBUFFERED)
+            .hasArg(false)
+            .desc("flush the output of the simulated program after every print, for interactive use")
+            .build();
+
+    static final String PROFILE = "profile";
+    final Option profile = Option
+            .builder(null)
+            .longOpt(PROFILE)
+            .hasArg(false)
+            .desc("profile the simulated program, and write folded stacks and a summary to <name>.folded and " +
+                    "<name>.profile.json in the output directory, for simulator engines visitor and switch")
+            .build();
+
+    static final String PGO = "pgo";
+    final Option pgo = Option
+            .builder(null)
+            .longOpt(PGO)
+            .hasArg()
+            .argName("file")
+            .desc("optimize with a profile written by --profile on the TAC of -t PA3, available >= PA4")
+            .build();
+
+    static final String NO_OPT = "no-opt";
+    final Option noOpt = Option
+            .builder(null)
+            .longOpt(NO_OPT)
+            .hasArg(false)
+            .desc("do not optimize the TAC, available >= PA4")
+            .build();
+
     static final String HELP = "h";
     final Option help = Option
             .builder(HELP)
@@ -78,6 +177,17 @@ public class OptParser {
         options.addOption(dst);
         options.addOption(target);
         options.addOption(help);
+        options.addOption(simEngine);
+        options.addOption(jitThreshold);
+        options.addOption(noFusion);
+        options.addOption(noGC);
+        options.addOption(simThreads);
+        options.addOption(simQuantum);
+        options.addOption(simSeed);
+        options.addOption(simUnbuffered);
+        options.addOption(profile);
+        options.addOption(pgo);
+        options.addOption(noOpt);
         // log related
         options.addOption(logLevel);
         options.addOption(logFile);
@@ -46,6 +46,6 @@ public class TaskFactory {
 
     public Task<InputStream, String> mips() {
         var emitter = new MipsAsmEmitter();
-        return tacGen().then(new Asm(emitter, new BruteRegAlloc(emitter), config));
+        return optimize().then(new Asm(emitter, new BruteRegAlloc(emitter), config));
     }
 }
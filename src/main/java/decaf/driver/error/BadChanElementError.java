@@ -0,0 +1,20 @@
+package decaf.driver.error;
+
+import decaf.frontend.tree.Pos;
+
+/**
+ * example：channel element type must be non-void known type<br>
+ * PA2
+ */
+public class BadChanElementError extends DecafError {
+
+    public BadChanElementError(Pos pos) {
+        super(pos);
+    }
+
+    @Override
+    protected String getErrMsg() {
+        return "channel element type must be non-void known type";
+    }
+
+}
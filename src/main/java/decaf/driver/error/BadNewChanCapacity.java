@@ -0,0 +1,20 @@
+package decaf.driver.error;
+
+import decaf.frontend.tree.Pos;
+
+/**
+ * example：new channel capacity must be an integer<br>
+ * PA2
+ */
+public class BadNewChanCapacity extends DecafError {
+
+    public BadNewChanCapacity(Pos pos) {
+        super(pos);
+    }
+
+    @Override
+    protected String getErrMsg() {
+        return "new channel capacity must be an integer";
+    }
+
+}
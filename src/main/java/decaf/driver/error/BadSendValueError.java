@@ -0,0 +1,26 @@
+package decaf.driver.error;
+
+import decaf.frontend.tree.Pos;
+
+/**
+ * example：incompatible send: bool into chan<int><br>
+ * PA2
+ */
+public class BadSendValueError extends DecafError {
+
+    private final String value;
+
+    private final String chan;
+
+    public BadSendValueError(Pos pos, String value, String chan) {
+        super(pos);
+        this.value = value;
+        this.chan = chan;
+    }
+
+    @Override
+    protected String getErrMsg() {
+        return "incompatible send: " + value + " into " + chan;
+    }
+
+}
@@ -0,0 +1,20 @@
+package decaf.driver.error;
+
+import decaf.frontend.tree.Pos;
+
+/**
+ * example：go cannot start a coroutine for the length of an array<br>
+ * PA2
+ */
+public class GoLengthError extends DecafError {
+
+    public GoLengthError(Pos pos) {
+        super(pos);
+    }
+
+    @Override
+    protected String getErrMsg() {
+        return "go cannot start a coroutine for the length of an array";
+    }
+
+}
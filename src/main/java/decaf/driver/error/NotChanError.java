@@ -0,0 +1,23 @@
+package decaf.driver.error;
+
+import decaf.frontend.tree.Pos;
+
+/**
+ * example：send and recv can only be applied to channels, but type int given<br>
+ * PA2
+ */
+public class NotChanError extends DecafError {
+
+    private final String typename;
+
+    public NotChanError(Pos pos, String typename) {
+        super(pos);
+        this.typename = typename;
+    }
+
+    @Override
+    protected String getErrMsg() {
+        return "send and recv can only be applied to channels, but type " + typename + " given";
+    }
+
+}
@@ -0,0 +1,23 @@
+package decaf.driver.error;
+
+import decaf.frontend.tree.Pos;
+
+/**
+ * example：join can only be applied to tasks, but type int given<br>
+ * PA2
+ */
+public class NotTaskError extends DecafError {
+
+    private final String typename;
+
+    public NotTaskError(Pos pos, String typename) {
+        super(pos);
+        this.typename = typename;
+    }
+
+    @Override
+    protected String getErrMsg() {
+        return "join can only be applied to tasks, but type " + typename + " given";
+    }
+
+}
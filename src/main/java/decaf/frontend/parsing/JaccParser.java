@@ -82,6 +82,11 @@ public class JaccParser extends Phase<InputStream, Tree.TopLevel> {
                 case Tokens.GO -> decaf.frontend.parsing.JaccTokens.GO;
                 case Tokens.LOCK -> decaf.frontend.parsing.JaccTokens.LOCK;
                 case Tokens.UNLOCK -> decaf.frontend.parsing.JaccTokens.UNLOCK;
+                case Tokens.CHAN -> decaf.frontend.parsing.JaccTokens.CHAN;
+                case Tokens.SEND -> decaf.frontend.parsing.JaccTokens.SEND;
+                case Tokens.RECV -> decaf.frontend.parsing.JaccTokens.RECV;
+                case Tokens.TASK -> decaf.frontend.parsing.JaccTokens.TASK;
+                case Tokens.JOIN -> decaf.frontend.parsing.JaccTokens.JOIN;
                 default -> code; // single-character, use their ASCII code!
             };
         }
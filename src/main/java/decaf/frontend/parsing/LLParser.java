@@ -108,6 +108,11 @@ public class LLParser extends Phase<InputStream, Tree.TopLevel> {
                 case Tokens.GO -> GO;
                 case Tokens.LOCK -> LOCK;
                 case Tokens.UNLOCK -> UNLOCK;
+                case Tokens.CHAN -> CHAN;
+                case Tokens.SEND -> SEND;
+                case Tokens.RECV -> RECV;
+                case Tokens.TASK -> TASK;
+                case Tokens.JOIN -> JOIN;
                 default -> code; // single-character, use their ASCII code!
             };
         }
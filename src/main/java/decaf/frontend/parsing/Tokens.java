@@ -42,6 +42,11 @@ public interface Tokens {
     int GO = 204;
     int LOCK = 205;
     int UNLOCK = 206;
+    int CHAN = 207;
+    int SEND = 208;
+    int RECV = 209;
+    int TASK = 210;
+    int JOIN = 211;
 
     // MUST use ASCII code to encode a single-character token.
     // '!' (code=33)
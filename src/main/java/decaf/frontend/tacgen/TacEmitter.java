@@ -433,10 +433,24 @@ public interface TacEmitter extends Visitor<FuncVisitor> {
 
     @Override
     default void visitGoCall(Tree.GoCall goCall, FuncVisitor mv) {
-        mv.addGoLabel();
+        goCall.callExpr.isAsync = true;
         goCall.callExpr.accept(this, mv);
     }
 
+    @Override
+    default void visitSpawn(Tree.Spawn spawn, FuncVisitor mv) {
+        spawn.callExpr.isAsync = true;
+        spawn.callExpr.isJoinable = true;
+        spawn.callExpr.accept(this, mv);
+        spawn.val = spawn.callExpr.val;
+    }
+
+    @Override
+    default void visitJoin(Tree.Join join, FuncVisitor mv) {
+        join.task.accept(this, mv);
+        join.val = mv.visitJoin(join.task.val, !join.type.isVoidType());
+    }
+
     @Override
     default void visitLock(Tree.Lock lock, FuncVisitor mv) {
         lock.expr.accept(this, mv);
@@ -449,6 +463,40 @@ public interface TacEmitter extends Visitor<FuncVisitor> {
         mv.unlock(lock.expr.val);
     }
 
+    @Override
+    default void visitSend(Tree.Send send, FuncVisitor mv) {
+        send.chan.accept(this, mv);
+        send.value.accept(this, mv);
+        mv.visitSend(send.chan.val, send.value.val);
+    }
+
+    @Override
+    default void visitNewChan(Tree.NewChan expr, FuncVisitor mv) {
+        Temp capacity;
+        if (expr.capacity.isPresent()) {
+            expr.capacity.get().accept(this, mv);
+            capacity = expr.capacity.get().val;
+            var error = mv.visitBinary(TacInstr.Binary.Op.LES, capacity, mv.visitLoad(0));
+            var handler = new Consumer<FuncVisitor>() {
+                @Override
+                public void accept(FuncVisitor v) {
+                    v.visitPrint(RuntimeError.NEGATIVE_CHAN_CAPACITY);
+                    v.visitIntrinsicCall(Intrinsic.HALT);
+                }
+            };
+            emitIfThen(error, handler, mv);
+        } else {
+            capacity = mv.visitLoad(0);
+        }
+        expr.val = mv.visitNewChan(capacity);
+    }
+
+    @Override
+    default void visitRecv(Tree.Recv expr, FuncVisitor mv) {
+        expr.chan.accept(this, mv);
+        expr.val = mv.visitRecv(expr.chan.val);
+    }
+
     @Override
     default void visitCall(Tree.Call expr, FuncVisitor mv) {
         if (expr.isArrayLength) { // special case for array.length()
@@ -472,12 +520,20 @@ public interface TacEmitter extends Visitor<FuncVisitor> {
         expr.args.forEach(arg -> temps.add(arg.val));
         
         if (caller.type.isFuncType()) {
-        	boolean needReturn = !((FunType)caller.type).returnType.isVoidType();
+        	boolean needReturn = !((FunType)caller.type).returnType.isVoidType() && !expr.isAsync;
         	var object = caller.val;
         	var vtbl = mv.visitLoadFrom(object);
         	var loadCnt = mv.visitLoadFrom(object, 4);
         	var func = mv.visitLoadFrom(vtbl, 8);
 
+        	// Only now that the arguments are evaluated, since calls among them must not start the coroutine
+        	Temp task = null;
+        	if (expr.isJoinable) {
+        		task = mv.addJoinableGoLabel();
+        	} else if (expr.isAsync) {
+        		mv.addGoLabel();
+        	}
+
         	temps.forEach(t -> mv.visitRaw(new TacInstr.Parm(t)));
         	
         	Temp counter = mv.visitLoad(0);
@@ -496,6 +552,9 @@ public interface TacEmitter extends Visitor<FuncVisitor> {
         	emitWhile(test, body, exit, mv);
         	
         	expr.val = mv.visitStoredFunc(func, needReturn);
+        	if (expr.isAsync) {
+        		expr.val = task;
+        	}
         	return;
         }
         
@@ -84,7 +84,7 @@ public class TacGen extends Phase<Tree.TopLevel, TacProg> implements TacEmitter
             }
 
             // and then execute it using our simulator.
-            var simulator = new Simulator(System.in, config.output);
+            var simulator = new Simulator(System.in, config.output, config.simulator);
             simulator.execute(program);
         }
     }
@@ -27,10 +27,11 @@ import java.util.Set;
 public abstract class Tree {
     public enum Kind {
         TOP_LEVEL, CLASS_DEF, VAR_DEF, METHOD_DEF,
-        T_INT, T_BOOL, T_STRING, T_VOID, T_CLASS, T_ARRAY, T_FUNC, LAMBDA,
-        LOCAL_VAR_DEF, BLOCK, ASSIGN, EXPR_EVAL, SKIP, IF, WHILE, FOR, BREAK, RETURN, PRINT, LOCK, UNLOCK,
+        T_INT, T_BOOL, T_STRING, T_VOID, T_CLASS, T_ARRAY, T_FUNC, T_CHAN, T_TASK, LAMBDA,
+        LOCAL_VAR_DEF, BLOCK, ASSIGN, EXPR_EVAL, SKIP, IF, WHILE, FOR, BREAK, RETURN, PRINT, LOCK, UNLOCK, SEND,
         INT_LIT, BOOL_LIT, STRING_LIT, NULL_LIT, VAR_SEL, INDEX_SEL, CALL, GOCALL,
-        THIS, UNARY_EXPR, BINARY_EXPR, READ_INT, READ_LINE, NEW_CLASS, NEW_ARRAY, CLASS_TEST, CLASS_CAST
+        THIS, UNARY_EXPR, BINARY_EXPR, READ_INT, READ_LINE, NEW_CLASS, NEW_ARRAY, NEW_CHAN, RECV, SPAWN, JOIN,
+        CLASS_TEST, CLASS_CAST
     }
 
     /**
@@ -266,8 +267,10 @@ public abstract class Tree {
      * <p>
      * Decaf only supports
      * - basic types (integer, boolean, string, void),
-     * - class types (using class identifiers), and
-     * - array types (whose element could be any type, but homogeneous).
+     * - class types (using class identifiers),
+     * - array types (whose element could be any type, but homogeneous),
+     * - channel types (carrying values of one element type between coroutines), and
+     * - task types (of coroutines to be joined for their results).
      */
     public static abstract class TypeLit extends TreeNode {
         public Type type;
@@ -481,6 +484,74 @@ public abstract class Tree {
     }
 
 
+    /**
+     * Channel type.
+     * <pre>
+     *     'chan' '<' elemType '>'
+     * </pre>
+     */
+    public static class TChan extends TypeLit {
+        // Tree element
+        public TypeLit elemType;
+
+        public TChan(TypeLit elemType, Pos pos) {
+            super(Kind.T_CHAN, "TChan", pos);
+            this.elemType = elemType;
+        }
+
+        @Override
+        public Object treeElementAt(int index) {
+            return switch (index) {
+                case 0 -> elemType;
+                default -> throw new IndexOutOfBoundsException(index);
+            };
+        }
+
+        @Override
+        public int treeArity() {
+            return 1;
+        }
+
+        @Override
+        public <C> void accept(Visitor<C> v, C ctx) {
+            v.visitTChan(this, ctx);
+        }
+    }
+
+    /**
+     * Task type, of a coroutine whose function returns {@code resultType}.
+     * <pre>
+     *     'task' '<' resultType '>'
+     * </pre>
+     */
+    public static class TTask extends TypeLit {
+        // Tree element
+        public TypeLit resultType;
+
+        public TTask(TypeLit resultType, Pos pos) {
+            super(Kind.T_TASK, "TTask", pos);
+            this.resultType = resultType;
+        }
+
+        @Override
+        public Object treeElementAt(int index) {
+            return switch (index) {
+                case 0 -> resultType;
+                default -> throw new IndexOutOfBoundsException(index);
+            };
+        }
+
+        @Override
+        public int treeArity() {
+            return 1;
+        }
+
+        @Override
+        public <C> void accept(Visitor<C> v, C ctx) {
+            v.visitTTask(this, ctx);
+        }
+    }
+
     /**
      * Statement.
      */
@@ -1045,6 +1116,43 @@ public abstract class Tree {
     }
 
 
+
+    /**
+     * Statement to send a value into a channel, blocking while the channel is full.
+     * <pre>
+     *     'send' '(' chan ',' value ')' ';'
+     * </pre>
+     */
+    public static class Send extends Stmt {
+        public final Expr chan;
+        public final Expr value;
+
+        public Send(Expr chan, Expr value, Pos pos) {
+            super(Kind.SEND, "Send", pos);
+            this.chan = chan;
+            this.value = value;
+        }
+
+        @Override
+        public int treeArity() {
+            return 2;
+        }
+
+        @Override
+        public Object treeElementAt(int index) {
+            return switch (index) {
+                case 0 -> chan;
+                case 1 -> value;
+                default -> throw new IndexOutOfBoundsException(index);
+            };
+        }
+
+        @Override
+        public <C> void accept(Visitor<C> v, C ctx) {
+            v.visitSend(this, ctx);
+        }
+    }
+
     /**
      * Statement to start a coroutine.
      * <pre>
@@ -1656,6 +1764,145 @@ public abstract class Tree {
         }
     }
 
+    /**
+     * New expression for creating a channel. Without a capacity the channel is unbuffered.
+     * <pre>
+     *     'new' 'chan' '<' elemType '>' '(' capacity? ')'
+     * </pre>
+     */
+    public static class NewChan extends Expr {
+        // Tree elements
+        public TypeLit elemType;
+        public Optional<Expr> capacity;
+
+        public NewChan(TypeLit elemType, Optional<Expr> capacity, Pos pos) {
+            super(Kind.NEW_CHAN, "NewChan", pos);
+            this.elemType = elemType;
+            this.capacity = capacity;
+        }
+
+        @Override
+        public Object treeElementAt(int index) {
+            return switch (index) {
+                case 0 -> elemType;
+                case 1 -> capacity;
+                default -> throw new IndexOutOfBoundsException(index);
+            };
+        }
+
+        @Override
+        public int treeArity() {
+            return 2;
+        }
+
+        @Override
+        public <C> void accept(Visitor<C> v, C ctx) {
+            v.visitNewChan(this, ctx);
+        }
+    }
+
+    /**
+     * Expression receiving a value from a channel, blocking while the channel is empty.
+     * <pre>
+     *     'recv' '(' chan ')'
+     * </pre>
+     */
+    public static class Recv extends Expr {
+        // Tree element
+        public Expr chan;
+
+        public Recv(Expr chan, Pos pos) {
+            super(Kind.RECV, "Recv", pos);
+            this.chan = chan;
+        }
+
+        @Override
+        public Object treeElementAt(int index) {
+            return switch (index) {
+                case 0 -> chan;
+                default -> throw new IndexOutOfBoundsException(index);
+            };
+        }
+
+        @Override
+        public int treeArity() {
+            return 1;
+        }
+
+        @Override
+        public <C> void accept(Visitor<C> v, C ctx) {
+            v.visitRecv(this, ctx);
+        }
+    }
+
+    /**
+     * Expression starting a coroutine, like the {@code go} statement, and evaluating to its task.
+     * <pre>
+     *     'go' expr '(' exprList ')'
+     * </pre>
+     */
+    public static class Spawn extends Expr {
+        // Tree element
+        public Call callExpr;
+
+        public Spawn(Call call, Pos pos) {
+            super(Kind.SPAWN, "Spawn", pos);
+            callExpr = call;
+        }
+
+        @Override
+        public Object treeElementAt(int index) {
+            return switch (index) {
+                case 0 -> callExpr;
+                default -> throw new IndexOutOfBoundsException(index);
+            };
+        }
+
+        @Override
+        public int treeArity() {
+            return 1;
+        }
+
+        @Override
+        public <C> void accept(Visitor<C> v, C ctx) {
+            v.visitSpawn(this, ctx);
+        }
+    }
+
+    /**
+     * Expression waiting for the coroutine of a task to finish, and evaluating to what its function returned.
+     * <pre>
+     *     'join' '(' task ')'
+     * </pre>
+     */
+    public static class Join extends Expr {
+        // Tree element
+        public Expr task;
+
+        public Join(Expr task, Pos pos) {
+            super(Kind.JOIN, "Join", pos);
+            this.task = task;
+        }
+
+        @Override
+        public Object treeElementAt(int index) {
+            return switch (index) {
+                case 0 -> task;
+                default -> throw new IndexOutOfBoundsException(index);
+            };
+        }
+
+        @Override
+        public int treeArity() {
+            return 1;
+        }
+
+        @Override
+        public <C> void accept(Visitor<C> v, C ctx) {
+            v.visitJoin(this, ctx);
+        }
+    }
+
     /**
      * Instance-of expression.
      * <pre>
@@ -1752,6 +1999,9 @@ public abstract class Tree {
         public Symbol symbol;
         //public LambdaSymbol lambdaSymbol = null;
         public boolean isArrayLength = false;
+        // For tac gen: the call starts a coroutine, with a task to join it if joinable
+        public boolean isAsync = false;
+        public boolean isJoinable = false;
         
         public Call(Expr exp, List<Expr>args, Pos pos) {
         	super(Kind.CALL, "Call", pos);
@@ -55,6 +55,14 @@ public interface Visitor<C> {
 		visitOthers(that, ctx);
 	}
 
+    default void visitTChan(Tree.TChan that, C ctx) {
+        visitOthers(that, ctx);
+    }
+
+    default void visitTTask(Tree.TTask that, C ctx) {
+        visitOthers(that, ctx);
+    }
+
     default void visitLocalVarDef(Tree.LocalVarDef that, C ctx) {
         visitOthers(that, ctx);
     }
@@ -111,6 +119,10 @@ public interface Visitor<C> {
         visitOthers(that, ctx);
     }
 
+    default void visitSend(Tree.Send that, C ctx) {
+        visitOthers(that, ctx);
+    }
+
     default void visitGoCall(Tree.GoCall that, C ctx) {
         visitOthers(that, ctx);
     }
@@ -171,6 +183,22 @@ public interface Visitor<C> {
         visitOthers(that, ctx);
     }
 
+    default void visitNewChan(Tree.NewChan that, C ctx) {
+        visitOthers(that, ctx);
+    }
+
+    default void visitRecv(Tree.Recv that, C ctx) {
+        visitOthers(that, ctx);
+    }
+
+    default void visitSpawn(Tree.Spawn that, C ctx) {
+        visitOthers(that, ctx);
+    }
+
+    default void visitJoin(Tree.Join that, C ctx) {
+        visitOthers(that, ctx);
+    }
+
     default void visitClassTest(Tree.ClassTest that, C ctx) {
         visitOthers(that, ctx);
     }
@@ -0,0 +1,42 @@
+package decaf.frontend.type;
+
+/**
+ * Channel type.
+ * <p>
+ * Like arrays, channels are <em>invariant</em>: {@code chan<t>} {@literal <:} {@code chan<s>} if and only if
+ * {@code t} and {@code s} are equal, because a channel is both read from and written to.
+ */
+public final class ChanType extends Type {
+
+    public final Type elementType;
+
+    public ChanType(Type elementType) {
+        this.elementType = elementType;
+    }
+
+    @Override
+    public boolean subtypeOf(Type that) {
+        if (that.eq(BuiltInType.ERROR)) {
+            return true;
+        }
+        return eq(that);
+    }
+
+    @Override
+    public boolean eq(Type that) {
+        if (!that.isChanType()) {
+            return false;
+        }
+        return elementType.eq(((ChanType) that).elementType);
+    }
+
+    @Override
+    public String toString() {
+        return "chan<" + elementType + ">";
+    }
+
+    @Override
+    public boolean isChanType() {
+        return true;
+    }
+}
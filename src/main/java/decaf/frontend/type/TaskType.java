@@ -0,0 +1,45 @@
+package decaf.frontend.type;
+
+/**
+ * Task type, of a coroutine started by {@code go} whose function returns {@code resultType}.
+ * <p>
+ * A task is only read from, by joining it, so task types are <em>covariant</em>:
+ * {@code task<t>} {@literal <:} {@code task<s>} if {@code t} {@literal <:} {@code s}.
+ */
+public final class TaskType extends Type {
+
+    public final Type resultType;
+
+    public TaskType(Type resultType) {
+        this.resultType = resultType;
+    }
+
+    @Override
+    public boolean subtypeOf(Type that) {
+        if (that.eq(BuiltInType.ERROR)) {
+            return true;
+        }
+        if (!that.isTaskType()) {
+            return false;
+        }
+        return resultType.subtypeOf(((TaskType) that).resultType);
+    }
+
+    @Override
+    public boolean eq(Type that) {
+        if (!that.isTaskType()) {
+            return false;
+        }
+        return resultType.eq(((TaskType) that).resultType);
+    }
+
+    @Override
+    public String toString() {
+        return "task<" + resultType + ">";
+    }
+
+    @Override
+    public boolean isTaskType() {
+        return true;
+    }
+}
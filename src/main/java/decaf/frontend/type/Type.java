@@ -10,6 +10,8 @@ import decaf.frontend.tree.Pos;
  *     <li>basic types: int, bool, string (and void)</li>
  *     <li>array types</li>
  *     <li>class types</li>
+ *     <li>channel types</li>
+ *     <li>task types</li>
  *     <li>function types (cannot be expressed in programs, but we use them to type check function calls)</li>
  * </ol>
  * <p>
@@ -18,6 +20,8 @@ import decaf.frontend.tree.Pos;
  * @see BuiltInType
  * @see ClassType
  * @see ArrayType
+ * @see ChanType
+ * @see TaskType
  * @see FunType
  */
 public abstract class Type {
@@ -39,6 +43,14 @@ public abstract class Type {
         return false;
     }
 
+    public boolean isChanType() {
+        return false;
+    }
+
+    public boolean isTaskType() {
+        return false;
+    }
+
     public boolean isFuncType() {
         return false;
     }
@@ -101,6 +113,11 @@ public abstract class Type {
     		ret = ClassType.lca((ClassType)a, (ClassType)b);
     	} else if (a instanceof ArrayType && b instanceof ArrayType) {
     		if (a.eq(b)) ret = a;
+    	} else if (a instanceof ChanType && b instanceof ChanType) {
+    		if (a.eq(b)) ret = a;
+    	} else if (a instanceof TaskType && b instanceof TaskType) {
+    		if (a.subtypeOf(b)) ret = b;
+    		else if (b.subtypeOf(a)) ret = a;
     	} else if (a instanceof FunType && b instanceof FunType) {
     		ret = FunType.lca((FunType)a, (FunType)b, pos);
     	}
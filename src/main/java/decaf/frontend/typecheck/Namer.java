@@ -230,6 +230,12 @@ public class Namer extends Phase<Tree.TopLevel, Tree.TopLevel> implements TypeLi
     public void visitUnlock(Tree.Unlock stmt, ScopeStack ctx) {
         stmt.expr.accept(this, ctx);
     }
+
+    @Override
+    public void visitSend(Tree.Send stmt, ScopeStack ctx) {
+        stmt.chan.accept(this, ctx);
+        stmt.value.accept(this, ctx);
+    }
     
     @Override
     public void visitNewArray(Tree.NewArray expr, ScopeStack ctx) {
@@ -237,6 +243,17 @@ public class Namer extends Phase<Tree.TopLevel, Tree.TopLevel> implements TypeLi
         expr.length.accept(this, ctx);
     }
 
+    @Override
+    public void visitNewChan(Tree.NewChan expr, ScopeStack ctx) {
+        expr.elemType.accept(this, ctx);
+        expr.capacity.ifPresent(c -> c.accept(this, ctx));
+    }
+
+    @Override
+    public void visitRecv(Tree.Recv expr, ScopeStack ctx) {
+        expr.chan.accept(this, ctx);
+    }
+
     @Override
     public void visitVarDef(Tree.VarDef varDef, ScopeStack ctx) {
         varDef.typeLit.accept(this, ctx);
@@ -362,6 +379,16 @@ public class Namer extends Phase<Tree.TopLevel, Tree.TopLevel> implements TypeLi
         goCall.callExpr.accept(this, ctx);
     }
 
+    @Override
+    public void visitSpawn(Tree.Spawn spawn, ScopeStack ctx) {
+        spawn.callExpr.accept(this, ctx);
+    }
+
+    @Override
+    public void visitJoin(Tree.Join join, ScopeStack ctx) {
+        join.task.accept(this, ctx);
+    }
+
     @Override
     public void visitCall(Tree.Call expr, ScopeStack ctx) {
         var caller = expr.caller;
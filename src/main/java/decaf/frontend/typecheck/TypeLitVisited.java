@@ -4,13 +4,16 @@ import java.util.ArrayList;
 
 import decaf.driver.ErrorIssuer;
 import decaf.driver.error.BadArrElementError;
+import decaf.driver.error.BadChanElementError;
 import decaf.driver.error.ClassNotFoundError;
 import decaf.driver.error.VoidArgError;
 import decaf.frontend.scope.ScopeStack;
 import decaf.frontend.tree.Tree;
 import decaf.frontend.tree.Visitor;
 import decaf.frontend.type.BuiltInType;
+import decaf.frontend.type.ChanType;
 import decaf.frontend.type.FunType;
+import decaf.frontend.type.TaskType;
 import decaf.frontend.type.Type;
 
 /**
@@ -64,6 +67,29 @@ public interface TypeLitVisited extends Visitor<ScopeStack>, ErrorIssuer {
             typeArray.type = new decaf.frontend.type.ArrayType(typeArray.elemType.type);
         }
     }
+
+    @Override
+    default void visitTChan(Tree.TChan typeChan, ScopeStack ctx) {
+        typeChan.elemType.accept(this, ctx);
+        if (typeChan.elemType.type.eq(BuiltInType.ERROR)) {
+            typeChan.type = BuiltInType.ERROR;
+        } else if (typeChan.elemType.type.eq(BuiltInType.VOID)) {
+            issue(new BadChanElementError(typeChan.pos));
+            typeChan.type = BuiltInType.ERROR;
+        } else {
+            typeChan.type = new ChanType(typeChan.elemType.type);
+        }
+    }
+
+    @Override
+    default void visitTTask(Tree.TTask typeTask, ScopeStack ctx) {
+        typeTask.resultType.accept(this, ctx);
+        if (typeTask.resultType.type.eq(BuiltInType.ERROR)) {
+            typeTask.type = BuiltInType.ERROR;
+        } else {
+            typeTask.type = new TaskType(typeTask.resultType.type);
+        }
+    }
     
     @Override
     default void visitTFunc(Tree.TFunc tFunc, ScopeStack ctx) {
@@ -14,8 +14,10 @@ import decaf.frontend.tree.Pos;
 import decaf.frontend.tree.Tree;
 import decaf.frontend.type.ArrayType;
 import decaf.frontend.type.BuiltInType;
+import decaf.frontend.type.ChanType;
 import decaf.frontend.type.ClassType;
 import decaf.frontend.type.FunType;
+import decaf.frontend.type.TaskType;
 import decaf.frontend.type.Type;
 import decaf.lowlevel.log.IndentPrinter;
 import decaf.printing.PrettyScope;
@@ -296,6 +298,19 @@ public class Typer extends Phase<Tree.TopLevel, Tree.TopLevel> implements TypeLi
             issue(new LockParamNotInteger(stmt.pos, stmt.expr.type.toString()));
     }
 
+    @Override
+    public void visitSend(Tree.Send stmt, ScopeStack ctx) {
+        stmt.chan.accept(this, ctx);
+        stmt.value.accept(this, ctx);
+        var ct = stmt.chan.type;
+        var vt = stmt.value.type;
+        if (ct.noError() && !ct.isChanType()) {
+            issue(new NotChanError(stmt.chan.pos, ct.toString()));
+        } else if (ct.noError() && vt.noError() && !vt.subtypeOf(((ChanType) ct).elementType)) {
+            issue(new BadSendValueError(stmt.value.pos, vt.toString(), ct.toString()));
+        }
+    }
+
     private void checkTestExpr(Tree.Expr expr, ScopeStack ctx) {
         expr.accept(this, ctx);
         if (expr.type.noError() && !expr.type.eq(BuiltInType.BOOL)) {
@@ -461,6 +476,43 @@ public class Typer extends Phase<Tree.TopLevel, Tree.TopLevel> implements TypeLi
         }
     }
 
+    @Override
+    public void visitNewChan(Tree.NewChan expr, ScopeStack ctx) {
+        expr.elemType.accept(this, ctx);
+        var et = expr.elemType.type;
+
+        if (et.eq(BuiltInType.ERROR)) {
+            expr.type = BuiltInType.ERROR;
+        } else if (et.isVoidType()) {
+            issue(new BadChanElementError(expr.elemType.pos));
+            expr.type = BuiltInType.ERROR;
+        } else {
+            expr.type = new ChanType(et);
+        }
+
+        if (expr.capacity.isPresent()) {
+            var capacity = expr.capacity.get();
+            capacity.accept(this, ctx);
+            if (capacity.type.noError() && !capacity.type.eq(BuiltInType.INT)) {
+                issue(new BadNewChanCapacity(capacity.pos));
+            }
+        }
+    }
+
+    @Override
+    public void visitRecv(Tree.Recv expr, ScopeStack ctx) {
+        expr.chan.accept(this, ctx);
+        var ct = expr.chan.type;
+        if (ct.isChanType()) {
+            expr.type = ((ChanType) ct).elementType;
+        } else {
+            if (ct.noError()) {
+                issue(new NotChanError(expr.chan.pos, ct.toString()));
+            }
+            expr.type = BuiltInType.ERROR;
+        }
+    }
+
     @Override
     public void visitNewClass(Tree.NewClass expr, ScopeStack ctx) {
         var clazz = ctx.lookupClass(expr.clazz.name);
@@ -714,6 +766,32 @@ public class Typer extends Phase<Tree.TopLevel, Tree.TopLevel> implements TypeLi
         goCall.callExpr.accept(this, ctx);
     }
 
+    @Override
+    public void visitSpawn(Tree.Spawn spawn, ScopeStack ctx) {
+        spawn.callExpr.accept(this, ctx);
+        var rt = spawn.callExpr.type;
+        // array.length() is no call, but a load: no coroutine would complete the task
+        if (spawn.callExpr.isArrayLength) {
+            issue(new GoLengthError(spawn.pos));
+            rt = BuiltInType.ERROR;
+        }
+        spawn.type = rt.noError() ? new TaskType(rt) : BuiltInType.ERROR;
+    }
+
+    @Override
+    public void visitJoin(Tree.Join join, ScopeStack ctx) {
+        join.task.accept(this, ctx);
+        var tt = join.task.type;
+        if (tt.isTaskType()) {
+            join.type = ((TaskType) tt).resultType;
+        } else {
+            if (tt.noError()) {
+                issue(new NotTaskError(join.task.pos, tt.toString()));
+            }
+            join.type = BuiltInType.ERROR;
+        }
+    }
+
     @Override
     public void visitCall(Tree.Call expr, ScopeStack ctx) {
         expr.type = BuiltInType.ERROR;
@@ -0,0 +1,442 @@
+package decaf.lowlevel.tac;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal JVM class file writer, just enough for {@link JitCompiler}.
+ * <p>
+ * Classes are emitted in version 49 (Java 5), so that no stack map frames are required and the JVM verifies them by
+ * type inference. Every method is assembled by a {@link Code}, where jumps are written against {@link Label}s and
+ * patched once the method is finished.
+ */
+final class ClassFile {
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    // Opcodes used by the JIT
+    static final int ICONST_0 = 0x03;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC = 0x12;
+    static final int LDC_W = 0x13;
+    static final int ILOAD = 0x15;
+    static final int ALOAD = 0x19;
+    static final int ILOAD_0 = 0x1a;
+    static final int ALOAD_0 = 0x2a;
+    static final int IALOAD = 0x2e;
+    static final int ISTORE = 0x36;
+    static final int ISTORE_0 = 0x3b;
+    static final int ASTORE = 0x3a;
+    static final int ASTORE_0 = 0x4b;
+    static final int IASTORE = 0x4f;
+    static final int POP = 0x57;
+    static final int IADD = 0x60;
+    static final int ISUB = 0x64;
+    static final int IMUL = 0x68;
+    static final int IDIV = 0x6c;
+    static final int IREM = 0x70;
+    static final int INEG = 0x74;
+    static final int IINC = 0x84;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IF_ICMPEQ = 0x9f;
+    static final int IF_ICMPNE = 0xa0;
+    static final int IF_ICMPLT = 0xa1;
+    static final int IF_ICMPGE = 0xa2;
+    static final int IF_ICMPGT = 0xa3;
+    static final int IF_ICMPLE = 0xa4;
+    static final int GOTO = 0xa7;
+    static final int TABLESWITCH = 0xaa;
+    static final int IRETURN = 0xac;
+    static final int RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2;
+    static final int PUTSTATIC = 0xb3;
+    static final int GETFIELD = 0xb4;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int WIDE = 0xc4;
+
+    /**
+     * Thrown if a method exceeds what can be encoded, e.g. a jump further than 32767 bytes.
+     */
+    @SuppressWarnings("serial") // never serialized
+    static class TooLargeException extends RuntimeException {
+        TooLargeException(String msg) {
+            super(msg);
+        }
+    }
+
+    final String name;
+
+    private final String superName;
+
+    private final String[] interfaces;
+
+    private final List<byte[]> constants = new ArrayList<>();
+
+    private final Map<String, Integer> constantIndex = new HashMap<>();
+
+    private final ByteArrayOutputStream fields = new ByteArrayOutputStream();
+
+    private int fieldCount = 0;
+
+    private final ByteArrayOutputStream methods = new ByteArrayOutputStream();
+
+    private int methodCount = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param name       internal name of the class, e.g. {@code decaf/jit/Code}
+     * @param superName  internal name of the super class
+     * @param interfaces internal names of the implemented interfaces
+     */
+    ClassFile(String name, String superName, String... interfaces) {
+        this.name = name;
+        this.superName = superName;
+        this.interfaces = interfaces;
+    }
+
+    /**
+     * Add a field.
+     */
+    void field(int access, String name, String descriptor) {
+        var out = new DataOutputStream(fields);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        fieldCount++;
+    }
+
+    /**
+     * Start a method. It is added to the class when {@link Code#finish} is called.
+     */
+    Code method(int access, String name, String descriptor, int maxLocals) {
+        return new Code(access, name, descriptor, maxLocals);
+    }
+
+    /**
+     * Serialize the class.
+     */
+    byte[] toByteArray() {
+        var bytes = new ByteArrayOutputStream();
+        var out = new DataOutputStream(bytes);
+        try {
+            var thisClass = classRef(name);
+            var superClass = classRef(superName);
+            var interfaceIndexes = new int[interfaces.length];
+            for (var i = 0; i < interfaces.length; i++) {
+                interfaceIndexes[i] = classRef(interfaces[i]);
+            }
+
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(constants.size() + 1);
+            for (var constant : constants) {
+                out.write(constant);
+            }
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaceIndexes.length);
+            for (var index : interfaceIndexes) {
+                out.writeShort(index);
+            }
+            out.writeShort(fieldCount);
+            fields.writeTo(out);
+            out.writeShort(methodCount);
+            methods.writeTo(out);
+            out.writeShort(0); // attributes
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    // Constant pool
+
+    private int constant(String key, byte[] entry) {
+        var index = constantIndex.get(key);
+        if (index == null) {
+            constants.add(entry);
+            index = constants.size();
+            constantIndex.put(key, index);
+        }
+        return index;
+    }
+
+    private static byte[] entry(int tag, int... shorts) {
+        var bytes = new byte[1 + 2 * shorts.length];
+        bytes[0] = (byte) tag;
+        for (var i = 0; i < shorts.length; i++) {
+            bytes[1 + 2 * i] = (byte) (shorts[i] >> 8);
+            bytes[2 + 2 * i] = (byte) shorts[i];
+        }
+        return bytes;
+    }
+
+    int utf8(String value) {
+        var bytes = new ByteArrayOutputStream();
+        try {
+            var out = new DataOutputStream(bytes);
+            out.writeByte(1);
+            out.writeUTF(value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return constant("U" + value, bytes.toByteArray());
+    }
+
+    int integer(int value) {
+        return constant("I" + value, new byte[]{3, (byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8),
+                (byte) value});
+    }
+
+    int classRef(String name) {
+        return constant("C" + name, entry(7, utf8(name)));
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        return constant("N" + name + ":" + descriptor, entry(12, utf8(name), utf8(descriptor)));
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return constant("F" + owner + "." + name + ":" + descriptor,
+                entry(9, classRef(owner), nameAndType(name, descriptor)));
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return constant("M" + owner + "." + name + descriptor,
+                entry(10, classRef(owner), nameAndType(name, descriptor)));
+    }
+
+    /**
+     * A jump target in a {@link Code}.
+     */
+    static final class Label {
+        int offset = -1;
+    }
+
+    /**
+     * A jump offset to be patched: {@code code[pos]} holds the offset from instruction {@code at} to {@code target},
+     * in 2 bytes, or 4 bytes if {@code wide}.
+     */
+    private static final class Fixup {
+        final int at;
+        final int pos;
+        final Label target;
+        final boolean wide;
+
+        Fixup(int at, int pos, Label target, boolean wide) {
+            this.at = at;
+            this.pos = pos;
+            this.target = target;
+            this.wide = wide;
+        }
+    }
+
+    /**
+     * Bytecode of a method under assembling.
+     */
+    final class Code {
+        private final int access;
+        private final String name;
+        private final String descriptor;
+        private final int maxLocals;
+
+        private byte[] code = new byte[256];
+        private int size = 0;
+        private int maxStack = 8;
+
+        private final List<Fixup> fixups = new ArrayList<>();
+
+        private Code(int access, String name, String descriptor, int maxLocals) {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.maxLocals = maxLocals;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void maxStack(int maxStack) {
+            this.maxStack = maxStack;
+        }
+
+        private void u1(int value) {
+            if (size == code.length) {
+                var grown = new byte[code.length * 2];
+                System.arraycopy(code, 0, grown, 0, size);
+                code = grown;
+            }
+            code[size++] = (byte) value;
+        }
+
+        private void u2(int value) {
+            u1(value >> 8);
+            u1(value);
+        }
+
+        private void u4(int value) {
+            u2(value >> 16);
+            u2(value);
+        }
+
+        void op(int opcode) {
+            u1(opcode);
+        }
+
+        void op(int opcode, int u2) {
+            u1(opcode);
+            u2(u2);
+        }
+
+        /**
+         * Push an int constant with the shortest instruction.
+         */
+        void push(int value) {
+            if (value >= -1 && value <= 5) {
+                u1(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                u1(BIPUSH);
+                u1(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                u1(SIPUSH);
+                u2(value);
+            } else {
+                var index = integer(value);
+                if (index < 256) {
+                    u1(LDC);
+                    u1(index);
+                } else {
+                    op(LDC_W, index);
+                }
+            }
+        }
+
+        void iload(int local) {
+            local(ILOAD, ILOAD_0, local);
+        }
+
+        void istore(int local) {
+            local(ISTORE, ISTORE_0, local);
+        }
+
+        void aload(int local) {
+            local(ALOAD, ALOAD_0, local);
+        }
+
+        void astore(int local) {
+            local(ASTORE, ASTORE_0, local);
+        }
+
+        private void local(int opcode, int shortOpcode, int local) {
+            if (local <= 3) {
+                u1(shortOpcode + local);
+            } else if (local < 256) {
+                u1(opcode);
+                u1(local);
+            } else {
+                u1(WIDE);
+                op(opcode, local);
+            }
+        }
+
+        void iinc(int local, int delta) {
+            u1(IINC);
+            u1(local);
+            u1(delta);
+        }
+
+        void jump(int opcode, Label target) {
+            fixups.add(new Fixup(size, size + 1, target, false));
+            op(opcode, 0);
+        }
+
+        void mark(Label label) {
+            label.offset = size;
+        }
+
+        /**
+         * Emit a {@code tableswitch} over {@code [0, targets.length)}.
+         */
+        void tableswitch(Label fallback, Label... targets) {
+            var at = size;
+            u1(TABLESWITCH);
+            while (size % 4 != 0) {
+                u1(0);
+            }
+            fixups.add(new Fixup(at, size, fallback, true));
+            u4(0);
+            u4(0);
+            u4(targets.length - 1);
+            for (var target : targets) {
+                fixups.add(new Fixup(at, size, target, true));
+                u4(0);
+            }
+        }
+
+        /**
+         * Resolve jumps and add this method to the class.
+         *
+         * @throws TooLargeException if the method cannot be encoded
+         */
+        void finish() {
+            for (var fixup : fixups) {
+                var pos = fixup.pos;
+                var delta = fixup.target.offset - fixup.at;
+                if (fixup.wide) {
+                    code[pos] = (byte) (delta >> 24);
+                    code[pos + 1] = (byte) (delta >> 16);
+                    code[pos + 2] = (byte) (delta >> 8);
+                    code[pos + 3] = (byte) delta;
+                } else {
+                    if (delta < Short.MIN_VALUE || delta > Short.MAX_VALUE) {
+                        throw new TooLargeException("jump out of range in " + name);
+                    }
+                    code[pos] = (byte) (delta >> 8);
+                    code[pos + 1] = (byte) delta;
+                }
+            }
+            if (size > 65535) {
+                throw new TooLargeException("method too large: " + name);
+            }
+
+            var out = new DataOutputStream(methods);
+            try {
+                out.writeShort(access);
+                out.writeShort(utf8(name));
+                out.writeShort(utf8(descriptor));
+                out.writeShort(1);
+                out.writeShort(utf8("Code"));
+                out.writeInt(12 + size);
+                out.writeShort(maxStack);
+                out.writeShort(maxLocals);
+                out.writeInt(size);
+                out.write(code, 0, size);
+                out.writeShort(0); // exception table
+                out.writeShort(0); // attributes
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            methodCount++;
+        }
+    }
+}
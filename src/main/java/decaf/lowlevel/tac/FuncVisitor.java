@@ -57,6 +57,34 @@ public class FuncVisitor {
 	    func.add(new TacInstr.GoLabel());
     }
 
+    /**
+     * Add a GoCall Label so that the next call will run in a new coroutine, with a task to join it
+     *
+     * @return a fresh temp holding the task
+     */
+    public Temp addJoinableGoLabel() {
+        var temp = freshTemp();
+        func.add(new TacInstr.GoLabel(temp));
+        return temp;
+    }
+
+    /**
+     * Append {@link TacInstr.Join}.
+     *
+     * @param task       task of the coroutine
+     * @param needReturn if the result is used
+     * @return a fresh temp holding the result, or null if not needed
+     */
+    public Temp visitJoin(Temp task, boolean needReturn) {
+        if (needReturn) {
+            var temp = freshTemp();
+            func.add(new TacInstr.Join(temp, task));
+            return temp;
+        }
+        func.add(new TacInstr.Join(task));
+        return null;
+    }
+
     /**
      * Append {@link TacInstr.Lock}
      *
@@ -75,6 +103,40 @@ public class FuncVisitor {
         func.add(new TacInstr.Unlock(lockID));
     }
 
+    /**
+     * Append {@link TacInstr.NewChan}.
+     *
+     * @param capacity buffer capacity, 0 for an unbuffered channel
+     * @return a fresh temp holding the channel
+     */
+    public Temp visitNewChan(Temp capacity) {
+        var temp = freshTemp();
+        func.add(new TacInstr.NewChan(temp, capacity));
+        return temp;
+    }
+
+    /**
+     * Append {@link TacInstr.Send}.
+     *
+     * @param chan  channel
+     * @param value value to send
+     */
+    public void visitSend(Temp chan, Temp value) {
+        func.add(new TacInstr.Send(chan, value));
+    }
+
+    /**
+     * Append {@link TacInstr.Recv}.
+     *
+     * @param chan channel
+     * @return a fresh temp holding the received value
+     */
+    public Temp visitRecv(Temp chan) {
+        var temp = freshTemp();
+        func.add(new TacInstr.Recv(temp, chan));
+        return temp;
+    }
+
     /**
      * Append {@link TacInstr.Assign}.
      *
@@ -0,0 +1,315 @@
+package decaf.lowlevel.tac;
+
+import decaf.lowlevel.log.Log;
+
+import static decaf.lowlevel.tac.LinkedProgram.SLOT;
+
+/**
+ * Fuse the instruction sequences which the TAC emitter generates for common idioms into superinstructions, so that the
+ * switch engine dispatches once instead of a dozen times.
+ * <p>
+ * A superinstruction replaces only the first instruction of its sequence, and jumps over the rest, which is left in
+ * place: addresses do not change, and a rarely taken path in the middle, like the error handler of a bounds check, is
+ * still run as is. A sequence is fused only if nothing outside jumps into it, and the temps it defines for its own use
+ * are not read outside.
+ * <p>
+ * Array accesses, where {@code arr} is the array and {@code idx} the index:
+ * <pre>
+ *     p +  0: len = *(arr - 4)
+ *     p +  1: zero = 0
+ *     p +  2: c1 = (idx &lt; zero)
+ *     p +  3: c2 = (idx &gt;= len)
+ *     p +  4: c = (c1 || c2)
+ *     p +  5: if (c == 0) branch p + 10
+ *     p +  6: msg = "Decaf runtime error: Array subscript out of bounds\n"
+ *     p +  7: parm msg
+ *     p +  8: call _PrintString
+ *     p +  9: call _Halt
+ *     p + 10: four = 4
+ *     p + 11: off = (idx * four)
+ *     p + 12: addr = (arr + off)
+ *     p + 13: dst = *(addr + 0)    or    *(addr + 0) = src
+ * </pre>
+ * becomes {@code CHECKED_ARRAY_LOAD dst arr idx} or {@code CHECKED_ARRAY_STORE src arr idx}. If the store is separated
+ * by the evaluation of the right-hand side, the first 13 instructions become {@code CHECKED_ARRAY_ADDR addr arr idx}.
+ * <p>
+ * Calls through a closure {@code f}, where {@code n} is its number of captured values and the explicit arguments are
+ * already pushed:
+ * <pre>
+ *     p +  0: i = 0
+ *     p +  1: step = 8
+ *     p +  2: ptr = (f + step)
+ *     p +  3: four = 4
+ *     p +  4: t = (i &lt; n)
+ *     p +  5: if (t == 0) branch p + 14
+ *     p +  6: v = *(ptr + 0)
+ *     p +  7: parm v
+ *     p +  8: ptr' = (ptr + four)
+ *     p +  9: ptr = ptr'
+ *     p + 10: one = 1
+ *     p + 11: i' = (i + one)
+ *     p + 12: i = i'
+ *     p + 13: branch p + 4
+ *     p + 14: [dst =] call entry
+ * </pre>
+ * becomes {@code CLOSURE_CALL f n step}, which pushes the captured values and performs the call at {@code p + 14}.
+ */
+final class Fusion implements Opcodes {
+    /**
+     * Length of the fused sequences.
+     */
+    static final int CHECKED_ARRAY_ADDR_LENGTH = 13;
+    static final int CHECKED_ARRAY_ACCESS_LENGTH = 14;
+    static final int CLOSURE_CALL_LENGTH = 15;
+
+    /**
+     * Offset of the error handler in a fused bounds check, i.e. where it goes on when out of bounds.
+     */
+    static final int CHECKED_ARRAY_HANDLER = 6;
+
+    private static final int ANY = Integer.MIN_VALUE;
+
+    private final LinkedProgram program;
+
+    private final int[] fused;
+
+    /**
+     * Number of jumps to every address.
+     */
+    private final int[] jumpsTo;
+
+    /**
+     * Number of reads of every temp in the current function.
+     */
+    private int[] reads;
+
+    private int loads = 0;
+    private int stores = 0;
+    private int addrs = 0;
+    private int calls = 0;
+
+    private Fusion(LinkedProgram program) {
+        this.program = program;
+        fused = program.code.clone();
+        jumpsTo = new int[program.size() + 1];
+        for (var addr = 0; addr < program.size(); addr++) {
+            switch (op(addr)) {
+                case BRANCH -> jumpsTo[arg(addr, 0)]++;
+                case BEQZ, BNEZ -> jumpsTo[arg(addr, 1)]++;
+            }
+        }
+    }
+
+    /**
+     * Fuse a linked program. The program itself is not modified.
+     *
+     * @param program linked program
+     * @return encoded instructions with superinstructions, in the same layout as {@link LinkedProgram#code}
+     */
+    static int[] fuse(LinkedProgram program) {
+        var fusion = new Fusion(program);
+        for (var func = 0; func < program.funcs.length; func++) {
+            fusion.fuseFunc(func);
+        }
+        Log.info("fusion: %d checked array loads, %d checked array stores, %d checked array addresses, "
+                + "%d closure calls", fusion.loads, fusion.stores, fusion.addrs, fusion.calls);
+        return fusion.fused;
+    }
+
+    private void fuseFunc(int func) {
+        var begin = program.funcEntry[func];
+        var end = program.funcEnd(func);
+
+        reads = new int[program.funcFrameSize[func]];
+        for (var addr = begin; addr < end; addr++) {
+            countReads(addr, reads);
+        }
+
+        var addr = begin;
+        while (addr < end) {
+            var length = fuseCheckedArray(addr, end);
+            if (length == 0) {
+                length = fuseClosureCall(addr, end);
+            }
+            addr += Math.max(length, 1);
+        }
+    }
+
+    private int fuseCheckedArray(int p, int end) {
+        if (p + CHECKED_ARRAY_ADDR_LENGTH > end) return 0;
+
+        var len = arg(p, 0);
+        var arr = arg(p, 1);
+        var zero = arg(p + 1, 0);
+        var idx = arg(p + 2, 1);
+        var c1 = arg(p + 2, 0);
+        var c2 = arg(p + 3, 0);
+        var c = arg(p + 4, 0);
+        var msg = arg(p + 6, 0);
+        var four = arg(p + 10, 0);
+        var off = arg(p + 11, 0);
+        var addr = arg(p + 12, 0);
+        if (!(is(p, LOAD, len, arr, -4)
+                && is(p + 1, LOAD_IMM4, zero, 0)
+                && is(p + 2, LES, c1, idx, zero)
+                && is(p + 3, GEQ, c2, idx, len)
+                && is(p + 4, LOR, c, c1, c2)
+                && is(p + 5, BEQZ, c, p + 10)
+                && is(p + 6, LOAD_STR_CONST, msg, ANY)
+                && is(p + 7, PARM, msg)
+                && is(p + 8, INTRINSIC_CALL_VOID, Intrinsic.Opcode.PRINT_STRING.ordinal())
+                && is(p + 9, INTRINSIC_CALL_VOID, Intrinsic.Opcode.HALT.ordinal())
+                && is(p + 10, LOAD_IMM4, four, 4)
+                && is(p + 11, MUL, off, idx, four)
+                && is(p + 12, ADD, addr, arr, off)
+                && enteredOnlyAt(p, CHECKED_ARRAY_ADDR_LENGTH, p + 10)
+                && distinct(arr, idx, len, zero, c1, c2, c, four, off, addr)
+                && readOnlyInside(p, CHECKED_ARRAY_ADDR_LENGTH, len, zero, c1, c2, c, four, off))) {
+            return 0;
+        }
+
+        // Fuse the access as well, if the address is not needed elsewhere
+        var next = p + CHECKED_ARRAY_ADDR_LENGTH;
+        if (next < end && jumpsTo[next] == 0 && readOnlyInside(p, CHECKED_ARRAY_ACCESS_LENGTH, addr)) {
+            var value = arg(next, 0);
+            if (is(next, LOAD, value, addr, 0)) {
+                emit(p, CHECKED_ARRAY_LOAD, value, arr, idx);
+                loads++;
+                return CHECKED_ARRAY_ACCESS_LENGTH;
+            }
+            if (is(next, STORE, value, addr, 0) && distinct(value, len, zero, c1, c2, c, four, off, addr)) {
+                emit(p, CHECKED_ARRAY_STORE, value, arr, idx);
+                stores++;
+                return CHECKED_ARRAY_ACCESS_LENGTH;
+            }
+        }
+
+        emit(p, CHECKED_ARRAY_ADDR, addr, arr, idx);
+        addrs++;
+        return CHECKED_ARRAY_ADDR_LENGTH;
+    }
+
+    private int fuseClosureCall(int p, int end) {
+        if (p + CLOSURE_CALL_LENGTH > end) return 0;
+
+        var i = arg(p, 0);
+        var step = arg(p + 1, 0);
+        var offset = arg(p + 1, 1);
+        var ptr = arg(p + 2, 0);
+        var f = arg(p + 2, 1);
+        var four = arg(p + 3, 0);
+        var t = arg(p + 4, 0);
+        var n = arg(p + 4, 2);
+        var v = arg(p + 6, 0);
+        var ptr1 = arg(p + 8, 0);
+        var one = arg(p + 10, 0);
+        var i1 = arg(p + 11, 0);
+        var call = p + CLOSURE_CALL_LENGTH - 1;
+        var entry = op(call) == INDIRECT_CALL ? arg(call, 1) : arg(call, 0);
+        if (!(is(p, LOAD_IMM4, i, 0)
+                && is(p + 1, LOAD_IMM4, step, offset)
+                && is(p + 2, ADD, ptr, f, step)
+                && is(p + 3, LOAD_IMM4, four, 4)
+                && is(p + 4, LES, t, i, n)
+                && is(p + 5, BEQZ, t, call)
+                && is(p + 6, LOAD, v, ptr, 0)
+                && is(p + 7, PARM, v)
+                && is(p + 8, ADD, ptr1, ptr, four)
+                && is(p + 9, ASSIGN, ptr, ptr1)
+                && is(p + 10, LOAD_IMM4, one, 1)
+                && is(p + 11, ADD, i1, i, one)
+                && is(p + 12, ASSIGN, i, i1)
+                && is(p + 13, BRANCH, p + 4)
+                && (op(call) == INDIRECT_CALL || op(call) == INDIRECT_CALL_VOID)
+                && enteredOnlyAt(p, CLOSURE_CALL_LENGTH, p + 4, call)
+                && distinct(f, n, i, step, ptr, four, t, v, ptr1, one, i1)
+                && distinct(entry, i, step, ptr, four, t, v, ptr1, one, i1)
+                && readOnlyInside(p, CLOSURE_CALL_LENGTH, i, step, ptr, four, t, v, ptr1, one, i1))) {
+            return 0;
+        }
+
+        emit(p, CLOSURE_CALL, f, n, offset);
+        calls++;
+        return CLOSURE_CALL_LENGTH;
+    }
+
+    private int op(int addr) {
+        return program.code[addr * SLOT];
+    }
+
+    private int arg(int addr, int i) {
+        return program.code[addr * SLOT + 1 + i];
+    }
+
+    /**
+     * Match an instruction against an opcode and (a prefix of) operands, where {@link #ANY} matches anything.
+     */
+    private boolean is(int addr, int opcode, int... operands) {
+        if (op(addr) != opcode) return false;
+        for (var i = 0; i < operands.length; i++) {
+            if (operands[i] != ANY && arg(addr, i) != operands[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Check that no jump enters {@code [p, p + length)}, except at {@code p} and once at every given target.
+     */
+    private boolean enteredOnlyAt(int p, int length, int... targets) {
+        for (var addr = p + 1; addr < p + length; addr++) {
+            var expected = 0;
+            for (var target : targets) {
+                if (target == addr) expected = 1;
+            }
+            if (jumpsTo[addr] != expected) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Check that the given temps are not read outside {@code [p, p + length)}.
+     */
+    private boolean readOnlyInside(int p, int length, int... temps) {
+        var inside = new int[reads.length];
+        for (var addr = p; addr < p + length; addr++) {
+            countReads(addr, inside);
+        }
+        for (var temp : temps) {
+            if (inside[temp] != reads[temp]) return false;
+        }
+        return true;
+    }
+
+    private static boolean distinct(int... temps) {
+        for (var i = 0; i < temps.length; i++) {
+            for (var j = i + 1; j < temps.length; j++) {
+                if (temps[i] == temps[j]) return false;
+            }
+        }
+        return true;
+    }
+
+    private void countReads(int addr, int[] counts) {
+        switch (op(addr)) {
+            case ASSIGN, NEG, LNOT, LOAD, NEW_CHAN, RECV, JOIN -> counts[arg(addr, 1)]++;
+            case ADD, SUB, MUL, DIV, MOD, EQU, NEQ, LES, LEQ, GTR, GEQ, LAND, LOR -> {
+                counts[arg(addr, 1)]++;
+                counts[arg(addr, 2)]++;
+            }
+            case STORE, SEND -> {
+                counts[arg(addr, 0)]++;
+                counts[arg(addr, 1)]++;
+            }
+            case BEQZ, BNEZ, RETURN, PARM, INDIRECT_CALL_VOID, LOCK, UNLOCK, JOIN_VOID -> counts[arg(addr, 0)]++;
+            case INDIRECT_CALL -> counts[arg(addr, 1)]++;
+        }
+    }
+
+    private void emit(int addr, int opcode, int a, int b, int c) {
+        var i = addr * SLOT;
+        fused[i] = opcode;
+        fused[i + 1] = a;
+        fused[i + 2] = b;
+        fused[i + 3] = c;
+    }
+}
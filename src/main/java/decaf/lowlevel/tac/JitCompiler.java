@@ -0,0 +1,567 @@
+package decaf.lowlevel.tac;
+
+import decaf.lowlevel.log.Log;
+
+import java.util.Arrays;
+
+import static decaf.lowlevel.tac.ClassFile.*;
+
+/**
+ * Compile hot TAC functions to JVM bytecode, so that they are run (and eventually compiled to machine code) by the
+ * JVM itself.
+ * <p>
+ * Every function has an invocation counter and a back-edge counter. Once either reaches the threshold, the function
+ * is compiled to a class of its own:
+ * <pre>
+ *     static int run(int argc)                         the function
+ *     static int osr(int[] frame, int pc, int argc)    the function resumed from a jump target
+ * </pre>
+ * where {@code osr} allows a running interpreted activation, e.g. one stuck in a long loop, to continue by compiled
+ * code. A threshold of 0 compiles all functions before execution.
+ * <p>
+ * Temp {@code _Tk} lives in JVM local {@code k + 1}. Local 0 holds the number of actual arguments, first of the
+ * incoming call, then of the outgoing one. Arguments are passed in {@link JitRuntime#args}, while heap accesses,
+ * intrinsics and calls to functions not compiled yet go through {@link JitRuntime}. A function without return value
+ * returns 0.
+ * <p>
+ * If the garbage collector is on, see {@link JitRuntime#spills}, every activation also saves its temps to an array
+ * provided by {@link JitRuntime#enter} before it calls anything that may allocate, so that the pointers it holds are
+ * seen by the collector.
+ * <p>
+ * A compiled function cannot be suspended in the middle, and it runs to completion without giving up its time slice.
+ * Another coroutine could thus never run, e.g. to write what a compiled loop waits for, so nothing is compiled if the
+ * program starts coroutines at all, nor if it uses locks or channels.
+ */
+final class JitCompiler implements Opcodes {
+    private static final String RUNTIME = "decaf/lowlevel/tac/JitRuntime";
+    private static final String FUNCTION = "decaf/lowlevel/tac/JitRuntime$Function";
+
+    private final LinkedProgram program;
+
+    private final JitRuntime runtime;
+
+    private final int threshold;
+
+    private final Loader loader = new Loader(JitCompiler.class.getClassLoader());
+
+    /**
+     * Compiled functions, null if not compiled (yet).
+     */
+    private final JitRuntime.Function[] compiled;
+
+    /**
+     * Whether a function may be compiled.
+     */
+    private final boolean[] compilable;
+
+    private final int[] invocations;
+
+    private final int[] backEdges;
+
+    /**
+     * Number of compiled functions.
+     */
+    int count = 0;
+
+    /**
+     * Total size of the generated classes in bytes.
+     */
+    int size = 0;
+
+    /**
+     * Time spent in compiling, in nanoseconds.
+     */
+    long time = 0;
+
+    /**
+     * Constructor. If the threshold is 0, all functions are compiled at once.
+     *
+     * @param program   linked program
+     * @param runtime   services for compiled code
+     * @param threshold number of invocations, or back edges, to make a function hot
+     */
+    JitCompiler(LinkedProgram program, JitRuntime runtime, int threshold) {
+        this.program = program;
+        this.runtime = runtime;
+        this.threshold = threshold;
+
+        var n = program.funcs.length;
+        compiled = new JitRuntime.Function[n];
+        compilable = new boolean[n];
+        invocations = new int[n];
+        backEdges = new int[n];
+
+        var sync = false;
+        for (var func = 0; func < n; func++) {
+            for (var addr = program.funcEntry[func]; addr < program.funcEnd(func); addr++) {
+                switch (program.opcode(addr)) {
+                    case LOCK, UNLOCK, NEW_CHAN, SEND, RECV, JOIN, JOIN_VOID, GO, GO_TASK -> sync = true;
+                }
+            }
+        }
+        if (sync) {
+            Log.info("jit: disabled, because the program uses coroutines, locks or channels");
+        } else {
+            Arrays.fill(compilable, true);
+        }
+
+        if (threshold == 0) {
+            compileAll();
+        }
+    }
+
+    /**
+     * Count an invocation of a function.
+     *
+     * @return the compiled function, null if it is not compiled
+     */
+    JitRuntime.Function invoked(int func) {
+        var code = compiled[func];
+        if (code == null && compilable[func] && ++invocations[func] >= threshold) {
+            Log.fine("jit: %s is hot after %d invocations", program.funcs[func].entry.prettyString(),
+                    invocations[func]);
+            code = compile(func);
+        }
+        return code;
+    }
+
+    /**
+     * Count a back edge, i.e. a jump backwards, taken in a function.
+     *
+     * @return the compiled function, null if it is not compiled
+     */
+    JitRuntime.Function looped(int func) {
+        var code = compiled[func];
+        if (code == null && compilable[func] && ++backEdges[func] >= threshold) {
+            Log.fine("jit: %s is hot after %d back edges", program.funcs[func].entry.prettyString(),
+                    backEdges[func]);
+            code = compile(func);
+        }
+        return code;
+    }
+
+    private JitRuntime.Function compile(int func) {
+        var start = System.nanoTime();
+        var callable = new boolean[compiled.length];
+        for (var i = 0; i < compiled.length; i++) {
+            callable[i] = compiled[i] != null;
+        }
+        callable[func] = true;
+
+        try {
+            load(func, new Generator(func, callable).generate());
+        } catch (TooLargeException e) {
+            Log.info("jit: %s", e.getMessage());
+            compilable[func] = false;
+        }
+        time += System.nanoTime() - start;
+        return compiled[func];
+    }
+
+    /**
+     * Compile all compilable functions. As they are loaded together, they call each other directly.
+     */
+    private void compileAll() {
+        var start = System.nanoTime();
+        var classes = new byte[compiled.length][];
+
+        // A function is given up if it is too large to be a JVM method, and then the others must be regenerated,
+        // as they may call it directly
+        var done = false;
+        while (!done) {
+            done = true;
+            for (var func = 0; func < compiled.length && done; func++) {
+                if (!compilable[func]) continue;
+                try {
+                    classes[func] = new Generator(func, compilable).generate();
+                } catch (TooLargeException e) {
+                    Log.info("jit: %s", e.getMessage());
+                    compilable[func] = false;
+                    done = false;
+                }
+            }
+        }
+
+        for (var func = 0; func < compiled.length; func++) {
+            if (compilable[func]) load(func, classes[func]);
+        }
+        time += System.nanoTime() - start;
+    }
+
+    private void load(int func, byte[] bytes) {
+        try {
+            var clazz = loader.define(className(func).replace('/', '.'), bytes);
+            compiled[func] = (JitRuntime.Function) clazz.getConstructor(JitRuntime.class, int[].class)
+                    .newInstance(runtime, program.funcAt);
+            count++;
+            size += bytes.length;
+        } catch (ReflectiveOperationException | LinkageError e) {
+            Log.warn("jit: failed to load %s: %s", program.funcs[func].entry.prettyString(), e);
+            compilable[func] = false;
+        }
+    }
+
+    private static String className(int func) {
+        return "decaf/jit/F" + func;
+    }
+
+    private static class Loader extends ClassLoader {
+        Loader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * Generate the class of a function.
+     */
+    private class Generator {
+        private final int func;
+
+        /**
+         * Functions which can be called by {@code invokestatic}, as their classes are (or will be) loaded.
+         */
+        private final boolean[] callable;
+
+        private final ClassFile cf;
+
+        private final int runtimeField;
+        private final int argsField;
+        private final int funcAtField;
+
+        private final int frameSize;
+        private final int begin;
+        private final int end;
+
+        Generator(int func, boolean[] callable) {
+            this.func = func;
+            this.callable = callable;
+            var name = className(func);
+            cf = new ClassFile(name, "java/lang/Object", FUNCTION);
+
+            cf.field(ACC_PUBLIC | ACC_STATIC, "rt", "L" + RUNTIME + ";");
+            cf.field(ACC_PUBLIC | ACC_STATIC, "A", "[I");
+            cf.field(ACC_PUBLIC | ACC_STATIC, "F", "[I");
+            runtimeField = cf.fieldRef(name, "rt", "L" + RUNTIME + ";");
+            argsField = cf.fieldRef(name, "A", "[I");
+            funcAtField = cf.fieldRef(name, "F", "[I");
+
+            frameSize = program.funcFrameSize[func];
+            begin = program.funcEntry[func];
+            end = program.funcEnd(func);
+        }
+
+        byte[] generate() {
+            var name = className(func);
+
+            // public F(JitRuntime rt, int[] funcAt): initialize static fields
+            var m = cf.method(ACC_PUBLIC, "<init>", "(L" + RUNTIME + ";[I)V", 3);
+            m.aload(0);
+            m.op(INVOKESPECIAL, cf.methodRef("java/lang/Object", "<init>", "()V"));
+            m.aload(1);
+            m.op(PUTSTATIC, runtimeField);
+            m.aload(1);
+            m.op(GETFIELD, cf.fieldRef(RUNTIME, "args", "[I"));
+            m.op(PUTSTATIC, argsField);
+            m.aload(2);
+            m.op(PUTSTATIC, funcAtField);
+            m.op(ClassFile.RETURN);
+            m.finish();
+
+            // public int call(int argc)
+            m = cf.method(ACC_PUBLIC, "call", "(I)I", 2);
+            m.iload(1);
+            m.op(INVOKESTATIC, cf.methodRef(name, "run", "(I)I"));
+            m.op(IRETURN);
+            m.finish();
+
+            // public int resume(int[] frame, int pc, int argc)
+            m = cf.method(ACC_PUBLIC, "resume", "([III)I", 4);
+            m.aload(1);
+            m.iload(2);
+            m.iload(3);
+            m.op(INVOKESTATIC, cf.methodRef(name, "osr", "([III)I"));
+            m.op(IRETURN);
+            m.finish();
+
+            // static int run(int argc): like an interpreter frame, the first argc temps are the actual arguments,
+            // and the others are 0. Jump by argc into a sequence copying A[frameSize - 1], ..., A[0] in turn.
+            var shadow = runtime.spills ? frameSize + 1 : -1;
+            m = cf.method(ACC_PUBLIC | ACC_STATIC, "run", "(I)I", frameSize + 2);
+            for (var k = 0; k < frameSize; k++) {
+                m.push(0);
+                m.istore(k + 1);
+            }
+            if (frameSize > 0) {
+                var copy = new Label[frameSize + 1];
+                for (var c = 0; c <= frameSize; c++) {
+                    copy[c] = new Label();
+                }
+                m.iload(0);
+                m.tableswitch(copy[frameSize], copy);
+                for (var c = frameSize; c >= 1; c--) {
+                    m.mark(copy[c]);
+                    m.op(GETSTATIC, argsField);
+                    m.push(c - 1);
+                    m.op(IALOAD);
+                    m.istore(c);
+                }
+                m.mark(copy[0]);
+            }
+            m.push(0);
+            m.istore(0);
+            enter(m, shadow);
+            body(m, labels(), shadow);
+            m.finish();
+
+            // static int osr(int[] frame, int pc, int argc): the parameters are moved out of the way of temps first
+            var pc = frameSize + 1;
+            var argc = frameSize + 2;
+            var frame = frameSize + 3;
+            shadow = runtime.spills ? frameSize + 4 : -1;
+            m = cf.method(ACC_PUBLIC | ACC_STATIC, "osr", "([III)I", frameSize + 5);
+            m.iload(1);
+            m.istore(pc);
+            m.iload(2);
+            m.istore(argc);
+            m.aload(0);
+            m.astore(frame);
+            for (var k = 0; k < frameSize; k++) {
+                m.aload(frame);
+                m.push(k);
+                m.op(IALOAD);
+                m.istore(k + 1);
+            }
+            m.iload(argc);
+            m.istore(0);
+            enter(m, shadow);
+            var labels = labels();
+            m.iload(pc);
+            m.push(begin);
+            m.op(ISUB);
+            m.tableswitch(labels[0], labels);
+            body(m, labels, shadow);
+            m.finish();
+
+            return cf.toByteArray();
+        }
+
+        private Label[] labels() {
+            var labels = new Label[end - begin];
+            for (var i = 0; i < labels.length; i++) {
+                labels[i] = new Label();
+            }
+            return labels;
+        }
+
+        /**
+         * Get an array to save temps from the runtime, into local {@code shadow}, unless it is -1.
+         */
+        private void enter(ClassFile.Code m, int shadow) {
+            if (shadow < 0) return;
+            m.op(GETSTATIC, runtimeField);
+            m.push(frameSize);
+            m.op(INVOKEVIRTUAL, cf.methodRef(RUNTIME, "enter", "(I)[I"));
+            m.astore(shadow);
+        }
+
+        /**
+         * Save all temps to the array in local {@code shadow}, unless it is -1.
+         */
+        private void spill(ClassFile.Code m, int shadow) {
+            if (shadow < 0) return;
+            for (var k = 0; k < frameSize; k++) {
+                m.aload(shadow);
+                m.push(k);
+                m.iload(k + 1);
+                m.op(IASTORE);
+            }
+        }
+
+        private void leave(ClassFile.Code m, int shadow) {
+            if (shadow < 0) return;
+            m.op(GETSTATIC, runtimeField);
+            m.op(INVOKEVIRTUAL, cf.methodRef(RUNTIME, "leave", "()V"));
+        }
+
+        /**
+         * Translate the instructions, where {@code labels[addr - begin]} marks the instruction at {@code addr}, and
+         * {@code shadow} is the local holding the array to save temps, -1 if none.
+         */
+        private void body(ClassFile.Code m, Label[] labels, int shadow) {
+            final var code = program.code;
+            for (var addr = begin; addr < end; addr++) {
+                m.mark(labels[addr - begin]);
+                var i = addr * LinkedProgram.SLOT;
+                var a = code[i + 1];
+                var b = code[i + 2];
+                var c = code[i + 3];
+                switch (code[i]) {
+                    case ASSIGN -> {
+                        m.iload(b + 1);
+                        m.istore(a + 1);
+                    }
+                    case LOAD_IMM4, LOAD_STR_CONST, LOAD_VTBL -> {
+                        m.push(b);
+                        m.istore(a + 1);
+                    }
+                    case NEG -> {
+                        m.iload(b + 1);
+                        m.op(INEG);
+                        m.istore(a + 1);
+                    }
+                    case LNOT -> {
+                        var zero = new Label();
+                        var done = new Label();
+                        m.iload(b + 1);
+                        m.jump(IFNE, zero);
+                        m.push(1);
+                        m.jump(GOTO, done);
+                        m.mark(zero);
+                        m.push(0);
+                        m.mark(done);
+                        m.istore(a + 1);
+                    }
+                    case ADD -> arith(m, IADD, a, b, c);
+                    case SUB -> arith(m, ISUB, a, b, c);
+                    case MUL -> arith(m, IMUL, a, b, c);
+                    case DIV -> arith(m, IDIV, a, b, c);
+                    case MOD -> arith(m, IREM, a, b, c);
+                    case EQU -> compare(m, IF_ICMPEQ, a, b, c);
+                    case NEQ -> compare(m, IF_ICMPNE, a, b, c);
+                    case LES -> compare(m, IF_ICMPLT, a, b, c);
+                    case LEQ -> compare(m, IF_ICMPLE, a, b, c);
+                    case GTR -> compare(m, IF_ICMPGT, a, b, c);
+                    case GEQ -> compare(m, IF_ICMPGE, a, b, c);
+                    case LAND, LOR -> {
+                        // LAND: any operand is 0 => 0; LOR: any operand is not 0 => 1
+                        var shortcut = code[i] == LAND ? IFEQ : IFNE;
+                        var taken = new Label();
+                        var done = new Label();
+                        m.iload(b + 1);
+                        m.jump(shortcut, taken);
+                        m.iload(c + 1);
+                        m.jump(shortcut, taken);
+                        m.push(code[i] == LAND ? 1 : 0);
+                        m.jump(GOTO, done);
+                        m.mark(taken);
+                        m.push(code[i] == LAND ? 0 : 1);
+                        m.mark(done);
+                        m.istore(a + 1);
+                    }
+                    case BRANCH -> m.jump(GOTO, labels[a - begin]);
+                    case BEQZ, BNEZ -> {
+                        m.iload(a + 1);
+                        m.jump(code[i] == BEQZ ? IFEQ : IFNE, labels[b - begin]);
+                    }
+                    case LOAD -> {
+                        m.op(GETSTATIC, runtimeField);
+                        m.iload(b + 1);
+                        m.push(c);
+                        m.op(INVOKEVIRTUAL, cf.methodRef(RUNTIME, "load", "(II)I"));
+                        m.istore(a + 1);
+                    }
+                    case STORE -> {
+                        m.op(GETSTATIC, runtimeField);
+                        m.iload(a + 1);
+                        m.iload(b + 1);
+                        m.push(c);
+                        m.op(INVOKEVIRTUAL, cf.methodRef(RUNTIME, "store", "(III)V"));
+                    }
+                    case PARM -> {
+                        m.op(GETSTATIC, argsField);
+                        m.iload(0);
+                        m.iload(a + 1);
+                        m.op(IASTORE);
+                        m.iinc(0, 1);
+                    }
+                    case INDIRECT_CALL, INDIRECT_CALL_VOID -> {
+                        var entry = code[i] == INDIRECT_CALL ? b : a;
+                        spill(m, shadow);
+                        m.op(GETSTATIC, runtimeField);
+                        m.op(GETSTATIC, funcAtField);
+                        m.iload(entry + 1);
+                        m.op(IALOAD);
+                        m.iload(0);
+                        m.op(INVOKEVIRTUAL, cf.methodRef(RUNTIME, "call", "(II)I"));
+                        afterCall(m, code[i] == INDIRECT_CALL ? a : -1);
+                    }
+                    case DIRECT_CALL, DIRECT_CALL_VOID -> {
+                        var callee = code[i] == DIRECT_CALL ? b : a;
+                        spill(m, shadow);
+                        if (callable[callee]) {
+                            m.iload(0);
+                            m.op(INVOKESTATIC, cf.methodRef(className(callee), "run", "(I)I"));
+                        } else {
+                            m.op(GETSTATIC, runtimeField);
+                            m.push(callee);
+                            m.iload(0);
+                            m.op(INVOKEVIRTUAL, cf.methodRef(RUNTIME, "call", "(II)I"));
+                        }
+                        afterCall(m, code[i] == DIRECT_CALL ? a : -1);
+                    }
+                    case INTRINSIC_CALL, INTRINSIC_CALL_VOID -> {
+                        var intrinsic = code[i] == INTRINSIC_CALL ? b : a;
+                        if (intrinsic == Intrinsic.Opcode.ALLOCATE.ordinal()
+                                || intrinsic == Intrinsic.Opcode.READ_LINE.ordinal()) {
+                            spill(m, shadow);
+                        }
+                        m.op(GETSTATIC, runtimeField);
+                        m.push(intrinsic);
+                        m.op(INVOKEVIRTUAL, cf.methodRef(RUNTIME, "intrinsic", "(I)I"));
+                        afterCall(m, code[i] == INTRINSIC_CALL ? a : -1);
+                    }
+                    case RETURN -> {
+                        leave(m, shadow);
+                        m.iload(a + 1);
+                        m.op(IRETURN);
+                    }
+                    case RETURN_VOID -> {
+                        leave(m, shadow);
+                        m.push(0);
+                        m.op(IRETURN);
+                    }
+                    default -> { // NOP
+                    }
+                }
+            }
+        }
+    }
+
+    private static void arith(ClassFile.Code m, int opcode, int dst, int lhs, int rhs) {
+        m.iload(lhs + 1);
+        m.iload(rhs + 1);
+        m.op(opcode);
+        m.istore(dst + 1);
+    }
+
+    private static void compare(ClassFile.Code m, int opcode, int dst, int lhs, int rhs) {
+        var taken = new Label();
+        var done = new Label();
+        m.iload(lhs + 1);
+        m.iload(rhs + 1);
+        m.jump(opcode, taken);
+        m.push(0);
+        m.jump(GOTO, done);
+        m.mark(taken);
+        m.push(1);
+        m.mark(done);
+        m.istore(dst + 1);
+    }
+
+    /**
+     * Save the return value which is on the top of the stack, and reset the argument counter.
+     */
+    private static void afterCall(ClassFile.Code m, int dst) {
+        if (dst >= 0) {
+            m.istore(dst + 1);
+        } else {
+            m.op(POP);
+        }
+        m.push(0);
+        m.istore(0);
+    }
+}
@@ -0,0 +1,116 @@
+package decaf.lowlevel.tac;
+
+import java.util.Arrays;
+
+/**
+ * Services of the simulator, as seen by TAC functions compiled to JVM bytecode.
+ * <p>
+ * This is public only because compiled code is defined by its own class loader, and hence cannot access anything
+ * package-private. It is not meant to be used elsewhere.
+ *
+ * @see JitCompiler
+ */
+public abstract class JitRuntime {
+    /**
+     * A compiled function.
+     */
+    public interface Function {
+        /**
+         * Call the function, with actual arguments in {@link #args}.
+         *
+         * @param argc number of actual arguments
+         * @return return value, or 0 if none
+         */
+        int call(int argc);
+
+        /**
+         * Continue running an interpreted activation of the function, i.e. on-stack replacement.
+         *
+         * @param frame values of temps
+         * @param pc    address of the instruction to resume from, which must be a jump target
+         * @param argc  number of actual arguments already pushed for the next call, in {@link #args}
+         * @return return value, or 0 if none
+         */
+        int resume(int[] frame, int pc, int argc);
+    }
+
+    /**
+     * Actual arguments of the next call: the caller writes them from index 0, and the callee copies them to its temps
+     * on entry.
+     */
+    public final int[] args;
+
+    /**
+     * Whether compiled code saves its temps in {@link #frames} before every call, so that the garbage collector can
+     * find the pointers they hold.
+     */
+    public final boolean spills;
+
+    /**
+     * Temps of the running compiled activations, from the outermost, as of their last call.
+     */
+    int[][] frames = new int[64][];
+
+    /**
+     * Number of running compiled activations, if {@link #spills}.
+     */
+    int depth = 0;
+
+    protected JitRuntime(int maxArgs, boolean spills) {
+        args = new int[maxArgs];
+        this.spills = spills;
+    }
+
+    /**
+     * Enter a compiled activation, if {@link #spills}.
+     *
+     * @param size frame size
+     * @return where to save temps
+     */
+    public int[] enter(int size) {
+        if (depth == frames.length) {
+            frames = Arrays.copyOf(frames, depth * 2);
+        }
+        var frame = frames[depth];
+        if (frame == null || frame.length != size) {
+            frame = new int[size];
+            frames[depth] = frame;
+        }
+        depth++;
+        return frame;
+    }
+
+    /**
+     * Leave a compiled activation, if {@link #spills}.
+     */
+    public void leave() {
+        depth--;
+    }
+
+    /**
+     * Load a word from the heap.
+     */
+    public abstract int load(int base, int offset);
+
+    /**
+     * Store a word to the heap.
+     */
+    public abstract void store(int value, int base, int offset);
+
+    /**
+     * Call an intrinsic, with actual arguments in {@link #args}.
+     *
+     * @param opcode ordinal of the {@link Intrinsic.Opcode}
+     * @return return value, or 0 if none
+     */
+    public abstract int intrinsic(int opcode);
+
+    /**
+     * Call a function which may not be compiled yet, with actual arguments in {@link #args}.
+     *
+     * @param func function index
+     * @param argc number of actual arguments
+     * @return return value, or 0 if none
+     */
+    public abstract int call(int func, int argc);
+}
@@ -0,0 +1,398 @@
+package decaf.lowlevel.tac;
+
+import decaf.lowlevel.label.FuncLabel;
+import decaf.lowlevel.label.IntrinsicLabel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+
+/**
+ * A TAC program after linking, i.e. the "instruction memory" of the simulator.
+ * <p>
+ * Linking flattens every function into one instruction array, and resolves every symbolic operand once and for all:
+ * labels become instruction addresses, called functions become function indexes, and virtual tables and string
+ * constants become heap addresses. Each instruction takes {@link #SLOT} words in {@link #code}:
+ * <pre>
+ *     code[addr * SLOT + 0]: opcode, see {@link Opcodes}
+ *     code[addr * SLOT + 1]: operand a
+ *     code[addr * SLOT + 2]: operand b
+ *     code[addr * SLOT + 3]: operand c
+ * </pre>
+ * where temps are encoded by their indexes. For example, {@code _T3 = (_T1 + _T2)} is encoded as
+ * {@code ADD 3 1 2}, and {@code if (_T1 == 0) branch _L5} as {@code BEQZ 1 addr(_L5)}.
+ * <p>
+ * Labels and memos are not executable and hence take no space.
+ */
+final class LinkedProgram implements Opcodes {
+    /**
+     * Number of words taken by every instruction.
+     */
+    static final int SLOT = 4;
+
+    /**
+     * The instructions, indexed by their addresses.
+     */
+    final TacInstr[] instrs;
+
+    /**
+     * Encoded instructions, see the class documentation.
+     */
+    final int[] code;
+
+    /**
+     * All functions, indexed by function indexes.
+     */
+    final TacFunc[] funcs;
+
+    /**
+     * Address of the entry instruction of every function.
+     */
+    final int[] funcEntry;
+
+    /**
+     * Number of temps used by every function, i.e. the frame size.
+     */
+    final int[] funcFrameSize;
+
+    /**
+     * Look up a function index by the address of its entry instruction, -1 if the address is not a function entry.
+     */
+    final int[] funcAt;
+
+    /**
+     * Look up the index of the function which an instruction belongs to, by its address.
+     */
+    final int[] funcOf;
+
+    /**
+     * Index of the main function, -1 if absent.
+     */
+    final int mainFunc;
+
+    /**
+     * Look up the name of the label right before an instruction, by its address, null if none. Of several labels in a
+     * row, the last one is kept.
+     */
+    final String[] labelAt;
+
+    private final Map<String, Integer> funcIndex;
+
+    private LinkedProgram(TacInstr[] instrs, int[] code, TacFunc[] funcs, int[] funcEntry,
+                          Map<String, Integer> funcIndex, int mainFunc, String[] labelAt) {
+        this.instrs = instrs;
+        this.code = code;
+        this.funcs = funcs;
+        this.funcEntry = funcEntry;
+        this.funcIndex = funcIndex;
+        this.mainFunc = mainFunc;
+        this.labelAt = labelAt;
+
+        funcFrameSize = new int[funcs.length];
+        funcAt = new int[instrs.length + 1];
+        Arrays.fill(funcAt, -1);
+        funcOf = new int[instrs.length];
+        for (var i = 0; i < funcs.length; i++) {
+            funcFrameSize[i] = funcs[i].getUsedTempCount();
+            funcAt[funcEntry[i]] = i;
+            Arrays.fill(funcOf, funcEntry[i], funcEnd(i), i);
+        }
+    }
+
+    /**
+     * Number of instructions.
+     */
+    int size() {
+        return instrs.length;
+    }
+
+    /**
+     * Address next to the last instruction of a function.
+     */
+    int funcEnd(int func) {
+        return func + 1 < funcs.length ? funcEntry[func + 1] : instrs.length;
+    }
+
+    int opcode(int addr) {
+        return code[addr * SLOT];
+    }
+
+    int operand(int addr, int i) {
+        return code[addr * SLOT + 1 + i];
+    }
+
+    /**
+     * Find the entry address of a function.
+     *
+     * @param entry function label
+     * @return entry address
+     */
+    int entryOf(FuncLabel entry) {
+        var index = funcIndex.get(entry.name);
+        if (index == null) {
+            throw new Simulator.Error("undefined function " + entry.prettyString());
+        }
+        return funcEntry[index];
+    }
+
+    /**
+     * Link a TAC program.
+     *
+     * @param program     TAC program
+     * @param vtableAddr  look up the address of a virtual table
+     * @param stringAddr  intern a string constant and get its heap address
+     * @return linked program
+     */
+    static LinkedProgram link(TacProg program, ToIntFunction<VTable> vtableAddr, ToIntFunction<String> stringAddr) {
+        var funcs = program.funcs.toArray(new TacFunc[0]);
+        var funcEntry = new int[funcs.length];
+        var funcIndex = new HashMap<String, Integer>();
+        var labelAddr = new HashMap<String, Integer>();
+        var instrs = new ArrayList<TacInstr>();
+        var labels = new ArrayList<String>();
+        var mainFunc = -1;
+
+        // Pass 1: lay out instructions, and record the address of every label
+        for (var i = 0; i < funcs.length; i++) {
+            var func = funcs[i];
+            funcIndex.put(func.entry.name, i);
+            funcEntry[i] = instrs.size();
+            if (func.entry.name.equals(FuncLabel.MAIN_LABEL.name)) {
+                mainFunc = i;
+            }
+
+            String label = null;
+            for (var instr : func.getInstrSeq()) {
+                if (instr.isLabel()) {
+                    labelAddr.put(instr.label.name, instrs.size());
+                    if (!instr.label.isFunc()) {
+                        label = instr.label.name;
+                    }
+                } else if (!(instr instanceof TacInstr.Memo)) {
+                    instrs.add(instr);
+                    labels.add(label);
+                    label = null;
+                }
+            }
+
+            if (instrs.isEmpty() || !instrs.get(instrs.size() - 1).isReturn()) {
+                throw new Simulator.Error(String.format("In TAC function %s: the last instruction must be return",
+                        func.entry.prettyString()));
+            }
+        }
+
+        // Pass 2: encode
+        var code = new int[instrs.size() * SLOT];
+        var encoder = new Encoder(code, labelAddr, funcIndex, vtableAddr, stringAddr);
+        for (var addr = 0; addr < instrs.size(); addr++) {
+            encoder.addr = addr;
+            instrs.get(addr).accept(encoder);
+        }
+
+        return new LinkedProgram(instrs.toArray(new TacInstr[0]), code, funcs, funcEntry, funcIndex, mainFunc,
+                labels.toArray(new String[0]));
+    }
+
+    private static class Encoder implements TacInstr.Visitor {
+        final int[] code;
+        final Map<String, Integer> labelAddr;
+        final Map<String, Integer> funcIndex;
+        final ToIntFunction<VTable> vtableAddr;
+        final ToIntFunction<String> stringAddr;
+
+        int addr;
+
+        Encoder(int[] code, Map<String, Integer> labelAddr, Map<String, Integer> funcIndex,
+                ToIntFunction<VTable> vtableAddr, ToIntFunction<String> stringAddr) {
+            this.code = code;
+            this.labelAddr = labelAddr;
+            this.funcIndex = funcIndex;
+            this.vtableAddr = vtableAddr;
+            this.stringAddr = stringAddr;
+        }
+
+        private void emit(int opcode, int a, int b, int c) {
+            var i = addr * SLOT;
+            code[i] = opcode;
+            code[i + 1] = a;
+            code[i + 2] = b;
+            code[i + 3] = c;
+        }
+
+        private int resolve(String label) {
+            var target = labelAddr.get(label);
+            if (target == null) {
+                throw new Simulator.Error("undefined label " + label);
+            }
+            return target;
+        }
+
+        @Override
+        public void visitAssign(TacInstr.Assign instr) {
+            emit(ASSIGN, instr.dst.index, instr.src.index, 0);
+        }
+
+        @Override
+        public void visitLoadVTbl(TacInstr.LoadVTbl instr) {
+            emit(LOAD_VTBL, instr.dst.index, vtableAddr.applyAsInt(instr.vtbl), 0);
+        }
+
+        @Override
+        public void visitLoadImm4(TacInstr.LoadImm4 instr) {
+            emit(LOAD_IMM4, instr.dst.index, instr.value, 0);
+        }
+
+        @Override
+        public void visitLoadStrConst(TacInstr.LoadStrConst instr) {
+            emit(LOAD_STR_CONST, instr.dst.index, stringAddr.applyAsInt(instr.value), 0);
+        }
+
+        @Override
+        public void visitUnary(TacInstr.Unary instr) {
+            var opcode = switch (instr.op) {
+                case NEG -> NEG;
+                case LNOT -> LNOT;
+            };
+            emit(opcode, instr.dst.index, instr.operand.index, 0);
+        }
+
+        @Override
+        public void visitBinary(TacInstr.Binary instr) {
+            var opcode = switch (instr.op) {
+                case ADD -> ADD;
+                case SUB -> SUB;
+                case MUL -> MUL;
+                case DIV -> DIV;
+                case MOD -> MOD;
+                case EQU -> EQU;
+                case NEQ -> NEQ;
+                case LES -> LES;
+                case LEQ -> LEQ;
+                case GTR -> GTR;
+                case GEQ -> GEQ;
+                case LAND -> LAND;
+                case LOR -> LOR;
+            };
+            emit(opcode, instr.dst.index, instr.lhs.index, instr.rhs.index);
+        }
+
+        @Override
+        public void visitBranch(TacInstr.Branch instr) {
+            emit(BRANCH, resolve(instr.target.name), 0, 0);
+        }
+
+        @Override
+        public void visitCondBranch(TacInstr.CondBranch instr) {
+            var opcode = switch (instr.op) {
+                case BEQZ -> BEQZ;
+                case BNEZ -> BNEZ;
+            };
+            emit(opcode, instr.cond.index, resolve(instr.target.name), 0);
+        }
+
+        @Override
+        public void visitReturn(TacInstr.Return instr) {
+            if (instr.value.isPresent()) {
+                emit(RETURN, instr.value.get().index, 0, 0);
+            } else {
+                emit(RETURN_VOID, 0, 0, 0);
+            }
+        }
+
+        @Override
+        public void visitParm(TacInstr.Parm instr) {
+            emit(PARM, instr.value.index, 0, 0);
+        }
+
+        @Override
+        public void visitIndirectCall(TacInstr.IndirectCall instr) {
+            if (instr.dst.isPresent()) {
+                emit(INDIRECT_CALL, instr.dst.get().index, instr.entry.index, 0);
+            } else {
+                emit(INDIRECT_CALL_VOID, instr.entry.index, 0, 0);
+            }
+        }
+
+        @Override
+        public void visitDirectCall(TacInstr.DirectCall instr) {
+            if (instr.entry.isIntrinsic()) {
+                var opcode = ((IntrinsicLabel) instr.entry).opcode.ordinal();
+                if (instr.dst.isPresent()) {
+                    emit(INTRINSIC_CALL, instr.dst.get().index, opcode, 0);
+                } else {
+                    emit(INTRINSIC_CALL_VOID, opcode, 0, 0);
+                }
+                return;
+            }
+
+            var func = funcIndex.get(instr.entry.name);
+            if (func == null) {
+                throw new Simulator.Error("undefined function " + instr.entry.prettyString());
+            }
+            if (instr.dst.isPresent()) {
+                emit(DIRECT_CALL, instr.dst.get().index, func, 0);
+            } else {
+                emit(DIRECT_CALL_VOID, func, 0, 0);
+            }
+        }
+
+        @Override
+        public void visitGoLabel(TacInstr.GoLabel instr) {
+            if (instr.task.isPresent()) {
+                emit(GO_TASK, instr.task.get().index, 0, 0);
+            } else {
+                emit(GO, 0, 0, 0);
+            }
+        }
+
+        @Override
+        public void visitJoin(TacInstr.Join instr) {
+            if (instr.dst.isPresent()) {
+                emit(JOIN, instr.dst.get().index, instr.task.index, 0);
+            } else {
+                emit(JOIN_VOID, instr.task.index, 0, 0);
+            }
+        }
+
+        @Override
+        public void visitLock(TacInstr.Lock instr) {
+            emit(LOCK, instr.lockID.index, 0, 0);
+        }
+
+        @Override
+        public void visitUnlock(TacInstr.Unlock instr) {
+            emit(UNLOCK, instr.lockID.index, 0, 0);
+        }
+
+        @Override
+        public void visitNewChan(TacInstr.NewChan instr) {
+            emit(NEW_CHAN, instr.dst.index, instr.capacity.index, 0);
+        }
+
+        @Override
+        public void visitSend(TacInstr.Send instr) {
+            emit(SEND, instr.chan.index, instr.value.index, 0);
+        }
+
+        @Override
+        public void visitRecv(TacInstr.Recv instr) {
+            emit(RECV, instr.dst.index, instr.chan.index, 0);
+        }
+
+        @Override
+        public void visitMemory(TacInstr.Memory instr) {
+            var opcode = switch (instr.op) {
+                case LOAD -> LOAD;
+                case STORE -> STORE;
+            };
+            emit(opcode, instr.dst.index, instr.base.index, instr.offset);
+        }
+
+        @Override
+        public void visitOthers(TacInstr instr) {
+            emit(NOP, 0, 0, 0);
+        }
+    }
+}
@@ -1,5 +1,10 @@
 package decaf.lowlevel.tac;
 
+/**
+ * Integer opcodes of linked TAC instructions.
+ *
+ * @see LinkedProgram
+ */
 public interface Opcodes {
 
     // 0-address
@@ -39,4 +44,37 @@ public interface Opcodes {
     int GEQ = 27;
     int LAND = 28;
     int LOR = 29;
+
+    // conditional branches: cond, target
+    int BEQZ = 30;
+    int BNEZ = 31;
+
+    // memory access: dst/src, base, offset
+    int LOAD = 32;
+    int STORE = 33;
+
+    // intrinsic calls: (dst,)? intrinsic opcode
+    int INTRINSIC_CALL_VOID = 34;
+    int INTRINSIC_CALL = 35;
+
+    // coroutines
+    int GO = 36;
+    int LOCK = 37;
+    int UNLOCK = 38;
+
+    // superinstructions, see Fusion
+    int CHECKED_ARRAY_ADDR = 39;
+    int CHECKED_ARRAY_LOAD = 40;
+    int CHECKED_ARRAY_STORE = 41;
+    int CLOSURE_CALL = 42;
+
+    // channels: dst, capacity | chan, value | dst, chan
+    int NEW_CHAN = 43;
+    int SEND = 44;
+    int RECV = 45;
+
+    // tasks: task | dst, task | task
+    int GO_TASK = 46;
+    int JOIN = 47;
+    int JOIN_VOID = 48;
 }
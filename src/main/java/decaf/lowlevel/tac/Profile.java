@@ -0,0 +1,302 @@
+package decaf.lowlevel.tac;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Execution profile of a TAC program, taken by the interpreters of the {@link Simulator}.
+ * <p>
+ * Every retired instruction is counted at its address, which gives the execution count of every basic block (that of
+ * its first instruction), and the self instruction count of every function. Stacks are tracked by a calling context
+ * tree: every node stands for a function called in the context of its parent node, and every coroutine starts at the
+ * root. Each retired instruction is also charged to the node of the running function, from which follow the
+ * inclusive instruction counts and the folded stacks. Stacks deeper than {@link #MAX_DEPTH} are cut, and the deeper
+ * calls are charged to the node at that depth.
+ * <p>
+ * All counters are arrays, indexed by address, function or node.
+ */
+final class Profile {
+    /**
+     * The root of the calling context tree.
+     */
+    static final int ROOT = 0;
+
+    /**
+     * Depth of the deepest node.
+     */
+    static final int MAX_DEPTH = 256;
+
+    private final LinkedProgram program;
+
+    /**
+     * Number of times every instruction retired, by address.
+     */
+    private final long[] hits;
+
+    /**
+     * The only function called by every call instruction, by address: {@link #NONE} if never executed, or
+     * {@link #MANY} if it called more than one function.
+     */
+    private final int[] callee;
+
+    private static final int NONE = -1;
+    private static final int MANY = -2;
+
+    /**
+     * Number of arguments passed by every call instruction, by address, as of its first execution. A closure of a
+     * function always captures the same number of values, hence the number is that of every call to a single callee.
+     */
+    private final int[] argc;
+
+    /**
+     * Number of calls to, blocks allocated by and bytes allocated by every function, by function index.
+     */
+    private final long[] invocations;
+    private final long[] allocations;
+    private final long[] allocatedBytes;
+
+    /**
+     * The calling context tree: the function, parent, first child and next sibling of every node, and the number of
+     * instructions charged to it. Children are created after their parents, hence have larger indexes.
+     */
+    private int[] nodeFunc = new int[256];
+    private int[] nodeParent = new int[256];
+    private int[] firstChild = new int[256];
+    private int[] nextSibling = new int[256];
+    private long[] nodeSelf = new long[256];
+    private int nodes = 1;
+
+    Profile(LinkedProgram program) {
+        this.program = program;
+        hits = new long[program.size()];
+        callee = new int[program.size()];
+        Arrays.fill(callee, NONE);
+        argc = new int[program.size()];
+        invocations = new long[program.funcs.length];
+        allocations = new long[program.funcs.length];
+        allocatedBytes = new long[program.funcs.length];
+        nodeFunc[ROOT] = -1;
+    }
+
+    /**
+     * Count an instruction about to retire.
+     *
+     * @param node node of the running function
+     * @param addr address of the instruction
+     */
+    void retire(int node, int addr) {
+        hits[addr]++;
+        nodeSelf[node]++;
+    }
+
+    /**
+     * Record the function called by a call instruction.
+     *
+     * @param addr address of the call
+     * @param func index of the callee
+     * @param argc number of arguments passed
+     */
+    void called(int addr, int func, int argc) {
+        if (callee[addr] == NONE) {
+            callee[addr] = func;
+            this.argc[addr] = argc;
+        } else if (callee[addr] != func) {
+            callee[addr] = MANY;
+        }
+    }
+
+    /**
+     * Count a call.
+     *
+     * @param node  node of the caller, {@link #ROOT} if none
+     * @param func  index of the callee
+     * @param depth depth of the callee's frame, from 1
+     * @return node of the callee
+     */
+    int enter(int node, int func, int depth) {
+        invocations[func]++;
+        if (depth > MAX_DEPTH) {
+            return node;
+        }
+
+        for (var child = firstChild[node]; child != ROOT; child = nextSibling[child]) {
+            if (nodeFunc[child] == func) {
+                return child;
+            }
+        }
+
+        if (nodes == nodeFunc.length) {
+            var capacity = 2 * nodes;
+            nodeFunc = Arrays.copyOf(nodeFunc, capacity);
+            nodeParent = Arrays.copyOf(nodeParent, capacity);
+            firstChild = Arrays.copyOf(firstChild, capacity);
+            nextSibling = Arrays.copyOf(nextSibling, capacity);
+            nodeSelf = Arrays.copyOf(nodeSelf, capacity);
+        }
+        var child = nodes++;
+        nodeFunc[child] = func;
+        nodeParent[child] = node;
+        nextSibling[child] = firstChild[node];
+        firstChild[node] = child;
+        return child;
+    }
+
+    /**
+     * Count a return.
+     *
+     * @param node  node of the returning function
+     * @param depth depth of its frame, from 1
+     * @return node of the caller
+     */
+    int leave(int node, int depth) {
+        return depth > MAX_DEPTH ? node : nodeParent[node];
+    }
+
+    /**
+     * Count an allocation.
+     *
+     * @param addr address of the intrinsic call
+     * @param size size in bytes
+     */
+    void allocated(int addr, int size) {
+        var func = program.funcOf[addr];
+        allocations[func]++;
+        allocatedBytes[func] += size;
+    }
+
+    /**
+     * Write the profile: the folded stacks, one per line as {@code f;g;h count}, to {@code <base>.folded}, which flame
+     * graph tools take, and a summary of every function to {@code <base>.profile.json}. Besides the totals, it lists the
+     * execution counts of the basic blocks and of the indirect call sites, and the callee of every site which always
+     * called the same function, with the number of arguments it passed, all by the offset of their first instruction in the function, where labels and memos
+     * take no space.
+     *
+     * @param base path of the files, without extension
+     */
+    void write(Path base) throws IOException {
+        try (var out = new PrintWriter(Files.newBufferedWriter(base.resolveSibling(base.getFileName() + ".folded")))) {
+            writeFolded(out);
+        }
+        try (var out = new PrintWriter(Files.newBufferedWriter(base.resolveSibling(base.getFileName() +
+                ".profile.json")))) {
+            writeJson(out);
+        }
+    }
+
+    private void writeFolded(PrintWriter out) {
+        var stack = new ArrayList<String>();
+        for (var node = 1; node < nodes; node++) {
+            if (nodeSelf[node] == 0) {
+                continue;
+            }
+            stack.clear();
+            for (var n = node; n != ROOT; n = nodeParent[n]) {
+                stack.add(name(nodeFunc[n]));
+            }
+            for (var i = stack.size() - 1; i >= 0; i--) {
+                out.print(stack.get(i));
+                out.print(i > 0 ? ";" : " ");
+            }
+            out.println(nodeSelf[node]);
+        }
+    }
+
+    private void writeJson(PrintWriter out) {
+        // A function is charged what its outermost activations retired, including its callees
+        var nodeInclusive = Arrays.copyOf(nodeSelf, nodes);
+        for (var node = nodes - 1; node > ROOT; node--) {
+            nodeInclusive[nodeParent[node]] += nodeInclusive[node];
+        }
+        var inclusive = new long[program.funcs.length];
+        for (var node = 1; node < nodes; node++) {
+            var outermost = true;
+            for (var n = nodeParent[node]; n != ROOT; n = nodeParent[n]) {
+                if (nodeFunc[n] == nodeFunc[node]) {
+                    outermost = false;
+                    break;
+                }
+            }
+            if (outermost) {
+                inclusive[nodeFunc[node]] += nodeInclusive[node];
+            }
+        }
+
+        out.println("{");
+        out.printf("  \"instructions\": %d,%n", Arrays.stream(hits).sum());
+        out.println("  \"functions\": [");
+        for (var func = 0; func < program.funcs.length; func++) {
+            var entry = program.funcEntry[func];
+            var end = program.funcEnd(func);
+            out.println("    {");
+            out.printf("      \"name\": %s,%n", quote(name(func)));
+            out.printf("      \"label\": %s,%n", quote(program.funcs[func].entry.name));
+            out.printf("      \"size\": %d,%n", end - entry);
+            out.printf("      \"invocations\": %d,%n", invocations[func]);
+            out.printf("      \"self\": %d,%n", Arrays.stream(hits, entry, end).sum());
+            out.printf("      \"inclusive\": %d,%n", inclusive[func]);
+            out.printf("      \"allocations\": %d,%n", allocations[func]);
+            out.printf("      \"allocatedBytes\": %d,%n", allocatedBytes[func]);
+            out.print("      \"blocks\": [");
+            var first = true;
+            for (var addr = entry; addr < end; addr++) {
+                if (addr != entry && program.labelAt[addr] == null && program.instrs[addr - 1].isSequential()) {
+                    continue;
+                }
+                out.print(first ? "\n" : ",\n");
+                first = false;
+                out.printf("        {\"offset\": %d, ", addr - entry);
+                if (program.labelAt[addr] != null) {
+                    out.printf("\"label\": %s, ", quote(program.labelAt[addr]));
+                }
+                out.printf("\"count\": %d}", hits[addr]);
+            }
+            out.println("\n      ],");
+            out.print("      \"calls\": [");
+            first = true;
+            for (var addr = entry; addr < end; addr++) {
+                if (!(program.instrs[addr] instanceof TacInstr.IndirectCall) || hits[addr] == 0) {
+                    continue;
+                }
+                out.print(first ? "\n" : ",\n");
+                first = false;
+                out.printf("        {\"offset\": %d, \"count\": %d", addr - entry, hits[addr]);
+                if (callee[addr] >= 0) {
+                    out.printf(", \"callee\": %s, \"args\": %d", quote(program.funcs[callee[addr]].entry.name),
+                            argc[addr]);
+                }
+                out.print("}");
+            }
+            out.println(first ? "]" : "\n      ]");
+            out.println(func + 1 < program.funcs.length ? "    }," : "    }");
+        }
+        out.println("  ]");
+        out.println("}");
+    }
+
+    private String name(int func) {
+        var entry = program.funcs[func].entry;
+        return entry.clazz.isEmpty() ? entry.method : entry.clazz + "." + entry.method;
+    }
+
+    private static String quote(String str) {
+        var sb = new StringBuilder("\"");
+        for (var c : str.toCharArray()) {
+            switch (c) {
+                case '"' -> sb.append("\\\"");
+                case '\\' -> sb.append("\\\\");
+                default -> {
+                    if (c < ' ') {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+                }
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
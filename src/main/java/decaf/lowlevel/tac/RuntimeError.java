@@ -12,6 +12,8 @@ public final class RuntimeError {
 
     public static final String NEGATIVE_ARR_SIZE = "Decaf runtime error: Cannot create negative-sized array\n";
 
+    public static final String NEGATIVE_CHAN_CAPACITY = "Decaf runtime error: Cannot create channel with negative capacity\n";
+
     public static final String CLASS_CAST_ERROR1 = "Decaf runtime error: ";
 
     public static final String CLASS_CAST_ERROR2 = " cannot be cast to ";
@@ -1,16 +1,24 @@
 package decaf.lowlevel.tac;
 
-import decaf.lowlevel.instr.Temp;
-import decaf.lowlevel.label.FuncLabel;
 import decaf.lowlevel.label.IntrinsicLabel;
-import decaf.lowlevel.label.Label;
+import decaf.lowlevel.log.Log;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+import java.util.function.ToIntFunction;
 
 /**
  * TAC program simulator.
@@ -18,14 +26,123 @@ import java.util.concurrent.atomic.AtomicBoolean;
 public final class Simulator {
 
     /**
-     * Constructor.
+     * Execution engine.
+     */
+    public enum Engine {
+        /**
+         * Dispatch every instruction through {@link TacInstr.Visitor}. Slow, but straightforward.
+         */
+        VISITOR,
+        /**
+         * Dispatch on the integer opcodes of the linked program in one {@code switch}, see {@link LinkedProgram}.
+         */
+        SWITCH,
+        /**
+         * Start with the switch engine, and compile hot functions to JVM bytecode, see {@link JitCompiler}.
+         */
+        JIT
+    }
+
+    /**
+     * Simulator options.
+     */
+    public static class Options {
+        /**
+         * Execution engine.
+         */
+        public Engine engine = Engine.SWITCH;
+
+        /**
+         * For {@link Engine#JIT}: number of invocations, or back edges, to make a function hot. 0 means to compile
+         * all functions before execution.
+         */
+        public int jitThreshold = 1000;
+
+        /**
+         * For {@link Engine#SWITCH} and {@link Engine#JIT}: fuse common instruction sequences into superinstructions,
+         * see {@link Fusion}.
+         */
+        public boolean fuse = true;
+
+        /**
+         * Collect garbage in the simulated heap.
+         */
+        public boolean gc = true;
+
+        /**
+         * Number of threads running coroutines in parallel, 0 for one per available processor. With 1, all
+         * coroutines take turns on the calling thread. Not supported by {@link Engine#JIT}.
+         */
+        public int threads = 1;
+
+        /**
+         * Number of instructions a coroutine runs before it is preempted.
+         */
+        public int quantum = 10000;
+
+        /**
+         * If present, draw the length of every time slice at random from 1 to {@link #quantum} instructions, seeded by
+         * it, to try out other interleavings of coroutines. The same seed replays the same interleaving. Not
+         * supported with more than one thread.
+         */
+        public Optional<Integer> seed = Optional.empty();
+
+        /**
+         * Buffer the output of the program, and flush it only when the buffer is full, before a read, and when the
+         * program halts or exits. Otherwise, flush after every print, for interactive use.
+         */
+        public boolean bufferOutput = true;
+
+        /**
+         * If present, profile the program, and write the profile to files at this path plus extensions, see
+         * {@link Profile#write}. Instructions are not fused then. Not supported by {@link Engine#JIT}, nor with more
+         * than one thread.
+         */
+        public Optional<Path> profile = Optional.empty();
+    }
+
+    /**
+     * Constructor, using the default options.
      *
      * @param in  simulator's stdin
      * @param out simulator's stdout
      */
     public Simulator(InputStream in, OutputStream out) {
-        _in = in;
-        _out = new PrintWriter(out);
+        this(in, out, new Options());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param in      simulator's stdin
+     * @param out     simulator's stdout
+     * @param options simulator options
+     */
+    public Simulator(InputStream in, OutputStream out, Options options) {
+        _in = new Input(in);
+        _out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(out), OUT_BUFFER_SIZE));
+        _autoFlush = !options.bufferOutput;
+        _engine = options.engine;
+        _jitThreshold = options.jitThreshold;
+        _fuse = options.fuse;
+        _gc = options.gc;
+
+        var threads = options.threads == 0 ? Runtime.getRuntime().availableProcessors() : options.threads;
+        if (threads > 1 && _engine == Engine.JIT) {
+            throw new IllegalArgumentException("the jit engine runs coroutines on one thread only");
+        }
+        if (threads > 1 && options.seed.isPresent()) {
+            throw new IllegalArgumentException("a parallel schedule cannot be replayed");
+        }
+        if ((threads > 1 || _engine == Engine.JIT) && options.profile.isPresent()) {
+            throw new IllegalArgumentException("only an interpreter on one thread can profile");
+        }
+        if (options.quantum < 1) {
+            throw new IllegalArgumentException("quantum must be positive");
+        }
+        _quantum = options.quantum;
+        _profilePath = options.profile;
+        scheduler = threads > 1 ? new ParallelScheduler(threads) : new Scheduler(options.seed);
     }
 
     /**
@@ -34,125 +151,155 @@ public final class Simulator {
      * @param program TAC program
      */
     public void execute(TacProg program) {
-        // acquire the first coroutine
-        CoroutineContext ctx = new CoroutineContext();
-
         // Initialize
-        _memory = new Memory();
-        _string_pool = new StringPool();
-        _vtable_to_addr = new TreeMap<>();
-        _instrs = new Vector<>();
-        _label_to_addr = new TreeMap<>();
-        _addr_to_function = new TreeMap<>();
-        _label_to_function = new TreeMap<>();
-
-        // Allocate vtables
+        _memory = new Memory(_gc);
+        var vtableToAddr = new HashMap<String, Integer>();
+        var stringToAddr = new HashMap<String, Integer>();
+
+        // Allocate vtables, and string constants on demand
+        var region = new Region();
+        ToIntFunction<String> constant = value -> stringToAddr.computeIfAbsent(value, v -> {
+            var addr = _memory.newString(v, region);
+            _memory.pin(addr);
+            return addr;
+        });
         for (VTable vtbl : program.vtables) {
-            var addr = _memory.alloc(vtbl.getSize());
-            _vtable_to_addr.put(vtbl.label.name, addr);
-        }
-
-        // Load instructions
-        var addr = 0;
-        for (var func : program.funcs) {
-            // Meet a function: label -> func, label -> addr, addr -> func
-            _label_to_function.put(func.entry.name, func);
-            _addr_to_function.put(addr, func);
-
-            // Add every non-pseudo instruction, and record labels if necessary
-            for (var instr : func.getInstrSeq()) {
-                if (instr.isLabel()) { // meet a label
-                    var lbl = instr.label;
-                    _label_to_addr.put(lbl.name, addr);
-                } else {
-                    _instrs.add(instr);
-                    addr++;
-                } // else: memo, ignore
-            }
-
-            // Check if the last instruction is RETURN
-            if (!_instrs.lastElement().isReturn()) {
-                throw new Error(String.format("In TAC function %s: the last instruction must be return",
-                        func.entry.prettyString()));
-            }
+            var addr = _memory.alloc(vtbl.getSize(), region);
+            _memory.pin(addr);
+            vtableToAddr.put(vtbl.label.name, addr);
         }
 
+        // Load instructions: resolve labels, functions, vtables and string constants once and for all
+        _program = LinkedProgram.link(program, vtbl -> vtableToAddr.get(vtbl.label.name), constant);
+        _instrs = _program.instrs;
+        _profile = _profilePath.isPresent() ? new Profile(_program) : null;
+        _code = (_fuse && _engine != Engine.VISITOR && _profile == null) ? Fusion.fuse(_program) : _program.code;
+
         // Fill in vtables
         for (VTable vtbl : program.vtables) {
-            addr = _vtable_to_addr.get(vtbl.label.name);
+            int addr = vtableToAddr.get(vtbl.label.name);
             var offset = 0;
 
-            var parentAddr = vtbl.parent.map(pv -> _vtable_to_addr.get(pv.label.name)).orElse(0);
+            var parentAddr = vtbl.parent.map(pv -> vtableToAddr.get(pv.label.name)).orElse(0);
             _memory.store(parentAddr, addr, offset);
             offset += 4;
 
-            var className = _string_pool.add(vtbl.className);
-            _memory.store(className, addr, 4);
+            _memory.store(constant.applyAsInt(vtbl.className), addr, 4);
             offset += 4;
 
             for (var item : vtbl.getItems()) {
-                _memory.store(_label_to_addr.get(item.name), addr, offset);
+                _memory.store(_program.entryOf(item), addr, offset);
                 offset += 4;
             }
         }
 
         // Initialize call stack and push the frame of main function
-        if (!_label_to_function.containsKey(FuncLabel.MAIN_LABEL.name)) {
+        if (_program.mainFunc < 0) {
             throw new Error("No legal main function found");
         }
 
-        var frame = new Frame(_label_to_function.get(FuncLabel.MAIN_LABEL.name), ctx);
-        ctx._call_stack.push(frame);
-        ctx._pc = _label_to_addr.get(FuncLabel.MAIN_LABEL.name);
+        var ctx = new CoroutineContext(_program.funcFrameSize[_program.mainFunc]);
+        ctx.push(_program.mainFunc, -1);
 
         var mainCoroutine = new Coroutine(ctx);
 
         _halt = false;
-
-        scheduler.addCoroutine(mainCoroutine);
-        scheduler.start();
+        _executed.reset();
+
+        var start = System.nanoTime();
+        try {
+            if (_engine == Engine.JIT) {
+                _jitRuntime = new JitBridge();
+                _jit = new JitCompiler(_program, _jitRuntime, _jitThreshold);
+
+                // Compiled code recurses on the JVM stack, rather than the simulated call stack
+                runOnLargeStack(() -> {
+                    var main = _jit.invoked(_program.mainFunc);
+                    if (main != null) {
+                        callCompiled(main, 0);
+                    } else {
+                        scheduler.addCoroutine(mainCoroutine);
+                    }
+                    scheduler.start();
+                });
+                Log.info("jit: compiled %d of %d functions into %d bytes in %d ms", _jit.count,
+                        _program.funcs.length, _jit.size, _jit.time / 1000000);
+            } else {
+                scheduler.addCoroutine(mainCoroutine);
+                scheduler.start();
+            }
+        } finally {
+            // Whatever is still buffered, also when the program fails
+            _out.flush();
+        }
+        var elapsed = System.nanoTime() - start;
+        Log.info("simulator: %d instructions interpreted in %d ms by the %s engine", _executed.sum(), elapsed / 1000000,
+                _engine.name().toLowerCase());
+        if (_gc) {
+            Log.info("gc: %d collections freed %d bytes, paused %d ms in total and %d ms at most; %d of %d bytes "
+                            + "in use at exit, peak heap %d bytes", _memory.collections, _memory.freedTotal,
+                    _memory.pauseTotal / 1000000, _memory.pauseMax / 1000000, 4L * _memory.used, 4L * _memory.top,
+                    4L * _memory.peak);
+        }
+        if (_profile != null) {
+            try {
+                _profile.write(_profilePath.get());
+            } catch (IOException e) {
+                throw new Error("cannot write the profile: " + e.getMessage());
+            }
+            Log.info("profile: written to %s.folded and %s.profile.json", _profilePath.get(), _profilePath.get());
+        }
     }
 
     /**
      * IO.
      */
-    private final InputStream _in;
+    private final Input _in;
     private final PrintWriter _out;
 
     /**
-     * Memory.
+     * Flush {@link #_out} after every print, rather than only when its buffer is full, before a read, and when the
+     * program halts or exits.
      */
-    private Memory _memory;
+    private final boolean _autoFlush;
 
     /**
-     * String pool: either constant or read from stdin.
+     * Size in chars of the buffer of {@link #_out}.
      */
-    private StringPool _string_pool;
+    private static final int OUT_BUFFER_SIZE = 1 << 16;
 
     /**
-     * Look up a vtable's address in memory by its name.
+     * Execution engine.
      */
-    private Map<String, Integer> _vtable_to_addr;
+    private final Engine _engine;
+
+    private final int _jitThreshold;
+
+    private final boolean _fuse;
+
+    private final boolean _gc;
+
+    private final int _quantum;
 
     /**
-     * Simulate instruction memory. The "address" is simply the index of this vector.
+     * Memory.
      */
-    private Vector<TacInstr> _instrs;
+    private Memory _memory;
 
     /**
-     * Look up a label's address in instruction memory by its name.
+     * The linked program, i.e. instruction memory with every operand resolved.
      */
-    private Map<String, Integer> _label_to_addr;
+    private LinkedProgram _program;
 
     /**
-     * Look up a function by its entry label.
+     * Encoded instructions run by the switch engine: those of the linked program, with superinstructions if fused.
      */
-    private Map<String, TacFunc> _label_to_function;
+    private int[] _code;
 
     /**
-     * Look up a function by the address of its entry instruction.
+     * Simulate instruction memory. The "address" is simply the index of this array.
      */
-    private Map<Integer, TacFunc> _addr_to_function;
+    private TacInstr[] _instrs;
 
     /**
      * Call stack, consists of frames.
@@ -170,63 +317,146 @@ public final class Simulator {
      */
     //private int _pc;
 
+    /**
+     * Contexts of all running coroutines, whose frames are roots of garbage collection.
+     */
+    private final Set<CoroutineContext> _contexts = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Profile being taken, null if none, and where to write it.
+     */
+    private Profile _profile;
+
+    private final Optional<Path> _profilePath;
+
     /**
      * Halt signal.
      */
-    private boolean _halt;
+    private volatile boolean _halt;
 
     /**
-     * Stack frame.
+     * Number of instructions executed so far, by interpreters.
      */
-    private class Frame {
-        /**
-         * Host context.
-         */
-        final CoroutineContext ctx;
+    private final LongAdder _executed = new LongAdder();
 
-        /**
-         * The function entry.
-         */
-        final Label entry;
+    /**
+     * Where coroutines are stopped for garbage collection.
+     */
+    private final World _world = new World();
 
-        /**
-         * An array to store values of local temps.
-         */
-        int[] array;
+    /**
+     * Compiled code, null if absent.
+     */
+    private JitCompiler _jit;
 
-        /**
-         * Save: which temp to write the return value.
-         */
-        Temp retValDst;
+    private JitRuntime _jitRuntime;
+
+    /**
+     * Stack size of the thread running compiled code.
+     */
+    private static final long JIT_STACK_SIZE = 1L << 30;
 
+    /**
+     * Thrown to unwind compiled code once the program halts.
+     */
+    @SuppressWarnings("serial") // never serialized
+    private static class Halt extends RuntimeException {
+        Halt() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final Halt HALT = new Halt();
+
+    /**
+     * Call a compiled function from an interpreter, with actual arguments already in {@link JitRuntime#args}.
+     *
+     * @return return value, or 0 if none or the program halts
+     */
+    private int callCompiled(JitRuntime.Function code, int argc) {
+        try {
+            return code.call(argc);
+        } catch (Halt e) {
+            return 0;
+        }
+    }
+
+    private void runOnLargeStack(Runnable task) {
+        var failure = new Throwable[1];
+        var thread = new Thread(null, () -> {
+            try {
+                task.run();
+            } catch (Throwable e) {
+                failure[0] = e;
+            }
+        }, "tacvm", JIT_STACK_SIZE);
+        thread.start();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (failure[0] instanceof RuntimeException) {
+            throw (RuntimeException) failure[0];
+        } else if (failure[0] instanceof java.lang.Error) {
+            throw (java.lang.Error) failure[0];
+        }
+    }
+
+    /**
+     * Services for compiled code.
+     */
+    private class JitBridge extends JitRuntime {
         /**
-         * Save: the address of the next instruction to be executed once the function call returns.
+         * Bump region of compiled code.
          */
-        int pcNext;
+        private final Region region = new Region();
 
-        Frame(Label entry, int arraySize, CoroutineContext ctx) {
-            this.ctx = ctx;
-            this.entry = entry;
-            this.array = new int[arraySize];
-            var i = 0;
-            for (var arg : ctx._actual_args) { // copy actual arguments
-                this.array[i] = arg;
-                i++;
+        JitBridge() {
+            super(Math.max(2, Arrays.stream(_program.funcFrameSize).max().orElse(0)), _gc);
+        }
+
+        @Override
+        public int load(int base, int offset) {
+            return _memory.load(base, offset);
+        }
+
+        @Override
+        public void store(int value, int base, int offset) {
+            _memory.store(value, base, offset);
+        }
+
+        @Override
+        public int intrinsic(int opcode) {
+            var value = Simulator.this.intrinsic(INTRINSICS[opcode], args, region);
+            if (_halt) {
+                throw HALT;
             }
-            ctx._actual_args.clear(); // it will save args for future calls
+            return value.orElse(0);
         }
 
-        Frame(TacFunc func, CoroutineContext ctx) {
-            this(func.entry, func.getUsedTempCount(), ctx);
-            //System.out.println(func.entry + " " + func.getUsedTempCount());
+        @Override
+        public int call(int func, int argc) {
+            var code = _jit.invoked(func);
+            return code != null ? code.call(argc) : interpret(func, argc);
         }
 
-        Frame(Frame t, CoroutineContext ctx) {
-            this.ctx = ctx;
-            this.array = t.array.clone();
-            this.entry = t.entry;
-            this.pcNext = t.pcNext;
-            this.retValDst = t.retValDst;
+        private int interpret(int func, int argc) {
+            var ctx = new CoroutineContext(Math.max(argc, _program.funcFrameSize[func]));
+            System.arraycopy(args, 0, ctx.stack, 0, argc);
+            ctx.argc = argc;
+            ctx.push(func, -1);
+
+            var coroutine = new Coroutine(ctx);
+            while (!coroutine.finished() && !_halt) {
+                // A nested interpreter runs until the function returns
+                _executed.add(coroutine.run(Integer.MAX_VALUE));
+            }
+            if (_halt) {
+                throw HALT;
+            }
+            return ctx._ret_val;
         }
     }
 
@@ -240,92 +470,519 @@ public final class Simulator {
         final CoroutineContext ctx;
         final InstrExecutor executor;
         public final int coroutineID;
-        private boolean locked;
+
+        /**
+         * What the coroutine is blocked on, at the pc of the blocking instruction, or null if it can run. It waits
+         * for the lock, channel or task {@link #waitingFor}, to receive into the temp {@link #waitDst}.
+         */
+        private Wait blocked;
+        private int waitingFor;
+        private int waitDst;
+
+        /**
+         * Task to complete when the coroutine finishes, 0 if none.
+         */
+        private int task;
+
+        /**
+         * Number of locks acquired and not yet released. A coroutine holding a lock is not preempted until it
+         * releases all of them, otherwise coroutines waiting for it might just burn their time slices, and with a
+         * fixed quantum be shut out forever.
+         */
+        private int holding;
 
         Coroutine(CoroutineContext ctx) {
             this.ctx = ctx;
             this.coroutineID = ++Simulator.coroutineID;
-            executor = new InstrExecutor();
+            executor = _engine == Engine.VISITOR ? new InstrExecutor() : null;
         }
 
         /**
+         * Run until the time slice is used up and no lock is held, or the coroutine is blocked or finished.
+         *
+         * @param budget length of the time slice, in instructions
          * @return number of instructions executed
          */
-        void run(AtomicBoolean signal) {
+        int run(int budget) {
+            blocked = null;
+            return switch (_engine) {
+                case VISITOR -> runVisitor(budget);
+                case SWITCH, JIT -> runSwitch(budget);
+            };
+        }
+
+        private int runVisitor(int budget) {
             int cnt = 0;
-            locked = false;
 
-            while (!ctx._call_stack.isEmpty()) {
+            while (ctx.depth > 0 && (cnt < budget || holding > 0)) {
                 if (_halt) break;
-                if (signal.get() && cnt>5) {
-                    signal.set(false);
-                    break;
-                }
 
                 //System.out.println("executing : " + _instrs.get(_pc));
-                _instrs.get(ctx._pc).accept(executor);
+                if (_profile != null) {
+                    _profile.retire(ctx.node, ctx._pc);
+                }
+                _instrs[ctx._pc].accept(executor);
+                cnt++;
+
+                if (blocked != null) break;
+            }
+            return cnt;
+        }
+
+        /**
+         * Switch-threaded engine. The pc and the temps of the running function are cached in locals, and only
+         * synchronized with the context on calls, returns and when leaving the loop.
+         */
+        private int runSwitch(int budget) {
+            if (ctx.depth == 0) return 0;
+
+            final var code = _code;
+            final var profile = _profile;
+            var regs = ctx.stack;
+            var fp = ctx.fp;
+            var pc = ctx._pc;
+            var cnt = 0;
+
+            // Halting is only checked after intrinsic calls: a coroutine halted by another ends with its time slice
+            loop:
+            while (cnt < budget || holding > 0) {
                 cnt++;
+                if (profile != null) {
+                    profile.retire(ctx.node, pc);
+                }
 
-                if (locked) break;
+                var i = pc * LinkedProgram.SLOT;
+                switch (code[i]) {
+                    case Opcodes.ASSIGN -> {
+                        regs[fp + code[i + 1]] = regs[fp + code[i + 2]];
+                        pc++;
+                    }
+                    case Opcodes.LOAD_IMM4, Opcodes.LOAD_STR_CONST, Opcodes.LOAD_VTBL -> {
+                        regs[fp + code[i + 1]] = code[i + 2];
+                        pc++;
+                    }
+                    case Opcodes.NEG -> {
+                        regs[fp + code[i + 1]] = -regs[fp + code[i + 2]];
+                        pc++;
+                    }
+                    case Opcodes.LNOT -> {
+                        regs[fp + code[i + 1]] = (regs[fp + code[i + 2]] == 0) ? 1 : 0;
+                        pc++;
+                    }
+                    case Opcodes.ADD -> {
+                        regs[fp + code[i + 1]] = regs[fp + code[i + 2]] + regs[fp + code[i + 3]];
+                        pc++;
+                    }
+                    case Opcodes.SUB -> {
+                        regs[fp + code[i + 1]] = regs[fp + code[i + 2]] - regs[fp + code[i + 3]];
+                        pc++;
+                    }
+                    case Opcodes.MUL -> {
+                        regs[fp + code[i + 1]] = regs[fp + code[i + 2]] * regs[fp + code[i + 3]];
+                        pc++;
+                    }
+                    case Opcodes.DIV -> {
+                        regs[fp + code[i + 1]] = regs[fp + code[i + 2]] / regs[fp + code[i + 3]];
+                        pc++;
+                    }
+                    case Opcodes.MOD -> {
+                        regs[fp + code[i + 1]] = regs[fp + code[i + 2]] % regs[fp + code[i + 3]];
+                        pc++;
+                    }
+                    case Opcodes.EQU -> {
+                        regs[fp + code[i + 1]] = (regs[fp + code[i + 2]] == regs[fp + code[i + 3]]) ? 1 : 0;
+                        pc++;
+                    }
+                    case Opcodes.NEQ -> {
+                        regs[fp + code[i + 1]] = (regs[fp + code[i + 2]] != regs[fp + code[i + 3]]) ? 1 : 0;
+                        pc++;
+                    }
+                    case Opcodes.LES -> {
+                        regs[fp + code[i + 1]] = (regs[fp + code[i + 2]] < regs[fp + code[i + 3]]) ? 1 : 0;
+                        pc++;
+                    }
+                    case Opcodes.LEQ -> {
+                        regs[fp + code[i + 1]] = (regs[fp + code[i + 2]] <= regs[fp + code[i + 3]]) ? 1 : 0;
+                        pc++;
+                    }
+                    case Opcodes.GTR -> {
+                        regs[fp + code[i + 1]] = (regs[fp + code[i + 2]] > regs[fp + code[i + 3]]) ? 1 : 0;
+                        pc++;
+                    }
+                    case Opcodes.GEQ -> {
+                        regs[fp + code[i + 1]] = (regs[fp + code[i + 2]] >= regs[fp + code[i + 3]]) ? 1 : 0;
+                        pc++;
+                    }
+                    case Opcodes.LAND -> {
+                        regs[fp + code[i + 1]] = (regs[fp + code[i + 2]] != 0 && regs[fp + code[i + 3]] != 0) ? 1 : 0;
+                        pc++;
+                    }
+                    case Opcodes.LOR -> {
+                        regs[fp + code[i + 1]] = (regs[fp + code[i + 2]] != 0 || regs[fp + code[i + 3]] != 0) ? 1 : 0;
+                        pc++;
+                    }
+                    case Opcodes.BRANCH, Opcodes.BEQZ, Opcodes.BNEZ -> {
+                        var target = switch (code[i]) {
+                            case Opcodes.BEQZ -> (regs[fp + code[i + 1]] == 0) ? code[i + 2] : pc + 1;
+                            case Opcodes.BNEZ -> (regs[fp + code[i + 1]] != 0) ? code[i + 2] : pc + 1;
+                            default -> code[i + 1];
+                        };
+                        if (target <= pc && _jit != null && backEdge(target)) {
+                            if (ctx.depth == 0) {
+                                return cnt;
+                            }
+                            regs = ctx.stack;
+                            fp = ctx.fp;
+                            pc = ctx._pc;
+                        } else {
+                            pc = target;
+                        }
+                    }
+                    case Opcodes.LOAD -> {
+                        regs[fp + code[i + 1]] = _memory.load(regs[fp + code[i + 2]], code[i + 3]);
+                        pc++;
+                    }
+                    case Opcodes.STORE -> {
+                        _memory.store(regs[fp + code[i + 1]], regs[fp + code[i + 2]], code[i + 3]);
+                        pc++;
+                    }
+                    case Opcodes.CHECKED_ARRAY_ADDR, Opcodes.CHECKED_ARRAY_LOAD, Opcodes.CHECKED_ARRAY_STORE -> {
+                        var base = regs[fp + code[i + 2]];
+                        var index = regs[fp + code[i + 3]];
+                        if (index < 0 || index >= _memory.load(base, -4)) {
+                            pc += Fusion.CHECKED_ARRAY_HANDLER;
+                        } else if (code[i] == Opcodes.CHECKED_ARRAY_ADDR) {
+                            regs[fp + code[i + 1]] = base + index * 4;
+                            pc += Fusion.CHECKED_ARRAY_ADDR_LENGTH;
+                        } else if (code[i] == Opcodes.CHECKED_ARRAY_LOAD) {
+                            regs[fp + code[i + 1]] = _memory.load(base + index * 4, 0);
+                            pc += Fusion.CHECKED_ARRAY_ACCESS_LENGTH;
+                        } else {
+                            _memory.store(regs[fp + code[i + 1]], base + index * 4, 0);
+                            pc += Fusion.CHECKED_ARRAY_ACCESS_LENGTH;
+                        }
+                    }
+                    case Opcodes.CLOSURE_CALL -> {
+                        var captured = regs[fp + code[i + 1]] + code[i + 3];
+                        for (var k = 0; k < regs[fp + code[i + 2]]; k++) {
+                            ctx.pushArg(_memory.load(captured + 4 * k, 0));
+                        }
+
+                        pc += Fusion.CLOSURE_CALL_LENGTH - 1;
+                        var j = pc * LinkedProgram.SLOT;
+                        var hasDst = code[j] == Opcodes.INDIRECT_CALL;
+                        var func = _program.funcAt[regs[fp + (hasDst ? code[j + 2] : code[j + 1])]];
+
+                        ctx._pc = pc;
+                        invoke(hasDst ? code[j + 1] : -1, func);
+                        regs = ctx.stack;
+                        fp = ctx.fp;
+                        pc = ctx._pc;
+                    }
+                    case Opcodes.PARM -> {
+                        ctx.pushArg(regs[fp + code[i + 1]]);
+                        regs = ctx.stack;
+                        pc++;
+                    }
+                    case Opcodes.INDIRECT_CALL, Opcodes.INDIRECT_CALL_VOID,
+                            Opcodes.DIRECT_CALL, Opcodes.DIRECT_CALL_VOID -> {
+                        var op = code[i];
+                        var hasDst = op == Opcodes.INDIRECT_CALL || op == Opcodes.DIRECT_CALL;
+                        var dst = hasDst ? code[i + 1] : -1;
+                        var target = hasDst ? code[i + 2] : code[i + 1];
+                        var func = (op == Opcodes.INDIRECT_CALL || op == Opcodes.INDIRECT_CALL_VOID)
+                                ? _program.funcAt[regs[fp + target]] : target;
+
+                        ctx._pc = pc;
+                        invoke(dst, func);
+                        regs = ctx.stack;
+                        fp = ctx.fp;
+                        pc = ctx._pc;
+                    }
+                    case Opcodes.INTRINSIC_CALL -> {
+                        var value = callIntrinsic(INTRINSICS[code[i + 2]], pc);
+                        regs[fp + code[i + 1]] = value.orElse(regs[fp + code[i + 1]]);
+                        pc++;
+                        if (_halt) break loop;
+                    }
+                    case Opcodes.INTRINSIC_CALL_VOID -> {
+                        callIntrinsic(INTRINSICS[code[i + 1]], pc);
+                        pc++;
+                        if (_halt) break loop;
+                    }
+                    case Opcodes.RETURN, Opcodes.RETURN_VOID -> {
+                        var present = code[i] == Opcodes.RETURN;
+                        returnWith(present ? regs[fp + code[i + 1]] : 0, present);
+                        if (ctx.depth == 0) {
+                            return cnt;
+                        }
+                        regs = ctx.stack;
+                        fp = ctx.fp;
+                        pc = ctx._pc;
+                    }
+                    case Opcodes.GO -> {
+                        ctx.isNextCallAsync = true;
+                        pc++;
+                    }
+                    case Opcodes.GO_TASK -> {
+                        ctx.isNextCallAsync = true;
+                        ctx.nextTask = regs[fp + code[i + 1]] = _sync.newTask(ctx.region);
+                        pc++;
+                    }
+                    case Opcodes.JOIN -> {
+                        if (!_sync.join(this, regs[fp + code[i + 2]], code[i + 1])) {
+                            blockOn(Wait.JOIN, regs[fp + code[i + 2]], code[i + 1]);
+                            break loop;
+                        }
+                        pc++;
+                    }
+                    case Opcodes.JOIN_VOID -> {
+                        if (!_sync.join(this, regs[fp + code[i + 1]], -1)) {
+                            blockOn(Wait.JOIN, regs[fp + code[i + 1]], -1);
+                            break loop;
+                        }
+                        pc++;
+                    }
+                    case Opcodes.LOCK -> {
+                        if (!_sync.acquire(regs[fp + code[i + 1]])) {
+                            blockOn(Wait.LOCK, regs[fp + code[i + 1]], -1);
+                            break loop;
+                        }
+                        holding++;
+                        pc++;
+                    }
+                    case Opcodes.UNLOCK -> {
+                        _sync.release(regs[fp + code[i + 1]]);
+                        holding--;
+                        pc++;
+                    }
+                    case Opcodes.NEW_CHAN -> {
+                        regs[fp + code[i + 1]] = _sync.newChan(regs[fp + code[i + 2]], ctx.region);
+                        pc++;
+                    }
+                    case Opcodes.SEND -> {
+                        if (!_sync.send(regs[fp + code[i + 1]], regs[fp + code[i + 2]])) {
+                            blockOn(Wait.SEND, regs[fp + code[i + 1]], -1);
+                            break loop;
+                        }
+                        pc++;
+                    }
+                    case Opcodes.RECV -> {
+                        if (!_sync.recv(this, regs[fp + code[i + 2]], code[i + 1])) {
+                            blockOn(Wait.RECV, regs[fp + code[i + 2]], code[i + 1]);
+                            break loop;
+                        }
+                        pc++;
+                    }
+                    default -> pc++;
+                }
             }
+
+            ctx._pc = pc;
+            return cnt;
         }
 
         boolean finished() {
-            return ctx._call_stack.isEmpty();
+            return ctx.depth == 0;
+        }
+
+        /**
+         * Block at the current instruction, to be parked after the time slice.
+         *
+         * @param wait what it waits for
+         * @param id   lock or channel id
+         * @param dst  index of the temp to receive into, -1 if none
+         */
+        private void blockOn(Wait wait, int id, int dst) {
+            blocked = wait;
+            waitingFor = id;
+            waitDst = dst;
+        }
+
+        /**
+         * Resume a parked coroutine after its blocking instruction.
+         */
+        void resume() {
+            blocked = null;
+            ctx._pc++;
+            scheduler.wake(this);
+        }
+
+        /**
+         * Call a function: save the caller's state, create the callee's frame and jump to its entry. If the call is
+         * marked asynchronous by a {@code go}, the callee is run by a new coroutine instead.
+         *
+         * @param dst  index of the temp to write the return value, -1 if discarded
+         * @param func index of the callee
+         */
+        private void invoke(int dst, int func) {
+            if (_profile != null) {
+                _profile.called(ctx._pc, func, ctx.argc);
+            }
+
+            // Run compiled code to completion
+            var code = _jit != null && !ctx.isNextCallAsync ? _jit.invoked(func) : null;
+            if (code != null) {
+                var argc = passArgs();
+                var value = callCompiled(code, argc);
+                if (dst >= 0) {
+                    ctx.setTemp(dst, value);
+                }
+                ctx._pc++;
+                return;
+            }
+
+            if (!ctx.isNextCallAsync) {
+                ctx.push(func, dst);
+            } else {
+                // The new coroutine starts with just the callee's window, holding the actual arguments
+                ctx.isNextCallAsync = false;
+                CoroutineContext ctx_ = new CoroutineContext(Math.max(ctx.argc, _program.funcFrameSize[func]));
+                System.arraycopy(ctx.stack, ctx.sp, ctx_.stack, 0, ctx.argc);
+                ctx_.argc = ctx.argc;
+                ctx.argc = 0;
+                ctx_.push(func, -1);
+                var coroutine = new Coroutine(ctx_);
+                coroutine.task = ctx.nextTask;
+                ctx.nextTask = 0;
+                scheduler.addCoroutine(coroutine);
+                ctx._pc++;
+            }
+        }
+
+        /**
+         * Return from the running function.
+         *
+         * @param value   return value
+         * @param present false if none
+         */
+        private void returnWith(int value, boolean present) {
+            var dst = ctx.pop();
+
+            // Recover caller's state, if the caller exists
+            if (ctx.depth > 0) {
+                if (present && dst >= 0) {
+                    ctx.setTemp(dst, value);
+                }
+            } else { // the coroutine terminates
+                ctx._ret_val = present ? value : 0;
+                _contexts.remove(ctx);
+                if (task != 0) {
+                    _sync.complete(task, ctx._ret_val);
+                }
+            }
+        }
+
+        /**
+         * Move the actual arguments to {@link JitRuntime#args}, for compiled code.
+         *
+         * @return number of actual arguments
+         */
+        private int passArgs() {
+            var argc = ctx.argc;
+            System.arraycopy(ctx.stack, ctx.sp, _jitRuntime.args, 0, argc);
+            ctx.argc = 0;
+            return argc;
+        }
+
+        /**
+         * Count a back edge to {@code target} taken by the running function. If the function gets hot, continue to run
+         * it from {@code target} by compiled code, until it returns.
+         * <p>
+         * The compiled loop then runs without counting instructions against the time slice, which is only right as
+         * long as no other coroutine needs to run: {@link JitCompiler} compiles nothing in programs which start
+         * coroutines.
+         *
+         * @return true if the function has returned
+         */
+        private boolean backEdge(int target) {
+            var code = _jit.looped(_program.funcOf[target]);
+            if (code == null) {
+                return false;
+            }
+
+            var frame = Arrays.copyOfRange(ctx.stack, ctx.fp, ctx.sp);
+            var argc = passArgs();
+            int value;
+            try {
+                value = code.resume(frame, target, argc);
+            } catch (Halt e) {
+                value = 0;
+            }
+            returnWith(value, true);
+            return true;
+        }
+
+        /**
+         * Call an intrinsic with the actual arguments pushed.
+         *
+         * @param opcode intrinsic
+         * @param addr   address of the call
+         * @return return value, if any
+         */
+        private Optional<Integer> callIntrinsic(Intrinsic.Opcode opcode, int addr) {
+            var args = popArgs();
+            if (_profile != null && opcode == Intrinsic.Opcode.ALLOCATE) {
+                _profile.allocated(addr, args[0]);
+            }
+            return intrinsic(opcode, args, ctx.region);
+        }
+
+        /**
+         * Take the actual arguments of an intrinsic call.
+         */
+        private int[] popArgs() {
+            var args = new int[2];
+            System.arraycopy(ctx.stack, ctx.sp, args, 0, ctx.argc);
+            ctx.argc = 0;
+            return args;
         }
 
         private class InstrExecutor implements TacInstr.Visitor {
             @Override
             public void visitAssign(TacInstr.Assign instr) {
-                var frame = ctx._call_stack.peek();
-                frame.array[instr.dst.index] = frame.array[instr.src.index];
+                ctx.setTemp(instr.dst.index, ctx.temp(instr.src.index));
 
                 ctx._pc++;
             }
 
             @Override
             public void visitLoadVTbl(TacInstr.LoadVTbl instr) {
-                var frame = ctx._call_stack.peek();
-                frame.array[instr.dst.index] = _vtable_to_addr.get(instr.vtbl.label.name);
+                ctx.setTemp(instr.dst.index, _program.operand(ctx._pc, 1));
 
                 ctx._pc++;
             }
 
             @Override
             public void visitLoadImm4(TacInstr.LoadImm4 instr) {
-                var frame = ctx._call_stack.peek();
-                frame.array[instr.dst.index] = instr.value;
+                ctx.setTemp(instr.dst.index, instr.value);
 
                 ctx._pc++;
             }
 
             @Override
             public void visitLoadStrConst(TacInstr.LoadStrConst instr) {
-                var frame = ctx._call_stack.peek();
-                var index = _string_pool.add(instr.value);
-                frame.array[instr.dst.index] = index;
+                ctx.setTemp(instr.dst.index, _program.operand(ctx._pc, 1));
 
                 ctx._pc++;
             }
 
             @Override
             public void visitUnary(TacInstr.Unary instr) {
-                var frame = ctx._call_stack.peek();
-                int operand = frame.array[instr.operand.index];
-                frame.array[instr.dst.index] = switch (instr.op) {
+                int operand = ctx.temp(instr.operand.index);
+                ctx.setTemp(instr.dst.index, switch (instr.op) {
                     case NEG -> -operand;
                     case LNOT -> (operand == 0) ? 1 : 0;
-                };
+                });
 
                 ctx._pc++;
             }
 
             @Override
             public void visitBinary(TacInstr.Binary instr) {
-                var frame = ctx._call_stack.peek();
-                var lhs = frame.array[instr.lhs.index];
-                var rhs = frame.array[instr.rhs.index];
-                frame.array[instr.dst.index] = switch (instr.op) {
+                var lhs = ctx.temp(instr.lhs.index);
+                var rhs = ctx.temp(instr.rhs.index);
+                ctx.setTemp(instr.dst.index, switch (instr.op) {
                     case ADD -> lhs + rhs;
                     case SUB -> lhs - rhs;
                     case MUL -> lhs * rhs;
@@ -339,26 +996,25 @@ public final class Simulator {
                     case GEQ -> (lhs >= rhs) ? 1 : 0;
                     case LAND -> (lhs == 0) ? 0 : (rhs == 0) ? 0 : 1;
                     case LOR -> (lhs != 0) ? 1 : (rhs == 0) ? 0 : 1;
-                };
+                });
 
                 ctx._pc++;
             }
 
             @Override
             public void visitBranch(TacInstr.Branch instr) {
-                ctx._pc = _label_to_addr.get(instr.target.name);
+                ctx._pc = _program.operand(ctx._pc, 0);
             }
 
             @Override
             public void visitCondBranch(TacInstr.CondBranch instr) {
-                var frame = ctx._call_stack.peek();
                 var jump = switch (instr.op) {
-                    case BEQZ -> frame.array[instr.cond.index] == 0;
-                    case BNEZ -> frame.array[instr.cond.index] != 0;
+                    case BEQZ -> ctx.temp(instr.cond.index) == 0;
+                    case BNEZ -> ctx.temp(instr.cond.index) != 0;
                 };
 
                 if (jump) {
-                    ctx._pc = _label_to_addr.get(instr.target.name);
+                    ctx._pc = _program.operand(ctx._pc, 1);
                 } else {
                     ctx._pc++;
                 }
@@ -366,26 +1022,12 @@ public final class Simulator {
 
             @Override
             public void visitReturn(TacInstr.Return instr) {
-                var value = instr.value.map(temp -> ctx._call_stack.peek().array[temp.index]);
-                returnWith(value);
-            }
-
-            private void returnWith(Optional<Integer> value) {
-                // Destroy the callee's frame
-                ctx._call_stack.pop();
-
-                // Recover caller's state, if the caller exists
-                if (!ctx._call_stack.isEmpty()) {
-                    var frame = ctx._call_stack.peek();
-                    value.ifPresent(v -> frame.array[frame.retValDst.index] = v);
-                    ctx._pc = ctx._call_stack.peek().pcNext;
-                } // else: the entire program terminates
+                returnWith(instr.value.map(temp -> ctx.temp(temp.index)).orElse(0), instr.value.isPresent());
             }
 
             @Override
             public void visitParm(TacInstr.Parm instr) {
-                var frame = ctx._call_stack.peek();
-                ctx._actual_args.add(frame.array[instr.value.index]);
+                ctx.pushArg(ctx.temp(instr.value.index));
 
                 //System.out.println("--------------------" + _actual_args);
 
@@ -394,194 +1036,1182 @@ public final class Simulator {
 
             @Override
             public void visitIndirectCall(TacInstr.IndirectCall instr) {
-                // Save caller's state
-                var frame = ctx._call_stack.peek();
-                frame.pcNext = ctx._pc + 1;
-                frame.retValDst = instr.dst.orElse(null);
-
-                // Create callee's frame and invoke
-                var addr = frame.array[instr.entry.index];
-                var func = _addr_to_function.get(addr);
-                if (!ctx.isNextCallAsync) {
-                    ctx._call_stack.push(new Frame(func, ctx));
-                    ctx._pc = addr;
-                } else {
-                    ctx.isNextCallAsync = false;
-                    CoroutineContext ctx_ = new CoroutineContext();
-                    ctx_._call_stack.push(new Frame(func, ctx));
-                    ctx_._pc = addr;
-                    scheduler.addCoroutine(new Coroutine(ctx_));
-                    ctx._pc++;
-                }
+                var addr = ctx.temp(instr.entry.index);
+                invoke(instr.dst.map(temp -> temp.index).orElse(-1), _program.funcAt[addr]);
             }
 
             @Override
             public void visitDirectCall(TacInstr.DirectCall instr) {
-                // Save caller's state
-                var frame = ctx._call_stack.peek();
-                frame.pcNext = ctx._pc + 1;
-                frame.retValDst = instr.dst.orElse(null);
-
-                // Create callee's frame and invoke
+                var dst = instr.dst.map(temp -> temp.index).orElse(-1);
                 if (instr.entry.isIntrinsic()) { // special: call intrinsic
                     var il = (IntrinsicLabel) instr.entry;
-                    ctx._call_stack.push(new Frame(il, 2, ctx));
-                    callIntrinsic(il.opcode);
-                } else {
-                    var func = _label_to_function.get(instr.entry.name);
-                    if (!ctx.isNextCallAsync) {
-                        ctx._call_stack.push(new Frame(func, ctx));
-                        ctx._pc = _label_to_addr.get(instr.entry.name);
-                    } else {
-                        ctx.isNextCallAsync = false;
-                        CoroutineContext ctx_ = new CoroutineContext();
-                        ctx_._call_stack.push(new Frame(func, ctx_));
-                        ctx_._pc = _label_to_addr.get(instr.entry.name);
-                        ctx._pc++;
-                        scheduler.addCoroutine(new Coroutine(ctx_));
+                    var value = callIntrinsic(il.opcode, ctx._pc);
+                    if (dst >= 0) {
+                        value.ifPresent(v -> ctx.setTemp(dst, v));
                     }
+                    ctx._pc++;
+                } else {
+                    invoke(dst, _program.operand(ctx._pc, instr.dst.isPresent() ? 1 : 0));
                 }
             }
 
             @Override
             public void visitGoLabel(TacInstr.GoLabel instr) {
                 ctx.isNextCallAsync = true;
+                if (instr.task.isPresent()) {
+                    ctx.nextTask = _sync.newTask(ctx.region);
+                    ctx.setTemp(instr.task.get().index, ctx.nextTask);
+                }
+                ctx._pc++;
+            }
+
+            @Override
+            public void visitJoin(TacInstr.Join instr) {
+                var dst = instr.dst.isPresent() ? instr.dst.get().index : -1;
+                if (_sync.join(Coroutine.this, ctx.temp(instr.task.index), dst)) {
+                    ctx._pc++;
+                } else {
+                    blockOn(Wait.JOIN, ctx.temp(instr.task.index), dst);
+                }
+            }
+
+            @Override
+            public void visitLock(TacInstr.Lock instr) {
+                if (_sync.acquire(ctx.temp(instr.lockID.index))) {
+                    holding++;
+                    ctx._pc++;
+                } else {
+                    blockOn(Wait.LOCK, ctx.temp(instr.lockID.index), -1);
+                }
+            }
+
+            @Override
+            public void visitUnlock(TacInstr.Unlock instr) {
+                _sync.release(ctx.temp(instr.lockID.index));
+                holding--;
+                ctx._pc++;
+            }
+
+            @Override
+            public void visitNewChan(TacInstr.NewChan instr) {
+                ctx.setTemp(instr.dst.index, _sync.newChan(ctx.temp(instr.capacity.index), ctx.region));
+                ctx._pc++;
+            }
+
+            @Override
+            public void visitSend(TacInstr.Send instr) {
+                if (_sync.send(ctx.temp(instr.chan.index), ctx.temp(instr.value.index))) {
+                    ctx._pc++;
+                } else {
+                    blockOn(Wait.SEND, ctx.temp(instr.chan.index), -1);
+                }
+            }
+
+            @Override
+            public void visitRecv(TacInstr.Recv instr) {
+                if (_sync.recv(Coroutine.this, ctx.temp(instr.chan.index), instr.dst.index)) {
+                    ctx._pc++;
+                } else {
+                    blockOn(Wait.RECV, ctx.temp(instr.chan.index), instr.dst.index);
+                }
+            }
+
+            @Override
+            public void visitMemory(TacInstr.Memory instr) {
+                int base = ctx.temp(instr.base.index);
+                //System.out.println(instr + " : " + base + " + " + instr.offset);
+                int offset = instr.offset;
+                switch (instr.op) {
+                    case LOAD -> ctx.setTemp(instr.dst.index, _memory.load(base, offset));
+                    case STORE -> _memory.store(ctx.temp(instr.dst.index), base, offset);
+                }
+
                 ctx._pc++;
             }
+        }
+
+    }
+
+    private static final Intrinsic.Opcode[] INTRINSICS = Intrinsic.Opcode.values();
+
+    /**
+     * Execute an intrinsic call, shared by all engines.
+     *
+     * @param opcode intrinsic opcode
+     * @param args   actual arguments
+     * @param region bump region of the caller, for allocation
+     * @return return value, if any
+     */
+    private Optional<Integer> intrinsic(Intrinsic.Opcode opcode, int[] args, Region region) {
+        Optional<Integer> retVal = Optional.empty();
+
+        switch (opcode) {
+            case ALLOCATE -> retVal = Optional.of(_memory.alloc(args[0], region));
+            case READ_LINE -> {
+                _out.flush(); // show any prompt before blocking
+                var str = _in.readLine();
+                assert str.length() <= 63;
+                retVal = Optional.of(_memory.newString(str, region));
+            }
+            case READ_INT -> {
+                _out.flush();
+                retVal = Optional.of(_in.readInt());
+            }
+            case STRING_EQUAL -> retVal = Optional.of(_memory.stringEqual(args[0], args[1]) ? 1 : 0);
+            case PRINT_INT -> {
+                _out.print(args[0]);
+                if (_autoFlush) _out.flush();
+            }
+            case PRINT_STRING -> {
+                _out.print(_memory.string(args[0]));
+                if (_autoFlush) _out.flush();
+            }
+            case PRINT_BOOL -> {
+                _out.print(args[0] == 0 ? "false" : "true");
+                if (_autoFlush) _out.flush();
+            }
+            case HALT -> {
+                _out.flush();
+                _halt = true;
+            }
+        }
+
+        return retVal;
+    }
+
+    /**
+     * What a blocked coroutine waits for.
+     */
+    private enum Wait {
+        LOCK, SEND, RECV, JOIN
+    }
+
+    /**
+     * Locks, channels and tasks, by id. A coroutine which fails to take a lock, to send to or receive from a channel,
+     * or to join an unfinished task, is parked in a FIFO queue of the lock, channel or task rather than scheduled
+     * again, and resumed by the coroutine which releases the lock, completes the transfer or finishes the task.
+     */
+    private class Sync {
+        private final class Lock {
+            boolean held;
+            final Queue<Coroutine> waiters = new ArrayDeque<>();
+        }
+
+        /**
+         * A channel buffers up to {@code capacity} values in a ring, allocated as it fills up. While the buffer is
+         * full (always, if unbuffered) senders are parked, and while it is empty receivers are parked: never both.
+         */
+        private final class Chan {
+            final int capacity;
+            int[] buffer = NO_LINKS;
+            int head = 0;
+            int size = 0;
+            final Queue<Coroutine> senders = new ArrayDeque<>();
+            final Queue<Coroutine> receivers = new ArrayDeque<>();
+
+            /**
+             * Whether found reachable by the collection under way.
+             */
+            boolean reachable;
+
+            Chan(int capacity) {
+                this.capacity = capacity;
+            }
+
+            void offer(int value) {
+                if (size == buffer.length) {
+                    var grown = new int[Math.min(capacity, Math.max(4, size * 2))];
+                    for (var i = 0; i < size; i++) {
+                        grown[i] = buffer[(head + i) % buffer.length];
+                    }
+                    buffer = grown;
+                    head = 0;
+                }
+                buffer[(head + size++) % buffer.length] = value;
+            }
+
+            int poll() {
+                var value = buffer[head];
+                head = (head + 1) % buffer.length;
+                size--;
+                return value;
+            }
+        }
+
+        /**
+         * Outcome of a coroutine started with a task.
+         */
+        private final class Task {
+            boolean done;
+            int result;
+            final Queue<Coroutine> joiners = new ArrayDeque<>();
+
+            /**
+             * Whether found reachable by the collection under way.
+             */
+            boolean reachable;
+        }
+
+        /**
+         * Open addressing table of locks by id, with linear probing: a null value marks an empty slot.
+         */
+        private int[] ids = new int[16];
+        private Lock[] locks = new Lock[16];
+        private int size = 0;
+
+        /**
+         * Channels, by id. The id of a channel is the address of an empty heap block of its own, so that the
+         * collector finds whether the channel is reachable, and it is dropped along with its block.
+         */
+        private final Map<Integer, Chan> chans = new HashMap<>();
+
+        /**
+         * Tasks, by id, which is the address of an empty heap block of its own like that of a channel.
+         */
+        private final Map<Integer, Task> tasks = new HashMap<>();
+
+        /**
+         * Number of coroutines in wait queues.
+         */
+        int parked = 0;
+
+        /**
+         * Try to acquire a lock.
+         *
+         * @param lockID lock id
+         * @return true if acquired, false if it is held by someone
+         */
+        synchronized boolean acquire(int lockID) {
+            var lock = lock(lockID);
+            if (lock.held) {
+                return false;
+            }
+            lock.held = true;
+            return true;
+        }
+
+        /**
+         * Release a lock, and hand it over to the first coroutine waiting for it, if any.
+         *
+         * @param lockID lock id
+         */
+        synchronized void release(int lockID) {
+            var lock = lock(lockID);
+            if (!lock.held) {
+                _out.flush();
+                System.out.println("\nRuntime Error: lock_" + lockID + " is not locked !");
+                System.exit(-1);
+            }
+
+            var waiter = lock.waiters.poll();
+            if (waiter == null) {
+                lock.held = false;
+                return;
+            }
+            // The lock stays held: the waiter resumes right after its Lock instruction
+            parked--;
+            waiter.holding++;
+            waiter.resume();
+        }
+
+        /**
+         * Create a channel.
+         *
+         * @param capacity buffer capacity, 0 for an unbuffered channel
+         * @param region   bump region of the creating coroutine, for the block of the channel
+         * @return channel id
+         */
+        int newChan(int capacity, Region region) {
+            // Not under the lock, as allocating may stop the world to collect
+            var chanID = _memory.alloc(0, region);
+            synchronized (this) {
+                chans.put(chanID, new Chan(capacity));
+            }
+            return chanID;
+        }
+
+        /**
+         * Try to send a value: hand it to the first receiver waiting, or else buffer it.
+         *
+         * @param chanID channel id
+         * @param value  value to send
+         * @return true if sent, false if the sender must block
+         */
+        synchronized boolean send(int chanID, int value) {
+            var chan = chan(chanID);
+            var receiver = chan.receivers.poll();
+            if (receiver != null) {
+                parked--;
+                receiver.ctx.setTemp(receiver.waitDst, value);
+                receiver.resume();
+                return true;
+            }
+            if (chan.size < chan.capacity) {
+                chan.offer(value);
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Try to receive a value, from the buffer or else from the first sender waiting. A sender waiting for room
+         * in the buffer moves its value in once one is taken, so that values are received in the order sent.
+         *
+         * @param receiver the receiving coroutine
+         * @param chanID   channel id
+         * @param dst      index of the temp of the receiver to write the value
+         * @return true if received, false if the receiver must block
+         */
+        synchronized boolean recv(Coroutine receiver, int chanID, int dst) {
+            var chan = chan(chanID);
+            var sender = chan.senders.poll();
+            int value;
+            if (chan.size > 0) {
+                value = chan.poll();
+                if (sender != null) {
+                    chan.offer(sentBy(sender));
+                }
+            } else if (sender != null) {
+                value = sentBy(sender);
+            } else {
+                return false;
+            }
+            if (sender != null) {
+                parked--;
+                sender.resume();
+            }
+            receiver.ctx.setTemp(dst, value);
+            return true;
+        }
+
+        /**
+         * Create a task, for a coroutine about to start.
+         *
+         * @param region bump region of the starting coroutine, for the block of the task
+         * @return task id
+         */
+        int newTask(Region region) {
+            var taskID = _memory.alloc(0, region);
+            synchronized (this) {
+                tasks.put(taskID, new Task());
+            }
+            return taskID;
+        }
+
+        /**
+         * Finish a task, and hand its result to every coroutine waiting to join it.
+         *
+         * @param taskID task id
+         * @param result return value of the coroutine, 0 if none
+         */
+        synchronized void complete(int taskID, int result) {
+            var task = byId(tasks, taskID);
+            task.done = true;
+            task.result = result;
+            for (var joiner : task.joiners) {
+                parked--;
+                if (joiner.waitDst >= 0) {
+                    joiner.ctx.setTemp(joiner.waitDst, result);
+                }
+                joiner.resume();
+            }
+            task.joiners.clear();
+        }
+
+        /**
+         * Try to join a task.
+         *
+         * @param joiner the joining coroutine
+         * @param taskID task id
+         * @param dst    index of the temp of the joiner to write the result, -1 if discarded
+         * @return true if the task is done, false if the joiner must block
+         */
+        synchronized boolean join(Coroutine joiner, int taskID, int dst) {
+            var task = byId(tasks, taskID);
+            if (!task.done) {
+                return false;
+            }
+            if (dst >= 0) {
+                joiner.ctx.setTemp(dst, task.result);
+            }
+            return true;
+        }
+
+        /**
+         * The value a parked sender is blocked with, still in its temp as the pc is at its {@code Send}.
+         */
+        private int sentBy(Coroutine sender) {
+            return sender.ctx.temp(_program.operand(sender.ctx._pc, 1));
+        }
+
+        /**
+         * Park a coroutine blocked on a lock or channel, after its time slice.
+         *
+         * @param coroutine the coroutine
+         * @return true if parked, false if it would not block any more, and the coroutine should try again
+         */
+        synchronized boolean park(Coroutine coroutine) {
+            switch (coroutine.blocked) {
+                case LOCK -> {
+                    var lock = lock(coroutine.waitingFor);
+                    if (!lock.held) {
+                        return false;
+                    }
+                    lock.waiters.add(coroutine);
+                }
+                case SEND -> {
+                    var chan = chan(coroutine.waitingFor);
+                    if (!chan.receivers.isEmpty() || chan.size < chan.capacity) {
+                        return false;
+                    }
+                    chan.senders.add(coroutine);
+                }
+                case RECV -> {
+                    var chan = chan(coroutine.waitingFor);
+                    if (chan.size > 0 || !chan.senders.isEmpty()) {
+                        return false;
+                    }
+                    chan.receivers.add(coroutine);
+                }
+                case JOIN -> {
+                    var task = byId(tasks, coroutine.waitingFor);
+                    if (task.done) {
+                        return false;
+                    }
+                    task.joiners.add(coroutine);
+                }
+            }
+            parked++;
+            return true;
+        }
+
+        /**
+         * Check if every coroutine alive is parked, and hence never wakes.
+         *
+         * @param alive number of coroutines alive
+         */
+        synchronized void checkDeadlock(int alive) {
+            if (alive > 0 && parked == alive) {
+                throw new Error(String.format("deadlock: all %d coroutines wait for locks, channels or tasks", alive));
+            }
+        }
+
+        /**
+         * Mark the values buffered in the channels found reachable so far, and the results of the tasks found
+         * reachable. A channel some coroutine waits for is reachable too, and so is a task not done, which its
+         * coroutine is yet to complete. As the values may lead to more channels and tasks, the collector calls this
+         * again until nothing more is marked.
+         *
+         * @param reachable whether the block at an address is marked
+         * @param mark      marking action
+         */
+        synchronized void markValues(IntPredicate reachable, IntConsumer mark) {
+            for (var entry : chans.entrySet()) {
+                var chan = entry.getValue();
+                if (chan.reachable) {
+                    continue;
+                }
+                if (!chan.senders.isEmpty() || !chan.receivers.isEmpty()) {
+                    mark.accept(entry.getKey());
+                } else if (!reachable.test(entry.getKey())) {
+                    continue;
+                }
+                chan.reachable = true;
+                for (var i = 0; i < chan.size; i++) {
+                    mark.accept(chan.buffer[(chan.head + i) % chan.buffer.length]);
+                }
+            }
+            for (var entry : tasks.entrySet()) {
+                var task = entry.getValue();
+                if (task.reachable) {
+                    continue;
+                }
+                if (!task.done) {
+                    mark.accept(entry.getKey());
+                } else if (!reachable.test(entry.getKey())) {
+                    continue;
+                }
+                task.reachable = true;
+                mark.accept(task.result);
+            }
+        }
+
+        /**
+         * Drop the channels and tasks not found reachable by the collection, with the values buffered in the
+         * channels and the results of the tasks.
+         */
+        synchronized void sweep() {
+            for (var it = chans.values().iterator(); it.hasNext(); ) {
+                var chan = it.next();
+                if (chan.reachable) {
+                    chan.reachable = false;
+                } else {
+                    it.remove();
+                }
+            }
+            for (var it = tasks.values().iterator(); it.hasNext(); ) {
+                var task = it.next();
+                if (task.reachable) {
+                    task.reachable = false;
+                } else {
+                    it.remove();
+                }
+            }
+        }
+
+        private Chan chan(int chanID) {
+            return byId(chans, chanID);
+        }
+
+        private <T> T byId(Map<Integer, T> table, int id) {
+            var value = table.get(id);
+            if (value == null) {
+                throw new Error(id == 0 ? "Null pointer exception" : "Invalid id " + id);
+            }
+            return value;
+        }
+
+        private Lock lock(int lockID) {
+            var mask = ids.length - 1;
+            var i = hash(lockID) & mask;
+            while (locks[i] != null) {
+                if (ids[i] == lockID) {
+                    return locks[i];
+                }
+                i = (i + 1) & mask;
+            }
+
+            var lock = new Lock();
+            ids[i] = lockID;
+            locks[i] = lock;
+            if (++size * 2 > ids.length) {
+                grow();
+            }
+            return lock;
+        }
+
+        private void grow() {
+            var oldIds = ids;
+            var oldLocks = locks;
+            ids = new int[oldIds.length * 2];
+            locks = new Lock[oldLocks.length * 2];
+            var mask = ids.length - 1;
+            for (var j = 0; j < oldIds.length; j++) {
+                if (oldLocks[j] == null) continue;
+                var i = hash(oldIds[j]) & mask;
+                while (locks[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                ids[i] = oldIds[j];
+                locks[i] = oldLocks[j];
+            }
+        }
+
+        private int hash(int lockID) {
+            var h = lockID * 0x9e3779b9;
+            return h ^ (h >>> 16);
+        }
+    }
+
+    /**
+     * The stdin of the program, read byte by byte from one buffer for the whole run, so that no input read ahead is
+     * lost between reads. Integers and lines are parsed by hand.
+     */
+    private static final class Input {
+        private final InputStream in;
+
+        private final byte[] buf = new byte[1 << 16];
+
+        /**
+         * Unread bytes are {@code buf[pos, len)}.
+         */
+        private int pos = 0;
+        private int len = 0;
+
+        /**
+         * The line being read, when it spans more than one buffer.
+         */
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        Input(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * Read an integer, skipping leading whitespace. The rest of the line is left unread.
+         *
+         * @return the integer
+         */
+        synchronized int readInt() {
+            var c = peek();
+            while (c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == 0x0B) {
+                pos++;
+                c = peek();
+            }
+            if (c < 0) {
+                throw new Error("ReadInteger: end of input");
+            }
+
+            var negative = c == '-';
+            if (c == '-' || c == '+') {
+                pos++;
+                c = peek();
+            }
+            long value = 0;
+            var digits = 0;
+            while (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                if (value > 1L << 31) {
+                    throw new Error("ReadInteger: integer out of range");
+                }
+                digits++;
+                pos++;
+                c = peek();
+            }
+            if (digits == 0 || c > ' ') {
+                throw new Error("ReadInteger: not an integer");
+            }
+            value = negative ? -value : value;
+            if (value > Integer.MAX_VALUE) {
+                throw new Error("ReadInteger: integer out of range");
+            }
+            return (int) value;
+        }
+
+        /**
+         * Read the rest of the current line, and skip its terminator: {@code \n}, {@code \r\n} or {@code \r}.
+         *
+         * @return the line, without the terminator
+         */
+        synchronized String readLine() {
+            if (peek() < 0) {
+                throw new Error("ReadLine: end of input");
+            }
+
+            line.reset();
+            while (true) {
+                var start = pos;
+                while (pos < len && buf[pos] != '\n' && buf[pos] != '\r') {
+                    pos++;
+                }
+                if (pos < len) {
+                    String str;
+                    if (line.size() == 0) {
+                        // The whole line is in the buffer, the common case
+                        str = new String(buf, start, pos - start);
+                    } else {
+                        line.write(buf, start, pos - start);
+                        str = line.toString();
+                    }
+                    skipTerminator();
+                    return str;
+                }
+                line.write(buf, start, pos - start);
+                if (peek() < 0) {
+                    // The last line, unterminated
+                    return line.toString();
+                }
+            }
+        }
+
+        private void skipTerminator() {
+            var c = peek();
+            if (c == '\r') {
+                pos++;
+                c = peek();
+            }
+            if (c == '\n') {
+                pos++;
+            }
+        }
+
+        /**
+         * @return the next byte, without consuming it, or -1 at the end of input
+         */
+        private int peek() {
+            if (pos == len) {
+                try {
+                    len = Math.max(0, in.read(buf, 0, buf.length));
+                } catch (IOException e) {
+                    throw new Error("cannot read input: " + e.getMessage());
+                }
+                pos = 0;
+                if (len == 0) {
+                    return -1;
+                }
+            }
+            return buf[pos] & 0xff;
+        }
+    }
+
+    /**
+     * A bump region for small blocks, owned by one allocating party, usually a coroutine. Its unused words
+     * {@code [top, end)} are formatted as a free block which is on no free list, and it is valid only in the
+     * collection epoch when it was taken.
+     */
+    private static final class Region {
+        int top;
+        int end;
+        int epoch = -1;
+    }
+
+    /**
+     * Simulated heap: one contiguous array of words, where the word at address {@code addr} is simply
+     * {@code words[addr / 4]}.
+     * <p>
+     * Every block is preceded by a header word holding its size in words, which the program never sees, so that the
+     * heap can be walked block by block. Small blocks (up to {@link #SMALL} words) are taken from the free list of
+     * exactly their size, or else bumped in the {@link Region} of the allocating coroutine; large blocks are taken from
+     * the free lists of sizes between powers of 2, from the first one whose blocks all fit, or else bump {@link #top}. All bookkeeping is in the heap itself: a free
+     * block links to the next one in its first word.
+     * <p>
+     * Memory is reclaimed by a conservative mark-sweep collector: any word in a live frame or a live block that looks
+     * like an address inside (or just past) a block keeps the block alive. Blocks are never moved. The sweep coalesces
+     * adjacent free blocks and rebuilds the free lists, and invalidates all regions.
+     */
+    private class Memory {
+        /**
+         * Largest heap in words, such that every byte address fits in an int.
+         */
+        private static final int MAX_WORDS = Integer.MAX_VALUE / 4;
+
+        /**
+         * Header bits: marked as reachable, free, or pinned (never collected).
+         */
+        private static final int MARK = 1 << 30;
+        private static final int FREE = 1 << 29;
+        private static final int PINNED = 1 << 28;
+        private static final int SIZE = PINNED - 1;
+
+        /**
+         * Largest small block in words, and the size of a region.
+         */
+        private static final int SMALL = 16;
+        private static final int REGION = 1024;
+
+        /**
+         * Collect no sooner than this many words are in use.
+         */
+        private static final int MIN_LIMIT = 1 << 18;
+
+        private final boolean collecting;
+
+        private int[] words = new int[1 << 16];
+
+        /**
+         * One bit per word, set if it is a block header, so that an address inside a block leads to its header.
+         */
+        private long[] headers = new long[words.length / 64];
+
+        /**
+         * Index of the first word never allocated. Don't start from address 0, because 0 is reserved as the null
+         * pointer.
+         */
+        private volatile int top = 1;
+
+        /**
+         * Headers of the first free blocks of every small size, indexed by size in words, 0 if none.
+         */
+        private final int[] free = new int[SMALL + 1];
+
+        /**
+         * Headers of the first free large blocks of a size in {@code [2^k, 2^(k+1))} words, indexed by {@code k}, 0
+         * if none.
+         */
+        private final int[] large = new int[32];
+
+        /**
+         * Words taken by allocated blocks, including headers.
+         */
+        private int used = 0;
+
+        /**
+         * Collect once {@link #used} would exceed it.
+         */
+        private int limit = MIN_LIMIT;
+
+        private final List<Integer> pinned = new ArrayList<>();
+
+        private int[] markStack = new int[256];
+
+        private int markTop;
+
+        // Statistics
+        int collections = 0;
+        long pauseTotal = 0;
+        long pauseMax = 0;
+        long freedTotal = 0;
+        int peak = 0;
+
+        /**
+         * Constructor.
+         *
+         * @param collecting whether garbage is collected
+         */
+        Memory(boolean collecting) {
+            this.collecting = collecting;
+        }
+
+        /**
+         * Allocate memory in bytes.
+         *
+         * @param size   the size in bytes.
+         * @param region bump region of the allocating party
+         * @return the starting address of the allocated memory block
+         */
+        public int alloc(int size, Region region) {
+            if (size < 0) {
+                throw new Error("Memory allocation error: negative size " + size);
+            }
 
-            @Override
-            public void visitLock(TacInstr.Lock instr) {
-                Frame frame = ctx._call_stack.peek();
-                int lockID = frame.array[instr.lockID.index];
-                boolean f1 = lockState.containsKey(lockID);
-                boolean f2 = false;
-                if (f1) f2 = lockState.get(lockID);
-                if (lockState.containsKey(lockID) && lockState.get(lockID))
-                    locked = true;
-                else {
-                    lockState.put(lockID, true);
-                    ctx._pc++;
+            // At least one word, to link the block when it gets free
+            var count = (int) Math.max(1, (size + 3L) / 4);
+            if (count > SIZE) {
+                throw new Error("Memory allocation error: out of memory");
+            }
+            while (true) {
+                synchronized (this) {
+                    if (!(collecting && used + count + 1 > limit) && top + count + 1 + REGION <= words.length) {
+                        return take(count, region);
+                    }
                 }
+                // Other coroutines may hold pointers in their temps, or access the words being grown
+                _world.stop(() -> reserve(count));
             }
+        }
 
-            @Override
-            public void visitUnlock(TacInstr.Unlock instr) {
-                Frame frame = ctx._call_stack.peek();
-                int lockID = frame.array[instr.lockID.index];
-                if ((!lockState.containsKey(lockID)) || (!lockState.get(lockID))) {
-                    System.out.println("\nRuntime Error: lock_" + lockID + " is not locked !");
-                    System.exit(-1);
-                }
-                lockState.put(lockID, false);
-                ctx._pc++;
+        /**
+         * Collect garbage if the allocation would exceed the limit, and grow the heap if it may not fit.
+         */
+        private synchronized void reserve(int count) {
+            if (collecting && used + count + 1 > limit) {
+                collect();
+                limit = (int) Math.min(Math.max(MIN_LIMIT, 2L * (used + count + 1)), MAX_WORDS);
             }
 
-            private void callIntrinsic(Intrinsic.Opcode opcode) {
-                var frame = ctx._call_stack.peek();
-                Optional<Integer> retVal = Optional.empty();
+            var need = (long) top + count + 1 + REGION;
+            if (need > words.length) {
+                if (need > MAX_WORDS) {
+                    throw new Error("Memory allocation error: out of memory");
+                }
+                var capacity = words.length;
+                while (capacity < need) {
+                    capacity = (int) Math.min(2L * capacity, MAX_WORDS);
+                }
+                words = Arrays.copyOf(words, capacity);
+                headers = Arrays.copyOf(headers, (capacity + 63) / 64);
+            }
+        }
 
-                switch (opcode) {
-                    case ALLOCATE -> retVal = Optional.of(_memory.alloc(frame.array[0]));
-                    case READ_LINE -> {
-                        var scanner = new Scanner(_in);
-                        var str = scanner.nextLine();
-                        assert str.length() <= 63;
-                        retVal = Optional.of(_string_pool.add(str));
-                    }
-                    case READ_INT -> {
-                        var scanner = new Scanner(_in);
-                        var value = scanner.nextInt();
-                        retVal = Optional.of(value);
-                    }
-                    case STRING_EQUAL -> retVal = Optional.of(frame.array[0] == frame.array[1] ? 1 : 0);
-                    case PRINT_INT -> {
-                        _out.print(frame.array[0]);
-                        _out.flush();
-                    }
-                    case PRINT_STRING -> {
-                        _out.print(_string_pool.get(frame.array[0]));
-                        _out.flush();
-                    }
-                    case PRINT_BOOL -> {
-                        _out.print(frame.array[0] == 0 ? "false" : "true");
-                        _out.flush();
-                    }
-                    case HALT -> _halt = true;
+        /**
+         * Take a block of {@code count} words, which fits without collecting or growing.
+         *
+         * @return the address of its first word
+         */
+        private int take(int count, Region region) {
+            int header;
+            if (count <= SMALL) {
+                header = free[count];
+                if (header != 0) {
+                    free[count] = words[header + 1];
+                    words[header] = count;
+                } else {
+                    header = bumpSmall(count, region);
+                }
+            } else {
+                header = takeLarge(count);
+                if (header == 0) {
+                    header = bump(count + 1);
                 }
+            }
 
-                returnWith(retVal);
+            var end = header + (words[header] & SIZE);
+            for (var i = header + 1; i <= end; i++) {
+                words[i] = 0;
             }
+            used += end - header + 1;
+            return (header + 1) * 4;
+        }
 
-            @Override
-            public void visitMemory(TacInstr.Memory instr) {
-                var frame = ctx._call_stack.peek();
-                int base = frame.array[instr.base.index];
-                //System.out.println(instr + " : " + base + " + " + instr.offset);
-                int offset = instr.offset;
-                switch (instr.op) {
-                    case LOAD -> frame.array[instr.dst.index] = _memory.load(base, offset);
-                    case STORE -> _memory.store(frame.array[instr.dst.index], base, offset);
-                }
+        /**
+         * Allocate a string: its length in bytes at offset -4, followed by its UTF-8 bytes packed into words, little
+         * endian, and terminated by at least one zero byte, like {@code .asciiz}.
+         *
+         * @param value  the string
+         * @param region bump region of the allocating party
+         * @return the address of the first byte
+         */
+        int newString(String value, Region region) {
+            var bytes = value.getBytes(StandardCharsets.UTF_8);
+            var addr = alloc(4 + bytes.length + 1, region);
+            var index = addr / 4;
+            words[index] = bytes.length;
+            for (var i = 0; i < bytes.length; i++) {
+                words[index + 1 + i / 4] |= (bytes[i] & 0xff) << (8 * (i % 4));
+            }
+            return addr + 4;
+        }
 
-                ctx._pc++;
+        /**
+         * Check a string, and get the index of its first word.
+         */
+        private int checkString(int addr, int length) {
+            if (length < 0) {
+                throw new Error("Invalid string at " + addr);
             }
+            checkHeapAccess(addr, length / 4 * 4); // the word holding the terminator
+            return addr / 4;
         }
 
-    }
+        /**
+         * Read a string allocated by {@link #newString}.
+         */
+        String string(int addr) {
+            var length = load(addr, -4);
+            var index = checkString(addr, length);
+            var bytes = new byte[length];
+            for (var i = 0; i < length; i++) {
+                bytes[i] = (byte) (words[index + i / 4] >>> (8 * (i % 4)));
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Compare two strings allocated by {@link #newString} by contents.
+         */
+        boolean stringEqual(int addr1, int addr2) {
+            if (addr1 == addr2) {
+                return true;
+            }
+            var length = load(addr1, -4);
+            if (load(addr2, -4) != length) {
+                return false;
+            }
+            var index1 = checkString(addr1, length);
+            var index2 = checkString(addr2, length);
+            for (var i = 0; i <= length / 4; i++) {
+                if (words[index1 + i] != words[index2 + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
 
-    /**
-     * Memory.
-     */
-    private class Memory {
         /**
-         * Don't start from address 0, because 0 is reserved as the null pointer.
+         * Never collect a block.
+         *
+         * @param addr address inside the block
          */
-        private int currentSize = 4;
+        synchronized void pin(int addr) {
+            var header = headerBefore(addr / 4);
+            words[header] |= PINNED;
+            pinned.add(header);
+        }
 
-        private class Block implements Comparable<Block> {
+        private int bumpSmall(int count, Region region) {
+            if (region.epoch != collections || region.end - region.top < count + 1) {
+                // The rest of the old region is left as a free block, reclaimed by the next collection
+                var start = takeLarge(REGION - 1);
+                if (start == 0) {
+                    start = bump(REGION);
+                }
+                region.top = start;
+                region.end = start + (words[start] & SIZE) + 1;
+                region.epoch = collections;
+            }
 
-            public int start;
+            var header = region.top;
+            region.top += count + 1;
+            words[header] = count;
+            setHeader(header);
+            if (region.top < region.end) {
+                words[region.top] = FREE | (region.end - region.top - 1);
+                setHeader(region.top);
+            }
+            return header;
+        }
 
-            public int[] mem;
+        /**
+         * Take a block of at least {@code count} words off the first large free list whose blocks all fit, i.e. of
+         * sizes from the next power of 2 up, splitting it if larger. Blocks in the list of smaller sizes which would
+         * fit are not searched for, so that this takes constant time.
+         *
+         * @return its header, 0 if none fits
+         */
+        private int takeLarge(int count) {
+            for (var k = 32 - Integer.numberOfLeadingZeros(count - 1); k < large.length; k++) {
+                var header = large[k];
+                if (header == 0) continue;
+
+                large[k] = words[header + 1];
+                var size = words[header] & SIZE;
+                if (size > count) {
+                    release(header + 1 + count, size - count - 1);
+                }
+                words[header] = count;
+                return header;
+            }
+            return 0;
+        }
 
-            @Override
-            public int compareTo(Block o) {
-                return start > o.start ? 1 : start == o.start ? 0 : -1;
+        /**
+         * Make a free block and put it on the free list of its size. A block of no words is left on no list, until
+         * coalesced by a collection.
+         */
+        private void release(int header, int size) {
+            words[header] = FREE | size;
+            setHeader(header);
+            if (size > SMALL) {
+                var k = 31 - Integer.numberOfLeadingZeros(size);
+                words[header + 1] = large[k];
+                large[k] = header;
+            } else if (size > 0) {
+                words[header + 1] = free[size];
+                free[size] = header;
             }
         }
 
         /**
-         * A heap is a list of memory blocks. It stores the actual data.
+         * Bump {@code count} words off the top, which {@link #reserve} has made room for.
          */
-        private List<Block> heap = new ArrayList<>();
+        private int bump(int count) {
+            var header = top;
+            top += count;
+            peak = Math.max(peak, top);
+            words[header] = count - 1;
+            setHeader(header);
+            return header;
+        }
+
+        private void setHeader(int index) {
+            headers[index >> 6] |= 1L << index;
+        }
+
+        private void clearHeader(int index) {
+            headers[index >> 6] &= ~(1L << index);
+        }
 
         /**
-         * Allocate memory in bytes.
+         * Find the header of the block which {@code index} points into, i.e. the nearest header before it.
          *
-         * @param size the size in bytes.
-         * @return the starting address of the allocated memory block
+         * @return the header, 0 if none
          */
-        public int alloc(int size) {
-            if (size < 0) {
-                throw new Error("Memory allocation error: negative size " + size);
+        private int headerBefore(int index) {
+            var last = index - 1;
+            var w = last >> 6;
+            var bits = headers[w] & (-1L >>> (63 - (last & 63)));
+            while (bits == 0) {
+                if (--w < 0) return 0;
+                bits = headers[w];
+            }
+            return (w << 6) + 63 - Long.numberOfLeadingZeros(bits);
+        }
+
+        /**
+         * Mark the block which a word may point to, either inside or just past its end.
+         */
+        private void markValue(int value) {
+            if (value <= 0 || value % 4 != 0) return;
+            var index = value / 4;
+            if (index > top) return;
+
+            var header = headerBefore(index);
+            if (header == 0) return;
+            var bits = words[header];
+            if ((bits & (MARK | FREE)) != 0 || index > header + (bits & SIZE) + 1) return;
+
+            words[header] = bits | MARK;
+            if (markTop == markStack.length) {
+                markStack = Arrays.copyOf(markStack, markTop * 2);
+            }
+            markStack[markTop++] = header;
+        }
+
+        /**
+         * Check if the block allocated at an address is marked.
+         */
+        private boolean isMarked(int addr) {
+            return (words[addr / 4 - 1] & MARK) != 0;
+        }
+
+        private void markAll(int[] values, int length) {
+            for (var i = 0; i < length; i++) {
+                markValue(values[i]);
             }
+        }
 
-            if (size % 4 != 0) {
-                size += 4 - (size % 4);
+        /**
+         * Collect garbage: mark everything reachable from the roots, then sweep the heap, coalescing and freeing the
+         * unmarked blocks.
+         */
+        private void collect() {
+            var start = System.nanoTime();
+
+            // Mark
+            for (var header : pinned) {
+                markValue((header + 1) * 4);
+            }
+            for (var ctx : _contexts) {
+                markAll(ctx.stack, ctx.sp + ctx.argc);
+            }
+            if (_jitRuntime != null) {
+                markAll(_jitRuntime.args, _jitRuntime.args.length);
+                for (var i = 0; i < _jitRuntime.depth; i++) {
+                    markAll(_jitRuntime.frames[i], _jitRuntime.frames[i].length);
+                }
+            }
+            do {
+                while (markTop > 0) {
+                    var header = markStack[--markTop];
+                    var end = header + (words[header] & SIZE);
+                    for (var i = header + 1; i <= end; i++) {
+                        markValue(words[i]);
+                    }
+                }
+                _sync.markValues(this::isMarked, this::markValue);
+            } while (markTop > 0);
+            _sync.sweep();
+
+            // Sweep, and let all regions go, since they are free blocks now
+            var before = used;
+            used = 0;
+            Arrays.fill(free, 0);
+            Arrays.fill(large, 0);
+            var run = 0; // header of the free run being coalesced, 0 if none
+            for (var header = 1; header < top; ) {
+                var bits = words[header];
+                var next = header + (bits & SIZE) + 1;
+                if ((bits & (MARK | PINNED)) != 0) {
+                    if (run != 0) {
+                        release(run, header - run - 1);
+                        run = 0;
+                    }
+                    words[header] = bits & ~MARK;
+                    used += next - header;
+                } else if (run != 0) {
+                    clearHeader(header);
+                } else {
+                    run = header;
+                }
+                header = next;
+            }
+            if (run != 0) {
+                release(run, top - run - 1);
             }
 
-            size /= 4;
-            Block block = new Block();
-            block.start = currentSize;
-            currentSize += size;
-            block.mem = new int[size];
-            heap.add(block);
-            return block.start * 4;
+            var pause = System.nanoTime() - start;
+            collections++; // a new epoch
+            pauseTotal += pause;
+            pauseMax = Math.max(pauseMax, pause);
+            freedTotal += 4L * (before - used);
+            Log.fine("gc: #%d freed %d bytes, %d of %d bytes in use, paused %d us", collections,
+                    4L * (before - used), 4L * used, 4L * top, pause / 1000);
         }
 
-        private Block checkHeapAccess(int base, int offset) {
-        	//System.out.println(base + " + " + offset);
-        	
+        /**
+         * Translate a byte address to a word index, checking it against null, misalignment and the allocated heap.
+         */
+        private int checkHeapAccess(int base, int offset) {
             if (base <= 0) {
                 throw new Error("Null pointer exception");
             }
@@ -591,37 +2221,26 @@ public final class Simulator {
             }
 
             if (offset % 4 != 0) {
-                throw new Error("Offset not aligned: " + base);
+                throw new Error("Offset not aligned: " + offset);
             }
 
-            base /= 4;
-            offset /= 4;
-            if (base >= currentSize) {
-                throw new Error(String.format("Memory access out of bound %d", base * 4));
-            }
-            Block temp = new Block();
-            temp.start = base;
-            int index = Collections.binarySearch(heap, temp);
-            Block block = index >= 0 ? heap.get(index) : heap.get(-index - 2);
-            int accessIndex = base - block.start + offset;
-            if (accessIndex < 0 || accessIndex >= block.mem.length) {
-                throw new Error(String.format("Memory access out of bound %d", base * 4 + offset * 4));
+            var index = base / 4 + offset / 4;
+            if (index <= 0 || index >= top) {
+                throw new Error(String.format("Memory access out of bound %d", (long) base + offset));
             }
-            return block;
+            return index;
         }
 
         public int load(int base, int offset) {
-            Block block = checkHeapAccess(base, offset);
-            return block.mem[base / 4 - block.start + offset / 4];
+            return words[checkHeapAccess(base, offset)];
         }
 
         public void store(int value, int base, int offset) {
-            Block block = checkHeapAccess(base, offset);
-            block.mem[base / 4 - block.start + offset / 4] = value;
+            words[checkHeapAccess(base, offset)] = value;
         }
     }
 
-    private static class Error extends RuntimeException {
+    static class Error extends RuntimeException {
         Error(String msg) {
             super("In simulator: " + msg);
         }
@@ -636,46 +2255,156 @@ public final class Simulator {
         // Program counter
         public int _pc;
 
-        // Call stack
-        private Stack<Frame> _call_stack = new Stack<>();
+        // Return value of the function which the coroutine starts with
+        public int _ret_val;
+
+        /**
+         * Operand stack: temps of the active functions, from the outermost, each in a window of its frame size. The
+         * actual arguments pushed for the next call lie right above the top window, which is where the callee's
+         * window starts, so that they become its first temps in place.
+         */
+        int[] stack;
+
+        /**
+         * Frame pointer and stack pointer: the start and the end of the top window.
+         */
+        int fp;
+        int sp;
+
+        /**
+         * Number of actual arguments pushed for the next call.
+         */
+        int argc;
+
+        /**
+         * Number of active functions.
+         */
+        int depth;
+
+        /**
+         * Saved state of every caller, 3 words each: its frame pointer, the address of the next instruction once the
+         * call returns, and the index of the temp to write the return value, -1 if discarded.
+         */
+        private int[] links = NO_LINKS;
 
         public boolean isNextCallAsync;
 
         /**
-         * Temporarily save the actual arguments given by the PARM instruction. These will be erased once a new stack
-         * is created.
+         * Task of the coroutine started by the next call, 0 if none.
+         */
+        int nextTask;
+
+        // Where small blocks are allocated
+        final Region region = new Region();
+
+        /**
+         * Node of the top function in the calling context tree of {@link #_profile}, if profiling.
+         */
+        int node = Profile.ROOT;
+
+        /**
+         * Constructor.
+         *
+         * @param capacity initial size of the operand stack
+         */
+        CoroutineContext(int capacity) {
+            stack = new int[Math.max(capacity, 1)];
+            _contexts.add(this);
+        }
+
+        int temp(int index) {
+            return stack[fp + index];
+        }
+
+        void setTemp(int index, int value) {
+            stack[fp + index] = value;
+        }
+
+        /**
+         * Push an actual argument of the next call.
+         */
+        void pushArg(int value) {
+            if (sp + argc == stack.length) {
+                stack = Arrays.copyOf(stack, 2 * stack.length);
+            }
+            stack[sp + argc++] = value;
+        }
+
+        /**
+         * Call a function: save the caller's state, if any, and open the callee's window over the actual arguments,
+         * with the rest of its temps zeroed.
+         *
+         * @param func index of the callee
+         * @param dst  index of the caller's temp to write the return value, -1 if discarded
          */
-        private Vector<Integer> _actual_args = new Vector<>();
+        void push(int func, int dst) {
+            if (depth > 0) {
+                var link = 3 * (depth - 1);
+                if (link == links.length) {
+                    links = Arrays.copyOf(links, Math.max(3 * 4, 2 * links.length));
+                }
+                links[link] = fp;
+                links[link + 1] = _pc + 1;
+                links[link + 2] = dst;
+            }
+            depth++;
+            if (_profile != null) {
+                node = _profile.enter(node, func, depth);
+            }
 
-        CoroutineContext() { }
+            fp = sp;
+            sp = fp + _program.funcFrameSize[func];
+            if (sp > stack.length) {
+                stack = Arrays.copyOf(stack, Math.max(sp, 2 * stack.length));
+            }
+            Arrays.fill(stack, fp + argc, sp, 0);
+            argc = 0;
+            _pc = _program.funcEntry[func];
+        }
 
-        CoroutineContext fork() {
-            CoroutineContext ctx = new CoroutineContext();
-            ctx._pc = this._pc;
-            ctx._actual_args.addAll(this._actual_args);
-            this._call_stack.forEach(t -> ctx._call_stack.add(new Frame(t, ctx)));
-            return ctx;
+        /**
+         * Return from the top function, and recover the caller's state, if any.
+         *
+         * @return index of the caller's temp to write the return value, -1 if discarded or no caller
+         */
+        int pop() {
+            if (_profile != null) {
+                node = _profile.leave(node, depth);
+            }
+            depth--;
+            sp = fp;
+            if (depth == 0) {
+                return -1;
+            }
+            var link = 3 * (depth - 1);
+            fp = links[link];
+            _pc = links[link + 1];
+            return links[link + 2];
         }
     }
 
+    private static final int[] NO_LINKS = new int[0];
+
+    /**
+     * Round-robin scheduler. A coroutine is preempted once it has run for a quantum of instructions, so the
+     * interleaving depends on the program only, and every run is the same.
+     */
     class Scheduler {
-        Queue<Coroutine> queue = new LinkedList<>();
+        Queue<Coroutine> queue = new ArrayDeque<>();
 
         /**
-         * After every 5ms ticked will be set true to wake and run a new coroutine
+         * Draws the length of time slices, if seeded.
          */
-        AtomicBoolean signal = new AtomicBoolean(false);
+        private final Random random;
 
-        Timer timer;
+        Scheduler(Optional<Integer> seed) {
+            random = seed.map(Random::new).orElse(null);
+            seed.ifPresent(value -> Log.info("simulator: time slices of 1 to %d instructions, seed %d", _quantum,
+                    value));
+        }
 
         Scheduler() {
-            timer = new Timer("clock");
-            timer.schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    signal.set(true);
-                }
-            }, 0, 1);
+            this(Optional.empty());
         }
 
         void addCoroutine(Coroutine coroutine) {
@@ -683,20 +2412,216 @@ public final class Simulator {
             queue.add(coroutine);
         }
 
+        /**
+         * Schedule a coroutine again, which was parked.
+         */
+        void wake(Coroutine coroutine) {
+            queue.add(coroutine);
+        }
+
         void start() {
             // Round-Robin scheduler
-            while (!queue.isEmpty()) {
+            while (!queue.isEmpty() && !_halt) {
                 Coroutine task = queue.poll();
                 //System.out.println("now running" + task.coroutineID);
-                task.run(signal);
-                if (!task.finished())
+                var budget = random == null ? _quantum : 1 + random.nextInt(_quantum);
+                _executed.add(task.run(budget));
+                if (task.blocked != null ? !_sync.park(task) : !task.finished())
                     queue.offer(task);
             }
-            timer.cancel();
+            if (!_halt) {
+                _sync.checkDeadlock(_sync.parked);
+            }
+        }
+
+    }
+
+    /**
+     * Work-stealing scheduler, running coroutines in parallel on a pool of threads. Every time slice of a coroutine is
+     * a task: the thread which ran it forks the next one onto its own deque, and idle threads steal from the others.
+     */
+    class ParallelScheduler extends Scheduler {
+        final ForkJoinPool pool;
+
+        /**
+         * Number of coroutines not finished.
+         */
+        final AtomicInteger alive = new AtomicInteger();
+
+        final CountDownLatch done = new CountDownLatch(1);
+
+        /**
+         * What a coroutine failed with, to be rethrown by {@link #start}.
+         */
+        volatile Throwable failure;
+
+        ParallelScheduler(int threads) {
+            pool = new ForkJoinPool(threads, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+        }
+
+        @Override
+        void addCoroutine(Coroutine coroutine) {
+            alive.incrementAndGet();
+            wake(coroutine);
+        }
+
+        @Override
+        void wake(Coroutine coroutine) {
+            var slice = new Slice(coroutine);
+            if (ForkJoinTask.inForkJoinPool()) {
+                slice.fork();
+            } else {
+                pool.execute(slice);
+            }
+        }
+
+        @Override
+        void start() {
+            try {
+                if (alive.get() > 0) {
+                    done.await();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                _halt = true;
+            } finally {
+                pool.shutdownNow();
+            }
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            } else if (failure != null) {
+                throw (java.lang.Error) failure;
+            }
+        }
+
+        private void finish() {
+            if (alive.decrementAndGet() == 0 || _halt) {
+                done.countDown();
+            } else {
+                checkDeadlock();
+            }
+        }
+
+        private void checkDeadlock() {
+            try {
+                // Count the coroutines alive while none can park or be resumed, otherwise a coroutine may have started
+                // another one and parked since, and the count be compared with too many parked
+                synchronized (_sync) {
+                    _sync.checkDeadlock(alive.get());
+                }
+            } catch (Error e) {
+                failure = e;
+                _halt = true;
+                done.countDown();
+            }
+        }
+
+        @SuppressWarnings("serial") // tasks of the pool only, never serialized
+        private class Slice extends RecursiveAction {
+            final Coroutine coroutine;
+
+            Slice(Coroutine coroutine) {
+                this.coroutine = coroutine;
+            }
+
+            @Override
+            protected void compute() {
+                if (_halt) {
+                    finish();
+                    return;
+                }
+
+                _world.enter();
+                try {
+                    _executed.add(coroutine.run(_quantum));
+                } catch (RuntimeException | java.lang.Error e) {
+                    failure = e;
+                    _halt = true;
+                } finally {
+                    _world.leave();
+                }
+
+                if (coroutine.finished() || _halt) {
+                    finish();
+                } else if (coroutine.blocked == null || !_sync.park(coroutine)) {
+                    new Slice(coroutine).fork();
+                } else {
+                    checkDeadlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Safepoints of the coroutines running in parallel: a coroutine is stopped between its time slices, so that the
+     * heap can be collected or grown. With the round-robin scheduler, no other coroutine is running anyway.
+     */
+    private class World {
+        /**
+         * Number of coroutines in a time slice.
+         */
+        private int running = 0;
+
+        private boolean stopping = false;
+
+        synchronized void enter() {
+            awaitStarted();
+            running++;
+        }
+
+        synchronized void leave() {
+            running--;
+            notifyAll();
+        }
+
+        /**
+         * Run an action with every other coroutine stopped. If the world is being stopped by another coroutine,
+         * just wait until it is started again: the caller should retry what it needed the action for.
+         *
+         * @param action what to do
+         */
+        void stop(Runnable action) {
+            synchronized (this) {
+                if (stopping) {
+                    running--;
+                    notifyAll();
+                    awaitStarted();
+                    running++;
+                    return;
+                }
+
+                // Every other coroutine stops within a quantum, except the caller itself
+                stopping = true;
+                while (running > 1) {
+                    awaitUninterruptibly();
+                }
+            }
+
+            try {
+                action.run();
+            } finally {
+                synchronized (this) {
+                    stopping = false;
+                    notifyAll();
+                }
+            }
+        }
+
+        private void awaitStarted() {
+            while (stopping) {
+                awaitUninterruptibly();
+            }
         }
 
+        private void awaitUninterruptibly() {
+            try {
+                wait();
+            } catch (InterruptedException ignored) {
+                // Only the pool shutting down interrupts, and then nothing is left to wait for
+            }
+        }
     }
 
-    private Scheduler scheduler = new Scheduler();
-    private Map<Integer, Boolean> lockState = new HashMap<>();
+    private final Scheduler scheduler;
+    private final Sync _sync = new Sync();
 }
@@ -1,10 +1,16 @@
 package decaf.lowlevel.tac;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Vector;
+import java.util.List;
+import java.util.Map;
 
 /**
  * A string pool to store string literals. The equal strings will be allocated a same index.
+ * <p>
+ * Indexes are allocated in the order of addition, from 0, and never change. Both directions of lookup take constant
+ * time.
  */
 public class StringPool implements Iterable<String> {
     /**
@@ -14,10 +20,11 @@ public class StringPool implements Iterable<String> {
      * @return the allocated index
      */
     public int add(String value) {
-        int index = pool.indexOf(value);
-        if (index == -1) {
+        var index = indexes.get(value);
+        if (index == null) {
+            index = pool.size();
             pool.add(value);
-            return pool.size() - 1;
+            indexes.put(value, index);
         }
         return index;
     }
@@ -33,19 +40,19 @@ public class StringPool implements Iterable<String> {
     }
 
     public int find(String value) {
-        for (var i = 0; i < pool.size(); i++) {
-            if (pool.get(i).equals(value)) {
-                return i;
-            }
+        var index = indexes.get(value);
+        if (index == null) {
+            throw new IllegalArgumentException(value + " not found in string pool");
         }
-
-        throw new IllegalArgumentException(value + " not found in string pool");
+        return index;
     }
 
-    private Vector<String> pool = new Vector<>();
+    private final List<String> pool = new ArrayList<>();
+
+    private final Map<String, Integer> indexes = new HashMap<>();
 
     @Override
     public Iterator<String> iterator() {
         return pool.iterator();
     }
-}
\ No newline at end of file
+}
@@ -26,6 +26,20 @@ public class TacFunc implements Comparable<TacFunc> {
     	return ret;
     }
 
+    /**
+     * Copy this function with another body, e.g. after optimization.
+     *
+     * @param instrSeq instructions, starting with the entry label
+     * @param tempUsed number of temps used by them
+     * @return the copy
+     */
+    public TacFunc withInstrSeq(List<TacInstr> instrSeq, int tempUsed) {
+        var ret = new TacFunc(this.entry, this.numArgs);
+        ret.instrSeq.addAll(instrSeq);
+        ret.tempUsed = tempUsed;
+        return ret;
+    }
+
     public List<TacInstr> getInstrSeq() {
         return instrSeq;
     }
@@ -98,6 +98,10 @@ public abstract class TacInstr extends PseudoInstr {
             visitOthers(instr);
         }
 
+        default void visitJoin(Join instr) {
+            visitOthers(instr);
+        }
+
         default void visitLock(TacInstr.Lock instr) {
             visitOthers(instr);
         }
@@ -106,6 +110,18 @@ public abstract class TacInstr extends PseudoInstr {
             visitOthers(instr);
         }
 
+        default void visitNewChan(NewChan instr) {
+            visitOthers(instr);
+        }
+
+        default void visitSend(Send instr) {
+            visitOthers(instr);
+        }
+
+        default void visitRecv(Recv instr) {
+            visitOthers(instr);
+        }
+
         default void visitMemory(Memory instr) {
             visitOthers(instr);
         }
@@ -489,10 +505,23 @@ public abstract class TacInstr extends PseudoInstr {
         }
     }
 
+    /**
+     * Mark the next call to start a coroutine, and optionally create a task to join it.
+     * <pre>
+     *     {task =}? GoLabel
+     * </pre>
+     */
     public static class GoLabel extends TacInstr {
+        public final Optional<Temp> task;
 
         public GoLabel() {
             super(new Temp[]{}, new Temp[]{});
+            this.task = Optional.empty();
+        }
+
+        public GoLabel(Temp task) {
+            super(new Temp[]{task}, new Temp[]{});
+            this.task = Optional.of(task);
         }
 
         @Override
@@ -502,12 +531,50 @@ public abstract class TacInstr extends PseudoInstr {
 
         @Override
         public TacInstr map(Map<Temp, Temp> map) {
-            return this;
+            return task.isPresent() ? new GoLabel(map.get(task.get())) : this;
         }
 
         @Override
         public String toString() {
-            return "GoLabel";
+            return task.map(t -> t + " = GoLabel").orElse("GoLabel");
+        }
+    }
+
+    /**
+     * Wait for the coroutine of a task to finish, and take what its function returned.
+     * <pre>
+     *     {dst =}? join task
+     * </pre>
+     */
+    public static class Join extends TacInstr {
+        public final Optional<Temp> dst;
+        public final Temp task;
+
+        public Join(Temp dst, Temp task) {
+            super(new Temp[]{dst}, new Temp[]{task});
+            this.dst = Optional.of(dst);
+            this.task = task;
+        }
+
+        public Join(Temp task) {
+            super(new Temp[]{}, new Temp[]{task});
+            this.dst = Optional.empty();
+            this.task = task;
+        }
+
+        @Override
+        public void accept(Visitor v) {
+            v.visitJoin(this);
+        }
+
+        @Override
+        public TacInstr map(Map<Temp, Temp> map) {
+            return dst.isPresent() ? new Join(map.get(dst.get()), map.get(task)) : new Join(map.get(task));
+        }
+
+        @Override
+        public String toString() {
+            return dst.map(d -> String.format("%s = join %s", d, task)).orElse("join " + task);
         }
     }
 
@@ -550,7 +617,7 @@ public abstract class TacInstr extends PseudoInstr {
 
         @Override
         public TacInstr map(Map<Temp, Temp> map) {
-            return new Lock(map.get(lockID));
+            return new Unlock(map.get(lockID));
         }
 
         @Override
@@ -559,6 +626,102 @@ public abstract class TacInstr extends PseudoInstr {
         }
     }
 
+    /**
+     * Create a channel holding at most {@code capacity} values; an unbuffered channel has capacity 0.
+     * <pre>
+     *     dst = chan capacity
+     * </pre>
+     */
+    public static class NewChan extends TacInstr {
+        public final Temp dst;
+        public final Temp capacity;
+
+        public NewChan(Temp dst, Temp capacity) {
+            super(new Temp[]{dst}, new Temp[]{capacity});
+            this.dst = dst;
+            this.capacity = capacity;
+        }
+
+        @Override
+        public void accept(Visitor v) {
+            v.visitNewChan(this);
+        }
+
+        @Override
+        public TacInstr map(Map<Temp, Temp> map) {
+            return new NewChan(map.get(dst), map.get(capacity));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s = chan %s", dst, capacity);
+        }
+    }
+
+    /**
+     * Send a value into a channel, blocking the coroutine while the channel cannot take it.
+     * <pre>
+     *     send chan, value
+     * </pre>
+     */
+    public static class Send extends TacInstr {
+        public final Temp chan;
+        public final Temp value;
+
+        public Send(Temp chan, Temp value) {
+            super(new Temp[]{}, new Temp[]{chan, value});
+            this.chan = chan;
+            this.value = value;
+        }
+
+        @Override
+        public void accept(Visitor v) {
+            v.visitSend(this);
+        }
+
+        @Override
+        public TacInstr map(Map<Temp, Temp> map) {
+            return new Send(map.get(chan), map.get(value));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("send %s, %s", chan, value);
+        }
+    }
+
+    /**
+     * Receive a value from a channel, blocking the coroutine while the channel is empty.
+     * <pre>
+     *     dst = recv chan
+     * </pre>
+     */
+    public static class Recv extends TacInstr {
+        public final Temp dst;
+        public final Temp chan;
+
+        public Recv(Temp dst, Temp chan) {
+            super(new Temp[]{dst}, new Temp[]{chan});
+            this.dst = dst;
+            this.chan = chan;
+        }
+
+        @Override
+        public void accept(Visitor v) {
+            v.visitRecv(this);
+        }
+
+        @Override
+        public TacInstr map(Map<Temp, Temp> map) {
+            return new Recv(map.get(dst), map.get(chan));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s = recv %s", dst, chan);
+        }
+    }
+
     /**
      * Call by address (which is stored in a temp).
      * <pre>
@@ -19,6 +19,7 @@ BOOL_LIT     INT_LIT        STRING_LIT
 IDENTIFIER   AND            OR          STATIC      INSTANCE_OF
 LESS_EQUAL   GREATER_EQUAL  EQUAL       NOT_EQUAL
 ABSTRACT     VAR            FUN         DEDUCE      GO
+CHAN         SEND           RECV        TASK        JOIN
 '+'  '-'  '*'  '/'  '%'  '='  '>'  '<'  '.'
 ','  ';'  '!'  '('  ')'  '['  ']'  '{'  '}'
 